@@ -1,25 +1,130 @@
 package com.spotify.netty.handler.codec.zmtp;
 
+import com.spotify.netty.handler.queue.ExpiringMessage;
+import com.spotify.netty.handler.queue.UrgentMessage;
+
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelDownstreamHandler;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelStateEvent;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
-import org.jboss.netty.handler.codec.replay.VoidEnum;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static org.jboss.netty.buffer.ChannelBuffers.swapLong;
 
 /**
  * An abstract base class for common functionality to the ZMTP codecs.
+ *
+ * <p>A codec is a single duplex handler: it performs the handshake and then decodes incoming
+ * frames into {@link ZMTPIncomingMessage}s and encodes outgoing {@link ZMTPMessage}s itself,
+ * so the pipeline is never modified and every message passes through just one handler.
+ *
+ * <p>The handshake is an explicit incremental state machine: {@link #inputOutput(ChannelBuffer)}
+ * only consumes a greeting, or part of one, once all of its octets have arrived, and returns
+ * {@code null} without touching the buffer otherwise. Running out of data is never signalled by
+ * an exception, so fragmented greetings are cheap to process.
+ *
+ * <p>Messages written before the handshake is done are queued, up to a limit of
+ * {@link #getPendingWriteLimit()} bytes, and encoded into a single buffer as soon as the protocol
+ * version is known. Clients can thus send their first messages right after connecting instead of
+ * waiting for the handshake to complete.
+ *
+ * <p>Messages wrapped in an {@link ExpiringMessage} are dropped instead of encoded if their
+ * deadline has passed, see {@link #getExpiredMessages()}.
  */
-abstract class CodecBase extends ReplayingDecoder<VoidEnum>  {
+abstract class CodecBase extends FrameDecoder implements ChannelDownstreamHandler {
 
   protected final ZMTPSession session;
   protected HandshakeListener listener;
+  private boolean handshakeDone;
+
+  /**
+   * The default limit on the number of bytes of messages queued while the handshake is in
+   * progress.
+   */
+  public static final int DEFAULT_PENDING_WRITE_LIMIT = 64 * 1024;
+
+  private int version;
+  private ZMTPMessageParser parser;
+  private volatile ZMTPFramingEncoder encoder;
+
+  private final Object pendingWritesLock = new Object();
+  private List<MessageEvent> pendingWrites = new ArrayList<MessageEvent>();
+  private long pendingWriteBytes;
+  private volatile int pendingWriteLimit = DEFAULT_PENDING_WRITE_LIMIT;
+
+  private volatile ZMTPMemoryBudget memoryBudget;
+  private ZMTPMemoryBudget.Account budgetAccount;
+  private long reservedInputBytes;
+
+  private final AtomicLong expiredMessages = new AtomicLong();
 
   CodecBase(ZMTPSession session) {
     this.session = session;
   }
 
+  /**
+   * Get the session of this codec.
+   */
+  ZMTPSession getSession() {
+    return session;
+  }
+
+  /**
+   * Get the maximum number of bytes of messages that are queued while the handshake is in
+   * progress.
+   */
+  public int getPendingWriteLimit() {
+    return pendingWriteLimit;
+  }
+
+  /**
+   * Set the maximum number of bytes of messages that are queued while the handshake is in
+   * progress. Writes that would exceed the limit fail.
+   */
+  public void setPendingWriteLimit(final int pendingWriteLimit) {
+    if (pendingWriteLimit < 0) {
+      throw new IllegalArgumentException("pendingWriteLimit: " + pendingWriteLimit);
+    }
+    this.pendingWriteLimit = pendingWriteLimit;
+  }
+
+  /**
+   * Get the budget incoming data is reserved from, or null if there is none.
+   */
+  public ZMTPMemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Set a budget to reserve incoming data from. Must be set before the channel is connected.
+   * Consumers must call {@link ZMTPIncomingMessage#release()} on every message received from a
+   * codec with a budget.
+   */
+  public void setMemoryBudget(final ZMTPMemoryBudget memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Get the number of outgoing messages that were dropped because their deadline passed before
+   * they were encoded.
+   */
+  public long getExpiredMessages() {
+    return expiredMessages.get();
+  }
+
   @Override
   public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
       throws Exception {
@@ -29,7 +134,6 @@ abstract class CodecBase extends ReplayingDecoder<VoidEnum>  {
       public void handshakeDone(int protocolVersion, byte[] remoteIdentity) {
         session.setRemoteIdentity(remoteIdentity);
         session.setActualVersion(protocolVersion);
-        updatePipeline(ctx.getPipeline(), session);
         ctx.sendUpstream(e);
       }
     });
@@ -38,60 +142,451 @@ abstract class CodecBase extends ReplayingDecoder<VoidEnum>  {
 
     channel.write(onConnect());
     this.session.setChannel(e.getChannel());
+
+    final int version = knownVersion();
+    if (version != 0) {
+      session.setActualVersion(version);
+      startEncoding(ctx);
+    }
   }
 
   abstract ChannelBuffer onConnect();
 
+  /**
+   * Return the protocol version if it is known before the peer greeting has been received, or 0
+   * if it depends on the peer. When known, messages written before the handshake is done are
+   * encoded and sent right after the greeting instead of being queued.
+   */
+  int knownVersion() {
+    return 0;
+  }
+
+  /**
+   * Handle a ZMTP/3.0 command received after the handshake.
+   *
+   * @return an object to pass upstream, or null if the command was consumed
+   * @throws ZMTPException if the command is a protocol violation
+   * @throws Exception     if answering the command fails
+   */
+  Object handleCommand(final ChannelHandlerContext ctx, final ZMTPCommand command)
+      throws Exception {
+    return command;
+  }
+
+  /**
+   * Advance the handshake as far as the data in buffer allows. Octets are only consumed once
+   * a complete step of the handshake can be processed.
+   *
+   * @param buffer the data received so far
+   * @return data to send to the peer, or null if nothing should be sent, either because the
+   *         handshake is done or because more data is needed
+   * @throws ZMTPException if the peer sent a malformed greeting
+   */
   abstract ChannelBuffer inputOutput(final ChannelBuffer buffer) throws ZMTPException;
 
   @Override
-  protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer,
-                          VoidEnum _) throws ZMTPException {
-    buffer.markReaderIndex();
-    ChannelBuffer toSend = inputOutput(buffer);
-    while (toSend != null) {
-      ctx.getChannel().write(toSend);
-      toSend = inputOutput(buffer);
+  protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer)
+      throws Exception {
+    if (!handshakeDone) {
+      ChannelBuffer toSend = inputOutput(buffer);
+      while (toSend != null) {
+        channel.write(toSend);
+        toSend = inputOutput(buffer);
+      }
+      if (!handshakeDone) {
+        // wait for more data
+        return null;
+      }
+      startEncoding(ctx);
+    }
+
+    if (version >= 3 && !parser.isParsingMessage() && ZMTPCommand.isCommand(buffer)) {
+      final ZMTPCommand command = ZMTPCommand.read(buffer);
+      if (command == null) {
+        return null;
+      }
+      return handleCommand(ctx, command);
+    }
+
+    final ZMTPParsedMessage msg = parser.parse(buffer);
+    if (msg == null) {
+      return null;
     }
-    // This follows the pattern for dynamic pipelines documented in
-    // http://netty.io/3.6/api/org/jboss/netty/handler/codec/replay/ReplayingDecoder.html
-    if (actualReadableBytes() > 0) {
-      return buffer.readBytes(actualReadableBytes());
+
+    if (budgetAccount == null) {
+      return new ZMTPIncomingMessage(session, msg.getMessage(), msg.isTruncated(),
+                                     msg.getByteSize());
     }
-    return null;
+
+    // Hand the reserved bytes of the message over to the message, to be released by its consumer
+    final long reserved = Math.min(msg.getByteSize(), reservedInputBytes);
+    reservedInputBytes -= reserved;
+    return new ZMTPIncomingMessage(session, msg.getMessage(), msg.isTruncated(), msg.getByteSize(),
+                                   budgetAccount, reserved);
   }
 
-  void setListener(HandshakeListener listener) {
-    this.listener = listener;
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final ZMTPMemoryBudget budget = memoryBudget;
+    if (budget == null || !(e.getMessage() instanceof ChannelBuffer)) {
+      super.messageReceived(ctx, e);
+      return;
+    }
+
+    if (budgetAccount == null) {
+      budgetAccount = budget.register(ctx.getChannel());
+    }
+    final int bytes = ((ChannelBuffer) e.getMessage()).readableBytes();
+    reservedInputBytes += bytes;
+    budget.reserve(budgetAccount, bytes);
+    try {
+      super.messageReceived(ctx, e);
+    } finally {
+      releaseDecodedInput();
+    }
   }
 
+  /**
+   * Release the reserved bytes that have been decoded without becoming part of a message, keeping
+   * those still held in the cumulation buffer and by a partially parsed message.
+   */
+  private void releaseDecodedInput() {
+    long held = cumulation == null ? 0 : cumulation.readableBytes();
+    if (parser != null) {
+      held += parser.getBufferedBytes();
+    }
+    final long released = Math.max(0, reservedInputBytes - held);
+    reservedInputBytes -= released;
+    budgetAccount.getBudget().decoded(budgetAccount, released, reservedInputBytes);
+  }
 
-  private void updatePipeline(ChannelPipeline pipeline,
-                              ZMTPSession session) {
-    pipeline.addAfter(pipeline.getContext(this).getName(), "zmtpEncoder",
-                      new ZMTPFramingEncoder(session));
-    pipeline.addAfter("zmtpEncoder", "zmtpDecoder",
-                      new ZMTPFramingDecoder(session));
-    pipeline.remove(this);
+  @Override
+  public void handleDownstream(final ChannelHandlerContext ctx, final ChannelEvent e)
+      throws Exception {
+    ZMTPFramingEncoder encoder = this.encoder;
+    if (encoder == null && e instanceof MessageEvent &&
+        isEncodable(((MessageEvent) e).getMessage())) {
+      synchronized (pendingWritesLock) {
+        encoder = this.encoder;
+        if (encoder == null) {
+          addPendingWrite((MessageEvent) e);
+          return;
+        }
+      }
+    }
+
+    if (encoder == null || !(e instanceof MessageEvent)) {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    final MessageEvent me = (MessageEvent) e;
+    final Object originalMessage = me.getMessage();
+    if (isExpired(me)) {
+      expire(me);
+      return;
+    }
+    final Object encodedMessage = encoder.encode(ctx, e.getChannel(), originalMessage);
+    if (originalMessage == encodedMessage) {
+      ctx.sendDownstream(e);
+    } else {
+      Channels.write(ctx, e.getFuture(), encodedMessage, me.getRemoteAddress());
+    }
   }
 
   /**
-   * Parse and return the remote identity octets from a ZMTP/1.0 greeting.
+   * Write a command to the peer ahead of any messages queued in a write batcher. Does nothing if
+   * the handshake is not done.
    */
-  static byte[] readZMTP1RemoteIdentity(final ChannelBuffer buffer) throws ZMTPException {
-    buffer.markReaderIndex();
+  void writeUrgentCommand(final ChannelHandlerContext ctx, final ZMTPCommand command)
+      throws Exception {
+    final ZMTPFramingEncoder encoder = this.encoder;
+    if (encoder == null) {
+      return;
+    }
+    final Channel channel = ctx.getChannel();
+    Channels.write(ctx, Channels.future(channel),
+                   encoder.encode(ctx, channel, new UrgentMessage(command)));
+  }
 
-    final long len = ZMTPUtils.decodeLength(buffer);
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    failPendingWrites(new ClosedChannelException());
+    super.channelClosed(ctx, e);
+    if (budgetAccount != null) {
+      budgetAccount.getBudget().unregister(budgetAccount);
+      budgetAccount.getBudget().decoded(budgetAccount, reservedInputBytes, 0);
+      reservedInputBytes = 0;
+    }
+  }
+
+  /**
+   * Queue a message written before the handshake is done. Must be called with the pending writes
+   * lock held.
+   */
+  private void addPendingWrite(final MessageEvent e) {
+    if (pendingWrites == null) {
+      e.getFuture().setFailure(new ClosedChannelException());
+      return;
+    }
+    // The protocol version is not known yet, estimate the size using ZMTP/2.0 framing
+    final ZMTPCommand command = toZMTPCommand(e.getMessage());
+    final int size = command != null
+                     ? command.size()
+                     : ZMTPUtils.messageSize(toZMTPMessage(e.getMessage()),
+                                             session.isEnveloped(), 2);
+    if (pendingWriteBytes + size > pendingWriteLimit) {
+      e.getFuture().setFailure(new ZMTPException(
+          "Pending write limit of " + pendingWriteLimit + " bytes exceeded before handshake"));
+      return;
+    }
+    pendingWriteBytes += size;
+    pendingWrites.add(e);
+  }
+
+  /**
+   * Encode all messages queued during the handshake into a single buffer, write it and start
+   * encoding messages as they are written.
+   */
+  private void startEncoding(final ChannelHandlerContext ctx) {
+    if (this.encoder != null) {
+      return;
+    }
+    final ZMTPFramingEncoder encoder = new ZMTPFramingEncoder(session);
+    List<MessageEvent> writes = null;
+    List<MessageEvent> expired = null;
+    ChannelFuture future = null;
+    synchronized (pendingWritesLock) {
+      final List<MessageEvent> queued = pendingWrites;
+      pendingWrites = null;
+      pendingWriteBytes = 0;
+      if (queued != null) {
+        writes = new ArrayList<MessageEvent>(queued.size());
+        for (final MessageEvent write : queued) {
+          if (!isExpired(write)) {
+            writes.add(write);
+          } else {
+            if (expired == null) {
+              expired = new ArrayList<MessageEvent>();
+            }
+            expired.add(write);
+          }
+        }
+        if (!writes.isEmpty()) {
+          future = writePendingWrites(ctx, writes);
+        }
+      }
+      // Published while holding the lock so that no message can overtake the queued ones
+      this.encoder = encoder;
+    }
+    // Futures are completed only now, as their listeners may write more messages
+    if (expired != null) {
+      for (final MessageEvent write : expired) {
+        expire(write);
+      }
+    }
+    if (future != null) {
+      future.addListener(new PendingWritesListener(writes));
+    }
+  }
+
+  /**
+   * Write the queued messages as a single buffer.
+   *
+   * @return the future of the write.
+   */
+  private ChannelFuture writePendingWrites(final ChannelHandlerContext ctx,
+                                           final List<MessageEvent> writes) {
+    final boolean enveloped = session.isEnveloped();
+    final int version = session.getActualVersion();
+    int size = 0;
+    for (final MessageEvent write : writes) {
+      final ZMTPCommand command = toZMTPCommand(write.getMessage());
+      size += command != null
+              ? command.size()
+              : ZMTPUtils.messageSize(toZMTPMessage(write.getMessage()), enveloped, version);
+    }
+    final ChannelBuffer buffer = ChannelBuffers.buffer(size);
+    for (final MessageEvent write : writes) {
+      final ZMTPCommand command = toZMTPCommand(write.getMessage());
+      if (command != null) {
+        command.write(buffer);
+      } else {
+        ZMTPUtils.writeMessage(toZMTPMessage(write.getMessage()), buffer, enveloped, version);
+      }
+    }
+    final ChannelFuture future = Channels.future(ctx.getChannel());
+    Channels.write(ctx, future, buffer);
+    return future;
+  }
+
+  /**
+   * Check if a written message has expired.
+   */
+  private static boolean isExpired(final MessageEvent e) {
+    return e.getMessage() instanceof ExpiringMessage &&
+           ((ExpiringMessage) e.getMessage()).isExpired();
+  }
+
+  /**
+   * Drop an expired message and fail its write future. Must not be called with the pending writes
+   * lock held.
+   */
+  private void expire(final MessageEvent e) {
+    expiredMessages.incrementAndGet();
+    e.getFuture().setFailure(((ExpiringMessage) e.getMessage()).expired());
+  }
+
+  private void failPendingWrites(final Throwable cause) {
+    final List<MessageEvent> writes;
+    synchronized (pendingWritesLock) {
+      writes = pendingWrites;
+      pendingWrites = null;
+      pendingWriteBytes = 0;
+    }
+    if (writes != null) {
+      for (final MessageEvent write : writes) {
+        write.getFuture().setFailure(cause);
+      }
+    }
+  }
+
+  /**
+   * Return true if a written message is encoded by this codec, and thus has to be queued until
+   * the handshake is done. Commands are only queued on ZMTP/3.0 sessions.
+   */
+  private boolean isEncodable(final Object message) {
+    return toZMTPMessage(message) != null || (toZMTPCommand(message) != null && version() >= 3);
+  }
+
+  /**
+   * Return the protocol version of the session, or the version this codec speaks if the
+   * handshake is not done yet and the version is known up front.
+   */
+  private int version() {
+    final int version = session.getActualVersion();
+    return version != 0 ? version : knownVersion();
+  }
+
+  /**
+   * Return the ZMTP command written in a message event, or null if it is not a command.
+   */
+  private static ZMTPCommand toZMTPCommand(Object message) {
+    if (message instanceof ExpiringMessage) {
+      message = ((ExpiringMessage) message).getMessage();
+    }
+    if (message instanceof UrgentMessage) {
+      message = ((UrgentMessage) message).getMessage();
+    }
+    return message instanceof ZMTPCommand ? (ZMTPCommand) message : null;
+  }
+
+  /**
+   * Return the ZMTP message written in a message event, or null if it is not a ZMTP message.
+   */
+  private static ZMTPMessage toZMTPMessage(Object message) {
+    if (message instanceof ExpiringMessage) {
+      message = ((ExpiringMessage) message).getMessage();
+    }
+    if (message instanceof UrgentMessage) {
+      message = ((UrgentMessage) message).getMessage();
+    }
+    return message instanceof ZMTPMessage ? (ZMTPMessage) message : null;
+  }
+
+  /**
+   * Propagates the result of a write of queued messages to the futures of the original writes.
+   */
+  private static class PendingWritesListener implements ChannelFutureListener {
+
+    private final List<MessageEvent> writes;
+
+    PendingWritesListener(final List<MessageEvent> writes) {
+      this.writes = writes;
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+      if (future.isSuccess()) {
+        for (final MessageEvent write : writes) {
+          write.getFuture().setSuccess();
+        }
+      } else {
+        final Throwable cause = future.getCause();
+        for (final MessageEvent write : writes) {
+          write.getFuture().setFailure(cause);
+        }
+      }
+    }
+  }
+
+  void setListener(HandshakeListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Mark the handshake as completed and notify the listener.
+   */
+  protected void done(int version, byte[] remoteIdentity) {
+    handshakeDone = true;
+    this.version = version;
+    parser = new ZMTPMessageParser(session.isEnveloped(), session.getSizeLimit(), version);
+    if (listener != null) {
+      listener.handshakeDone(version, remoteIdentity);
+    }
+  }
+
+
+  /**
+   * Return the number of octets of the ZMTP/1.0 greeting at the reader index of buffer, without
+   * consuming any of them.
+   *
+   * @return the length of the greeting, or -1 if the buffer does not hold the complete greeting
+   * @throws ZMTPException if the greeting is malformed
+   */
+  static int zmtp1GreetingLength(final ChannelBuffer buffer) throws ZMTPException {
+    if (!buffer.readable()) {
+      return -1;
+    }
+    final int index = buffer.readerIndex();
+    long len = buffer.getByte(index) & 0xFF;
+    int headerLength = 1;
+    if (len == 0xFF) {
+      if (buffer.readableBytes() < 9) {
+        return -1;
+      }
+      len = buffer.getLong(index + 1);
+      if (buffer.order() != BIG_ENDIAN) {
+        len = swapLong(len);
+      }
+      headerLength = 9;
+    }
     if (len > 256) {
       // spec says the ident string can be up to 255 chars
       throw new ZMTPException("Remote identity longer than the allowed 255 octets");
     }
+    if (len < 1) {
+      throw new ZMTPException("Malformed ZMTP/1.0 greeting, missing flags octet");
+    }
+    if (buffer.readableBytes() < headerLength + len) {
+      return -1;
+    }
+    return headerLength + (int) len;
+  }
 
-    // Bail out if there's not enough data
-    if (len == -1 || buffer.readableBytes() < len) {
-      buffer.resetReaderIndex();
+  /**
+   * Parse and return the remote identity octets from a ZMTP/1.0 greeting.
+   *
+   * @throws IndexOutOfBoundsException if the buffer does not hold the complete greeting
+   */
+  static byte[] readZMTP1RemoteIdentity(final ChannelBuffer buffer) throws ZMTPException {
+    if (zmtp1GreetingLength(buffer) == -1) {
       throw new IndexOutOfBoundsException("not enough data");
     }
+
+    final long len = ZMTPUtils.decodeLength(buffer);
     // skip the flags byte
     buffer.skipBytes(1);
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A cache of serialized greetings. The greetings sent by a codec only depend on the local identity,
+ * the socket type and the kind of greeting, so they are built once per distinct configuration and
+ * every connection is handed a read-only view of the same bytes.
+ *
+ * <p>Sessions without an explicit local identity get a random one each, so their greetings are
+ * built on every call instead of being cached.
+ */
+class GreetingCache {
+
+  /**
+   * The kinds of greetings sent by the codecs.
+   */
+  enum Kind {
+    /**
+     * A ZMTP/1.0 greeting.
+     */
+    ZMTP1,
+    /**
+     * A complete ZMTP/2.0 greeting.
+     */
+    ZMTP2,
+    /**
+     * A ZMTP/2.0 greeting without the 10 octet signature.
+     */
+    ZMTP2_TAIL,
+    /**
+     * The ZMTP/2.0 signature that is compatible with ZMTP/1.0 peers.
+     */
+    ZMTP2_COMPAT_SIGNATURE,
+    /**
+     * A complete ZMTP/3.0 greeting followed by a READY command.
+     */
+    ZMTP3,
+    /**
+     * A ZMTP/3.0 greeting without the signature and major version, followed by a READY command.
+     */
+    ZMTP3_TAIL
+  }
+
+  /**
+   * The maximum number of cached greetings, to not let unusual uses of identities grow the cache
+   * without bound.
+   */
+  private static final int MAX_CACHED_GREETINGS = 1024;
+
+  private static final ConcurrentMap<Key, ChannelBuffer> greetings =
+      new ConcurrentHashMap<Key, ChannelBuffer>();
+
+  private GreetingCache() {
+  }
+
+  /**
+   * Get a greeting for a session. The returned buffer must not be modified.
+   *
+   * @param kind    the kind of greeting
+   * @param session the session to greet for
+   * @return a read-only buffer with the greeting
+   */
+  static ChannelBuffer get(final Kind kind, final ZMTPSession session) {
+    if (!session.useLocalIdentity()) {
+      return make(kind, session.getSocketType(), session.getLocalIdentity());
+    }
+
+    final Key key = new Key(kind, session.getSocketType(), session.getLocalIdentity());
+    ChannelBuffer greeting = greetings.get(key);
+    if (greeting == null) {
+      greeting = make(kind, key.socketType, key.identity);
+      if (greetings.size() < MAX_CACHED_GREETINGS) {
+        // The key must not share the identity array with the session, it could be modified
+        final Key copy = new Key(kind, key.socketType, key.identity.clone());
+        final ChannelBuffer existing = greetings.putIfAbsent(copy, greeting);
+        if (existing != null) {
+          greeting = existing;
+        }
+      }
+    }
+    return ChannelBuffers.unmodifiableBuffer(greeting);
+  }
+
+  private static ChannelBuffer make(final Kind kind, final ZMTPSocketType socketType,
+                                    final byte[] identity) {
+    switch (kind) {
+      case ZMTP1:
+        return ZMTP10Codec.makeZMTP1Greeting(identity);
+      case ZMTP2:
+        return ZMTP20Codec.makeZMTP2Greeting(socketType, identity, true);
+      case ZMTP2_TAIL:
+        return ZMTP20Codec.makeZMTP2Greeting(socketType, identity, false);
+      case ZMTP2_COMPAT_SIGNATURE:
+        return ZMTP20Codec.makeZMTP2CompatSignature(identity);
+      case ZMTP3:
+        return ZMTP30Codec.makeZMTP3Greeting(socketType, identity, true);
+      case ZMTP3_TAIL:
+        return ZMTP30Codec.makeZMTP3Greeting(socketType, identity, false);
+      default:
+        throw new IllegalArgumentException("kind: " + kind);
+    }
+  }
+
+  private static class Key {
+
+    private final Kind kind;
+    private final ZMTPSocketType socketType;
+    private final byte[] identity;
+
+    Key(final Kind kind, final ZMTPSocketType socketType, final byte[] identity) {
+      this.kind = kind;
+      // The ZMTP/1.0 greeting and the compatibility signature do not carry the socket type
+      this.socketType = (kind == Kind.ZMTP1 || kind == Kind.ZMTP2_COMPAT_SIGNATURE)
+                        ? null : socketType;
+      this.identity = identity;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      final Key key = (Key) o;
+
+      return kind == key.kind &&
+             socketType == key.socketType &&
+             Arrays.equals(identity, key.identity);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = kind.hashCode();
+      result = 31 * result + (socketType != null ? socketType.hashCode() : 0);
+      result = 31 * result + Arrays.hashCode(identity);
+      return result;
+    }
+  }
+}
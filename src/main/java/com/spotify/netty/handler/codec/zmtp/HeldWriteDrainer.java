@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+
+/**
+ * Passes writes held by a handler on down the pipeline.
+ *
+ * <p>Writes are taken from the handler under its lock, but passed on without holding it, as a
+ * write may cause handlers further down to call back into the handler from another thread. Only
+ * one thread at a time passes writes on, so that they are not reordered. A thread that finds
+ * another one passing writes on leaves the writes it added to that thread.
+ */
+abstract class HeldWriteDrainer {
+
+  private final Object lock;
+
+  // Guarded by lock
+  private boolean draining;
+
+  private volatile AutoFlushingWriteBatcher batcher;
+  private volatile ZMTPCreditHandler creditHandler;
+  private volatile boolean lookedUp;
+
+  /**
+   * @param lock The lock guarding the held writes.
+   */
+  HeldWriteDrainer(final Object lock) {
+    this.lock = lock;
+  }
+
+  /**
+   * Pass held writes on until {@link #hasNext} returns false.
+   *
+   * @param ctx The context of the handler holding the writes, or null if the handler has not seen
+   *            any event yet.
+   */
+  void drain(final ChannelHandlerContext ctx) {
+    if (ctx == null) {
+      return;
+    }
+    while (true) {
+      synchronized (lock) {
+        if (draining || !hasNext(ctx)) {
+          return;
+        }
+        draining = true;
+      }
+      try {
+        while (true) {
+          final MessageEvent e;
+          synchronized (lock) {
+            if (!hasNext(ctx)) {
+              break;
+            }
+            e = next();
+          }
+          send(ctx, e);
+        }
+      } finally {
+        synchronized (lock) {
+          draining = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Check if a held write should be passed on now. Called with the lock held.
+   */
+  abstract boolean hasNext(ChannelHandlerContext ctx);
+
+  /**
+   * Remove the next held write. Called with the lock held, after {@link #hasNext} returned true.
+   */
+  abstract MessageEvent next();
+
+  /**
+   * Pass a write removed by {@link #next} on. Called without the lock held.
+   */
+  void send(final ChannelHandlerContext ctx, final MessageEvent e) {
+    ctx.sendDownstream(e);
+  }
+
+  /**
+   * Check if the channel, and the {@link AutoFlushingWriteBatcher} and {@link ZMTPCreditHandler}
+   * in the pipeline if any, are writable.
+   */
+  boolean isWritable(final ChannelHandlerContext ctx) {
+    if (!ctx.getChannel().isWritable()) {
+      return false;
+    }
+    if (!lookedUp) {
+      batcher = ctx.getPipeline().get(AutoFlushingWriteBatcher.class);
+      creditHandler = ctx.getPipeline().get(ZMTPCreditHandler.class);
+      lookedUp = true;
+    }
+    return (batcher == null || batcher.isWritable()) &&
+           (creditHandler == null || creditHandler.isWritable());
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * Counts the reasons reading is suspended on a channel, so that handlers suspending reading for
+ * different reasons do not resume reading on behalf of each other. Reading is suspended while at
+ * least one reason is in effect.
+ */
+class ReadSuspension {
+
+  private static final ChannelLocal<ReadSuspension> suspensions =
+      new ChannelLocal<ReadSuspension>(true) {
+        @Override
+        protected ReadSuspension initialValue(final Channel channel) {
+          return new ReadSuspension();
+        }
+      };
+
+  // Guarded by this
+  private int count;
+
+  private ReadSuspension() {
+  }
+
+  /**
+   * Add a reason to suspend reading on a channel.
+   */
+  static void suspend(final Channel channel) {
+    final ReadSuspension suspension = suspensions.get(channel);
+    synchronized (suspension) {
+      if (++suspension.count == 1) {
+        channel.setReadable(false);
+      }
+    }
+  }
+
+  /**
+   * Remove a reason to suspend reading on a channel, added with {@link #suspend(Channel)}.
+   */
+  static void resume(final Channel channel) {
+    final ReadSuspension suspension = suspensions.get(channel);
+    synchronized (suspension) {
+      if (suspension.count > 0 && --suspension.count == 0) {
+        channel.setReadable(true);
+      }
+    }
+  }
+}
@@ -4,9 +4,9 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
- * A ZMTP10Codec instance is a ChannelUpstreamHandler that, when placed in a ChannelPipeline,
- * will perform a ZMTP/1.0 handshake with the connected peer and replace itself with the proper
- * pipeline components to encode and decode ZMTP frames.
+ * A ZMTP10Codec instance is a ChannelHandler that, when placed in a ChannelPipeline,
+ * will perform a ZMTP/1.0 handshake with the connected peer and then encode and decode ZMTP
+ * frames.
  */
 public class ZMTP10Codec extends CodecBase {
 
@@ -23,25 +23,25 @@ public class ZMTP10Codec extends CodecBase {
 
   @Override
   protected ChannelBuffer onConnect() {
-    return makeZMTP1Greeting(session.getLocalIdentity());
+    return GreetingCache.get(GreetingCache.Kind.ZMTP1, session);
   }
 
-  protected ChannelBuffer inputOutput(final ChannelBuffer buffer)
-      throws IndexOutOfBoundsException, ZMTPException  {
-    byte[] remoteIdentity = readZMTP1RemoteIdentity(buffer);
-    if (listener != null) {
-      listener.handshakeDone(1, remoteIdentity);
+  protected ChannelBuffer inputOutput(final ChannelBuffer buffer) throws ZMTPException {
+    if (zmtp1GreetingLength(buffer) == -1) {
+      return null;
     }
+    done(1, readZMTP1RemoteIdentity(buffer));
     return null;
   }
 
   /**
-   * Create and return a ChannelBuffer containing an ZMTP/1.0 greeting based on on the constructor
-   * provided session.
+   * Create and return a ChannelBuffer containing an ZMTP/1.0 greeting for the specified local
+   * identity.
    *
+   * @param localIdentity the local identity
    * @return a ChannelBuffer with a greeting
    */
-  private static ChannelBuffer makeZMTP1Greeting(byte[] localIdentity) {
+  static ChannelBuffer makeZMTP1Greeting(byte[] localIdentity) {
     ChannelBuffer out = ChannelBuffers.dynamicBuffer();
     ZMTPUtils.encodeLength(localIdentity.length + 1, out);
     out.writeByte(0x00);
@@ -4,14 +4,42 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
- * A ZMTP20Codec instance is a ChannelUpstreamHandler that, when placed in a ChannelPipeline,
- * will perform a ZMTP/2.0 handshake with the connected peer and replace itself with the proper
- * pipeline components to encode and decode ZMTP frames.
+ * A ZMTP20Codec instance is a ChannelHandler that, when placed in a ChannelPipeline,
+ * will perform a ZMTP/2.0 handshake with the connected peer and then encode and decode ZMTP
+ * frames.
  */
 public class ZMTP20Codec extends CodecBase {
 
+  /**
+   * The length of the ZMTP/2.0 signature, the part of the greeting that is compatible with a
+   * ZMTP/1.0 greeting.
+   */
+  private static final int SIGNATURE_LENGTH = 10;
+
+  /**
+   * The states of the handshake.
+   */
+  private enum State {
+    /**
+     * Waiting for enough of the peer greeting to tell ZMTP/1.0 from ZMTP/2.0 peers.
+     */
+    SIGNATURE,
+    /**
+     * Waiting for the complete ZMTP/2.0 greeting, signature included.
+     */
+    GREETING,
+    /**
+     * The signature has been consumed, waiting for the rest of the ZMTP/2.0 greeting.
+     */
+    GREETING_TAIL,
+    /**
+     * The handshake is done.
+     */
+    DONE
+  }
+
   private final boolean interop;
-  private boolean splitHandshake;
+  private State state;
 
   /**
    * Construct a ZMTP20Codec with the speicfied session and optional interoperability behavior.
@@ -21,77 +49,123 @@ public class ZMTP20Codec extends CodecBase {
   public ZMTP20Codec(ZMTPSession session, boolean interop) {
     super(session);
     this.interop = interop;
+    this.state = interop ? State.SIGNATURE : State.GREETING;
   }
 
   protected ChannelBuffer onConnect() {
     if (interop) {
-      return makeZMTP2CompatSignature();
+      return GreetingCache.get(GreetingCache.Kind.ZMTP2_COMPAT_SIGNATURE, session);
     } else {
-      return makeZMTP2Greeting(true);
+      return GreetingCache.get(GreetingCache.Kind.ZMTP2, session);
     }
   }
 
   protected ChannelBuffer inputOutput(final ChannelBuffer buffer) throws ZMTPException {
-    if (splitHandshake) {
-      done(2, parseZMTP2Greeting(buffer, false));
-      return null;
-    }
+    switch (state) {
+      case SIGNATURE:
+        final int version = detectProtocolVersion(buffer);
+        if (version == 1) {
+          if (zmtp1GreetingLength(buffer) == -1) {
+            return null;
+          }
+          done(1, readZMTP1RemoteIdentity(buffer));
+          // when a ZMTP/1.0 peer is detected, just send the identity bytes. Together
+          // with the compatibility signature it makes for a valid ZMTP/1.0 greeting.
+          return ChannelBuffers.wrappedBuffer(session.getLocalIdentity());
+        } else if (version == 2) {
+          buffer.skipBytes(SIGNATURE_LENGTH);
+          state = State.GREETING_TAIL;
+          return GreetingCache.get(GreetingCache.Kind.ZMTP2_TAIL, session);
+        }
+        return null;
 
-    if (interop) {
-      buffer.markReaderIndex();
-      int version = detectProtocolVersion(buffer);
-      if (version == 1) {
-        buffer.resetReaderIndex();
-        done(version, ZMTP10Codec.readZMTP1RemoteIdentity(buffer));
-        // when a ZMTP/1.0 peer is detected, just send the identity bytes. Together
-        // with the compatibility signature it makes for a valid ZMTP/1.0 greeting.
-        return ChannelBuffers.wrappedBuffer(session.getLocalIdentity());
-      } else {
-        splitHandshake = true;
-        return makeZMTP2Greeting(false);
-      }
-    } else {
-      done(2, parseZMTP2Greeting(buffer, true));
-    }
-    return null;
-  }
+      case GREETING:
+        if (zmtp2GreetingLength(buffer, true) == -1) {
+          return null;
+        }
+        done(2, parseZMTP2Greeting(buffer, true));
+        return null;
 
+      case GREETING_TAIL:
+        if (zmtp2GreetingLength(buffer, false) == -1) {
+          return null;
+        }
+        done(2, parseZMTP2Greeting(buffer, false));
+        return null;
 
-  private void done(int version, byte[] remoteIdentity) {
-    if (listener != null) {
-      listener.handshakeDone(version, remoteIdentity);
+      default:
+        return null;
     }
   }
 
+  @Override
+  protected void done(int version, byte[] remoteIdentity) {
+    state = State.DONE;
+    super.done(version, remoteIdentity);
+  }
+
   /**
-   * Read enough bytes from buffer to deduce the remote protocol version. If the protocol
-   * version is determined to be ZMTP/1.0, reset the buffer to the beginning of buffer. If
-   * version is determined to be a later version, the buffer is not reset.
+   * Look at enough bytes from buffer to deduce the remote protocol version. No bytes are
+   * consumed.
    *
    * @param buffer the buffer of data to determine version from
-   * @return false if not enough data is available, else true
-   * @throws IndexOutOfBoundsException if there are not enough data available in buffer
+   * @return the protocol version, or 0 if not enough data is available to tell
    */
   static int detectProtocolVersion(final ChannelBuffer buffer) {
-    if (buffer.readByte() != (byte)0xff) {
+    if (!buffer.readable()) {
+      return 0;
+    }
+    final int index = buffer.readerIndex();
+    if (buffer.getByte(index) != (byte)0xff) {
       return 1;
     }
-    buffer.skipBytes(8);
-    if ((buffer.readByte() & 0x01) == 0) {
+    if (buffer.readableBytes() < SIGNATURE_LENGTH) {
+      return 0;
+    }
+    if ((buffer.getByte(index + SIGNATURE_LENGTH - 1) & 0x01) == 0) {
       return 1;
     }
     return 2;
   }
 
+  /**
+   * Return the number of octets of the ZMTP/2.0 greeting at the reader index of buffer, without
+   * consuming any of them.
+   *
+   * @param expectSignature true if the greeting starts with the 10 octet signature
+   * @return the length of the greeting, or -1 if the buffer does not hold the complete greeting
+   * @throws ZMTPException if the greeting is malformed
+   */
+  static int zmtp2GreetingLength(final ChannelBuffer buffer, final boolean expectSignature)
+      throws ZMTPException {
+    final int index = buffer.readerIndex();
+    final int offset = expectSignature ? SIGNATURE_LENGTH : 0;
+    if (expectSignature && buffer.readable() && buffer.getByte(index) != (byte)0xff) {
+      throw new ZMTPException("Illegal ZMTP/2.0 greeting, first octet not 0xff");
+    }
+    // revision, socket-type, final-short flag and identity length
+    if (buffer.readableBytes() < offset + 4) {
+      return -1;
+    }
+    final int length = offset + 4 + (buffer.getByte(index + offset + 3) & 0xff);
+    if (buffer.readableBytes() < length) {
+      return -1;
+    }
+    return length;
+  }
+
   /**
    * Make a ChannelBuffer containing a ZMTP/2.0 greeting, possibly leaving out the 10 initial
    * signature octets if includeSignature is false.
    *
+   * @param socketType       the local socket type
+   * @param localIdentity    the local identity
    * @param includeSignature true if a full greeting should be sent, false if the initial 10
    *                         octets should be left out
    * @return a ChannelBuffer containing the greeting
    */
-  private ChannelBuffer makeZMTP2Greeting(boolean includeSignature) {
+  static ChannelBuffer makeZMTP2Greeting(ZMTPSocketType socketType, byte[] localIdentity,
+                                          boolean includeSignature) {
     ChannelBuffer out = ChannelBuffers.dynamicBuffer();
     if (includeSignature) {
       ZMTPUtils.encodeLength(0, out, true);
@@ -101,12 +175,12 @@ public class ZMTP20Codec extends CodecBase {
     }
     out.writeByte(0x01);
     // socket-type
-    out.writeByte(session.getSocketType().ordinal());
+    out.writeByte(socketType.ordinal());
     // identity
     // the final-short flag octet
     out.writeByte(0x00);
-    out.writeByte(session.getLocalIdentity().length);
-    out.writeBytes(session.getLocalIdentity());
+    out.writeByte(localIdentity.length);
+    out.writeBytes(localIdentity);
     return out;
   }
 
@@ -114,9 +188,9 @@ public class ZMTP20Codec extends CodecBase {
    * Create and return a ChannelBuffer containing the ZMTP/2.0 compatibility detection signature
    * message as specified in the Backwards Compatibility section of http://rfc.zeromq.org/spec:15
    */
-  private ChannelBuffer makeZMTP2CompatSignature() {
+  static ChannelBuffer makeZMTP2CompatSignature(byte[] localIdentity) {
     ChannelBuffer out = ChannelBuffers.dynamicBuffer();
-    ZMTPUtils.encodeLength(session.getLocalIdentity().length + 1, out, true);
+    ZMTPUtils.encodeLength(localIdentity.length + 1, out, true);
     out.writeByte(0x7f);
     return out;
   }
@@ -135,7 +209,7 @@ public class ZMTP20Codec extends CodecBase {
       String s = String.format("Malfromed greeting. Byte 13 expected to be 0x00, was: 0x%02x", val);
       throw new ZMTPException(s);
     }
-    int len = buffer.readByte();
+    int len = buffer.readUnsignedByte();
     final byte[] identity = new byte[len];
     buffer.readBytes(identity);
     return identity;
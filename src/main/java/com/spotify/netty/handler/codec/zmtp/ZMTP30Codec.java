@@ -0,0 +1,411 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.util.Arrays;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * A ZMTP30Codec instance is a ChannelHandler that, when placed in a ChannelPipeline, will perform
+ * a ZMTP/3.0 handshake with the NULL security mechanism with the connected peer and then encode
+ * and decode ZMTP frames. See http://rfc.zeromq.org/spec:23
+ *
+ * <p>Without interoperability, the complete greeting and the READY command are sent in one write
+ * as soon as the channel is connected, and messages written before the handshake is done are
+ * sent right after them. Both peers must then speak ZMTP/3.0.
+ *
+ * <p>With interoperability, the codec sniffs the version of the peer like libzmq does and
+ * downgrades to ZMTP/2.0 or ZMTP/1.0 if needed, at the cost of waiting for the peer signature
+ * before sending the rest of the greeting.
+ *
+ * <p>The codec announces ZMTP/3.1 and answers PING commands, see
+ * http://rfc.zeromq.org/spec:37. With a heartbeat interval set it also sends PINGs to ZMTP/3.1
+ * peers and closes the connection when they stop responding, see {@link ZMTPHeartbeater}. PING
+ * and PONG commands are consumed by the codec and never passed upstream.
+ */
+public class ZMTP30Codec extends CodecBase {
+
+  private static final int SIGNATURE_LENGTH = 10;
+
+  /**
+   * The length of the greeting after the signature: major and minor version, mechanism, as-server
+   * and filler.
+   */
+  private static final int GREETING_TAIL_LENGTH = 54;
+
+  private static final int MECHANISM_OFFSET = 2;
+  private static final int MECHANISM_LENGTH = 20;
+  private static final byte[] NULL_MECHANISM = Arrays.copyOf("NULL".getBytes(), MECHANISM_LENGTH);
+
+  private static final byte MAJOR_VERSION = 0x03;
+  private static final byte MINOR_VERSION = 0x01;
+
+  /**
+   * The states of the handshake.
+   */
+  private enum State {
+    /**
+     * Waiting for enough of the peer greeting to tell ZMTP/1.0 from later peers.
+     */
+    SIGNATURE,
+    /**
+     * The signature has been consumed, waiting for the major version of the peer.
+     */
+    MAJOR_VERSION,
+    /**
+     * Waiting for the rest of a ZMTP/2.0 greeting, revision included.
+     */
+    ZMTP2_GREETING_TAIL,
+    /**
+     * Waiting for the complete ZMTP/3.0 greeting, signature included.
+     */
+    GREETING,
+    /**
+     * The signature has been consumed, waiting for the rest of the ZMTP/3.0 greeting.
+     */
+    GREETING_TAIL,
+    /**
+     * Waiting for the READY command of the peer.
+     */
+    READY,
+    /**
+     * The handshake is done.
+     */
+    DONE
+  }
+
+  private final boolean interop;
+  private State state;
+  private boolean peerSupportsHeartbeats;
+  private ChannelHandlerContext ctx;
+
+  private volatile ZMTPHeartbeater heartbeater = ZMTPHeartbeater.getDefault();
+  private volatile long heartbeatInterval;
+  private volatile long heartbeatTimeout;
+  private volatile long heartbeatTtl;
+  private volatile ZMTPHeartbeater.Heartbeat heartbeat;
+
+  /**
+   * Construct a ZMTP30Codec with the specified session and optional interoperability behavior.
+   *
+   * @param session the session that configures this codec
+   * @param interop whether this socket should detect and downgrade to ZMTP/2.0 and ZMTP/1.0 peers
+   */
+  public ZMTP30Codec(ZMTPSession session, boolean interop) {
+    super(session);
+    this.interop = interop;
+    this.state = interop ? State.SIGNATURE : State.GREETING;
+  }
+
+  /**
+   * Get the heartbeater that sends PINGs and detects dead peers.
+   */
+  public ZMTPHeartbeater getHeartbeater() {
+    return heartbeater;
+  }
+
+  /**
+   * Set the heartbeater that sends PINGs and detects dead peers. Defaults to
+   * {@link ZMTPHeartbeater#getDefault()}.
+   */
+  public void setHeartbeater(final ZMTPHeartbeater heartbeater) {
+    if (heartbeater == null) {
+      throw new NullPointerException("heartbeater");
+    }
+    this.heartbeater = heartbeater;
+  }
+
+  /**
+   * Get the interval in milliseconds between PINGs sent to the peer, or 0 if disabled.
+   */
+  public long getHeartbeatInterval() {
+    return heartbeatInterval;
+  }
+
+  /**
+   * Set the interval in milliseconds between PINGs sent to the peer. Zero, the default, disables
+   * sending PINGs. Must be set before the handshake is done.
+   */
+  public void setHeartbeatInterval(final long heartbeatInterval) {
+    if (heartbeatInterval < 0) {
+      throw new IllegalArgumentException("heartbeatInterval: " + heartbeatInterval);
+    }
+    this.heartbeatInterval = heartbeatInterval;
+  }
+
+  /**
+   * Get the time in milliseconds to wait for any traffic after a PING before closing the
+   * connection, or 0 if the heartbeat interval is used.
+   */
+  public long getHeartbeatTimeout() {
+    return heartbeatTimeout;
+  }
+
+  /**
+   * Set the time in milliseconds to wait for any traffic after a PING before closing the
+   * connection. Zero, the default, means the heartbeat interval. Must be set before the handshake
+   * is done.
+   */
+  public void setHeartbeatTimeout(final long heartbeatTimeout) {
+    if (heartbeatTimeout < 0) {
+      throw new IllegalArgumentException("heartbeatTimeout: " + heartbeatTimeout);
+    }
+    this.heartbeatTimeout = heartbeatTimeout;
+  }
+
+  /**
+   * Get the time to live in milliseconds announced in PINGs, or 0 if none.
+   */
+  public long getHeartbeatTtl() {
+    return heartbeatTtl;
+  }
+
+  /**
+   * Set the time to live in milliseconds announced in PINGs, after which the peer may close the
+   * connection if it has received nothing. It is sent rounded down to tenths of a second. Zero,
+   * the default, announces no time to live. Must be set before the handshake is done.
+   */
+  public void setHeartbeatTtl(final long heartbeatTtl) {
+    if (heartbeatTtl < 0 || heartbeatTtl / 100 > ZMTPCommand.MAX_PING_TTL) {
+      throw new IllegalArgumentException("heartbeatTtl: " + heartbeatTtl);
+    }
+    this.heartbeatTtl = heartbeatTtl;
+  }
+
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    this.ctx = ctx;
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final ZMTPHeartbeater.Heartbeat heartbeat = this.heartbeat;
+    if (heartbeat != null) {
+      heartbeat.read();
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    // Data decoded while closing may still start the heartbeat, so stop it afterwards
+    super.channelClosed(ctx, e);
+    final ZMTPHeartbeater.Heartbeat heartbeat = this.heartbeat;
+    if (heartbeat != null) {
+      heartbeater.unregister(heartbeat);
+    }
+  }
+
+  @Override
+  protected ChannelBuffer onConnect() {
+    if (interop) {
+      return GreetingCache.get(GreetingCache.Kind.ZMTP2_COMPAT_SIGNATURE, session);
+    } else {
+      return GreetingCache.get(GreetingCache.Kind.ZMTP3, session);
+    }
+  }
+
+  @Override
+  int knownVersion() {
+    return interop ? 0 : 3;
+  }
+
+  protected ChannelBuffer inputOutput(final ChannelBuffer buffer) throws ZMTPException {
+    switch (state) {
+      case SIGNATURE:
+        final int version = ZMTP20Codec.detectProtocolVersion(buffer);
+        if (version == 1) {
+          if (zmtp1GreetingLength(buffer) == -1) {
+            return null;
+          }
+          done(1, readZMTP1RemoteIdentity(buffer));
+          // when a ZMTP/1.0 peer is detected, just send the identity bytes. Together
+          // with the compatibility signature it makes for a valid ZMTP/1.0 greeting.
+          return ChannelBuffers.wrappedBuffer(session.getLocalIdentity());
+        } else if (version == 2) {
+          buffer.skipBytes(SIGNATURE_LENGTH);
+          state = State.MAJOR_VERSION;
+          return ChannelBuffers.wrappedBuffer(new byte[]{MAJOR_VERSION});
+        }
+        return null;
+
+      case MAJOR_VERSION:
+        if (!buffer.readable()) {
+          return null;
+        }
+        if (buffer.getByte(buffer.readerIndex()) < MAJOR_VERSION) {
+          // A ZMTP/2.0 peer has already been sent our major version in place of the revision
+          state = State.ZMTP2_GREETING_TAIL;
+          final ChannelBuffer tail = GreetingCache.get(GreetingCache.Kind.ZMTP2_TAIL, session);
+          tail.skipBytes(1);
+          return tail;
+        }
+        state = State.GREETING_TAIL;
+        return GreetingCache.get(GreetingCache.Kind.ZMTP3_TAIL, session);
+
+      case ZMTP2_GREETING_TAIL:
+        if (ZMTP20Codec.zmtp2GreetingLength(buffer, false) == -1) {
+          return null;
+        }
+        done(2, ZMTP20Codec.parseZMTP2Greeting(buffer, false));
+        return null;
+
+      case GREETING:
+        if (buffer.readableBytes() < SIGNATURE_LENGTH + GREETING_TAIL_LENGTH) {
+          if (buffer.readable() && buffer.getByte(buffer.readerIndex()) != (byte) 0xff) {
+            throw new ZMTPException("Illegal ZMTP/3.0 greeting, first octet not 0xff");
+          }
+          return null;
+        }
+        if (buffer.getByte(buffer.readerIndex()) != (byte) 0xff ||
+            (buffer.getByte(buffer.readerIndex() + SIGNATURE_LENGTH - 1) & 0x01) == 0) {
+          throw new ZMTPException("Illegal ZMTP/3.0 greeting, malformed signature");
+        }
+        buffer.skipBytes(SIGNATURE_LENGTH);
+        parseGreetingTail(buffer);
+        state = State.READY;
+        return inputOutput(buffer);
+
+      case GREETING_TAIL:
+        if (buffer.readableBytes() < GREETING_TAIL_LENGTH) {
+          return null;
+        }
+        parseGreetingTail(buffer);
+        state = State.READY;
+        return inputOutput(buffer);
+
+      case READY:
+        if (buffer.readable() && !ZMTPCommand.isCommand(buffer)) {
+          throw new ZMTPException("Expected a READY command from the peer");
+        }
+        final ZMTPCommand command = ZMTPCommand.read(buffer);
+        if (command == null) {
+          return null;
+        }
+        done(3, parseReady(command));
+        return null;
+
+      default:
+        return null;
+    }
+  }
+
+  @Override
+  protected void done(int version, byte[] remoteIdentity) {
+    state = State.DONE;
+    super.done(version, remoteIdentity);
+    if (peerSupportsHeartbeats && heartbeatInterval > 0) {
+      startHeartbeat();
+    }
+  }
+
+  @Override
+  Object handleCommand(final ChannelHandlerContext ctx, final ZMTPCommand command)
+      throws Exception {
+    if (ZMTPCommand.PING.equals(command.getName())) {
+      final int ttl = command.getPingTtl();
+      if (ttl > 0) {
+        startHeartbeat().setRemoteTtl(MILLISECONDS.toNanos(ttl * 100L));
+      }
+      writeUrgentCommand(ctx, ZMTPCommand.pong(command.getPingContext()));
+      return null;
+    }
+    if (ZMTPCommand.PONG.equals(command.getName())) {
+      // The read has already been recorded
+      return null;
+    }
+    return super.handleCommand(ctx, command);
+  }
+
+  /**
+   * Start heartbeating this connection, unless already started.
+   */
+  private ZMTPHeartbeater.Heartbeat startHeartbeat() {
+    if (heartbeat == null) {
+      final long interval = MILLISECONDS.toNanos(heartbeatInterval);
+      final long timeout = heartbeatTimeout > 0 ? MILLISECONDS.toNanos(heartbeatTimeout) : interval;
+      heartbeat = heartbeater.register(this, ctx, interval, timeout, (int) (heartbeatTtl / 100));
+    }
+    return heartbeat;
+  }
+
+  /**
+   * Parse the part of a ZMTP/3.0 greeting that follows the signature, checking that the peer
+   * speaks ZMTP/3.0 or later with the NULL mechanism.
+   */
+  private void parseGreetingTail(final ChannelBuffer buffer) throws ZMTPException {
+    final int index = buffer.readerIndex();
+    final int major = buffer.getByte(index);
+    if (major < MAJOR_VERSION) {
+      throw new ZMTPException("Peer does not speak ZMTP/3.0, major version: " + major);
+    }
+    final int minor = buffer.getByte(index + 1);
+    peerSupportsHeartbeats = major > MAJOR_VERSION || minor >= 1;
+    final byte[] mechanism = new byte[MECHANISM_LENGTH];
+    buffer.getBytes(index + MECHANISM_OFFSET, mechanism);
+    if (!Arrays.equals(NULL_MECHANISM, mechanism)) {
+      throw new ZMTPException("Unsupported security mechanism: " + ZMTPUtils.toString(mechanism));
+    }
+    buffer.skipBytes(GREETING_TAIL_LENGTH);
+  }
+
+  /**
+   * Parse the READY command of the peer and return the remote identity.
+   */
+  static byte[] parseReady(final ZMTPCommand command) throws ZMTPException {
+    if (ZMTPCommand.ERROR.equals(command.getName())) {
+      final ChannelBuffer data = command.getData().duplicate();
+      String reason = "";
+      if (data.readable()) {
+        final int length = Math.min(data.readUnsignedByte(), data.readableBytes());
+        reason = data.toString(data.readerIndex(), length, CharsetUtil.US_ASCII);
+      }
+      throw new ZMTPException("Peer sent ERROR: " + reason);
+    }
+    if (!ZMTPCommand.READY.equals(command.getName())) {
+      throw new ZMTPException("Expected a READY command from the peer, got " + command.getName());
+    }
+    return command.getProperties().get(ZMTPCommand.IDENTITY);
+  }
+
+  /**
+   * Make a ChannelBuffer containing a ZMTP/3.0 greeting for the NULL mechanism followed by a READY
+   * command, possibly leaving out the signature and major version if includeSignature is false.
+   *
+   * @param socketType       the local socket type
+   * @param localIdentity    the local identity
+   * @param includeSignature true if a full greeting should be sent, false if the initial 11
+   *                         octets should be left out
+   * @return a ChannelBuffer containing the greeting
+   */
+  static ChannelBuffer makeZMTP3Greeting(ZMTPSocketType socketType, byte[] localIdentity,
+                                         boolean includeSignature) {
+    final ZMTPCommand ready = ZMTPCommand.ready(socketType, localIdentity);
+    final ChannelBuffer out = ChannelBuffers.buffer(
+        SIGNATURE_LENGTH + GREETING_TAIL_LENGTH + ready.size());
+    if (includeSignature) {
+      ZMTPUtils.encodeLength(0, out, true);
+      // last byte of signature
+      out.writeByte(0x7f);
+      out.writeByte(MAJOR_VERSION);
+    }
+    out.writeByte(MINOR_VERSION);
+    out.writeBytes(NULL_MECHANISM);
+    // as-server, not used by the NULL mechanism
+    out.writeByte(0x00);
+    // filler
+    out.writeZero(31);
+    ready.write(out);
+    return out;
+  }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Suspends reading from a connection while the application is behind on processing the messages
+ * received on it, so that the TCP window pushes back on the sender.
+ *
+ * <p>One instance is placed after the ZMTP codec in the pipeline of each connection. Every {@link
+ * ZMTPIncomingMessage} passed on by this handler is outstanding until its consumer calls {@link
+ * ZMTPIncomingMessage#release()}, typically once a worker thread is done with it. Reading is
+ * suspended when the number or the total size of outstanding messages exceeds its high water
+ * mark, and resumed when both are back at or below their low water marks.
+ */
+public class ZMTPBackpressureHandler extends SimpleChannelUpstreamHandler {
+
+  public static final int DEFAULT_HIGH_WATER_MARK = 1000;
+  public static final int DEFAULT_LOW_WATER_MARK = 500;
+  public static final long DEFAULT_HIGH_WATER_MARK_BYTES = 64 * 1024 * 1024;
+  public static final long DEFAULT_LOW_WATER_MARK_BYTES = 32 * 1024 * 1024;
+
+  private final AtomicInteger pendingMessages = new AtomicInteger();
+  private final AtomicLong pendingBytes = new AtomicLong();
+  private final AtomicLong suspensions = new AtomicLong();
+
+  private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+  private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+  private volatile long highWaterMarkBytes = DEFAULT_HIGH_WATER_MARK_BYTES;
+  private volatile long lowWaterMarkBytes = DEFAULT_LOW_WATER_MARK_BYTES;
+
+  private volatile Channel channel;
+
+  // Written with this locked
+  private volatile boolean suspended;
+
+  private final ZMTPIncomingMessage.ReleaseListener releaseListener =
+      new ZMTPIncomingMessage.ReleaseListener() {
+        @Override
+        public void released(final ZMTPIncomingMessage message) {
+          pendingMessages.decrementAndGet();
+          pendingBytes.addAndGet(-message.getByteSize());
+          if (suspended) {
+            resume();
+          }
+        }
+      };
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    if (e.getMessage() instanceof ZMTPIncomingMessage) {
+      final ZMTPIncomingMessage message = (ZMTPIncomingMessage) e.getMessage();
+      channel = ctx.getChannel();
+      message.addReleaseListener(releaseListener);
+      pendingMessages.incrementAndGet();
+      pendingBytes.addAndGet(message.getByteSize());
+      if (!suspended && isAboveHighWaterMark()) {
+        suspend();
+      }
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  private synchronized void suspend() {
+    if (suspended || !isAboveHighWaterMark()) {
+      return;
+    }
+    suspended = true;
+    suspensions.incrementAndGet();
+    ReadSuspension.suspend(channel);
+  }
+
+  private synchronized void resume() {
+    if (!suspended || !isAtOrBelowLowWaterMark()) {
+      return;
+    }
+    suspended = false;
+    ReadSuspension.resume(channel);
+  }
+
+  private boolean isAboveHighWaterMark() {
+    return pendingMessages.get() > highWaterMark || pendingBytes.get() > highWaterMarkBytes;
+  }
+
+  private boolean isAtOrBelowLowWaterMark() {
+    return pendingMessages.get() <= lowWaterMark && pendingBytes.get() <= lowWaterMarkBytes;
+  }
+
+  /**
+   * Get the number of messages passed on and not yet released.
+   */
+  public int getPendingMessages() {
+    return pendingMessages.get();
+  }
+
+  /**
+   * Get the total size of the messages passed on and not yet released.
+   */
+  public long getPendingBytes() {
+    return pendingBytes.get();
+  }
+
+  /**
+   * Returns true if reading is currently suspended by this handler.
+   */
+  public boolean isSuspended() {
+    return suspended;
+  }
+
+  /**
+   * Get the number of times this handler has suspended reading.
+   */
+  public long getSuspensions() {
+    return suspensions.get();
+  }
+
+  /**
+   * Get the number of pending messages above which reading is suspended.
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Set the number of pending messages above which reading is suspended.
+   */
+  public void setHighWaterMark(final int highWaterMark) {
+    if (highWaterMark < lowWaterMark) {
+      throw new IllegalArgumentException(
+          "highWaterMark must be greater than or equal to lowWaterMark (" + lowWaterMark + ")");
+    }
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Get the number of pending messages at or below which reading is resumed.
+   */
+  public int getLowWaterMark() {
+    return lowWaterMark;
+  }
+
+  /**
+   * Set the number of pending messages at or below which reading is resumed.
+   */
+  public void setLowWaterMark(final int lowWaterMark) {
+    if (lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+      throw new IllegalArgumentException(
+          "lowWaterMark must be between 0 and highWaterMark (" + highWaterMark + ")");
+    }
+    this.lowWaterMark = lowWaterMark;
+  }
+
+  /**
+   * Get the total size of pending messages above which reading is suspended.
+   */
+  public long getHighWaterMarkBytes() {
+    return highWaterMarkBytes;
+  }
+
+  /**
+   * Set the total size of pending messages above which reading is suspended.
+   */
+  public void setHighWaterMarkBytes(final long highWaterMarkBytes) {
+    if (highWaterMarkBytes < lowWaterMarkBytes) {
+      throw new IllegalArgumentException(
+          "highWaterMarkBytes must be greater than or equal to lowWaterMarkBytes (" +
+          lowWaterMarkBytes + ")");
+    }
+    this.highWaterMarkBytes = highWaterMarkBytes;
+  }
+
+  /**
+   * Get the total size of pending messages at or below which reading is resumed.
+   */
+  public long getLowWaterMarkBytes() {
+    return lowWaterMarkBytes;
+  }
+
+  /**
+   * Set the total size of pending messages at or below which reading is resumed.
+   */
+  public void setLowWaterMarkBytes(final long lowWaterMarkBytes) {
+    if (lowWaterMarkBytes < 0 || lowWaterMarkBytes > highWaterMarkBytes) {
+      throw new IllegalArgumentException(
+          "lowWaterMarkBytes must be between 0 and highWaterMarkBytes (" + highWaterMarkBytes +
+          ")");
+    }
+    this.lowWaterMarkBytes = lowWaterMarkBytes;
+  }
+}
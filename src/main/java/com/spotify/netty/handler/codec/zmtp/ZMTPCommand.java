@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.COMMAND_FLAG;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static org.jboss.netty.buffer.ChannelBuffers.swapLong;
+
+/**
+ * A ZMTP/3.0 command, as specified in http://rfc.zeromq.org/spec:23, or a ZMTP/3.1 heartbeat or
+ * subscription command, see http://rfc.zeromq.org/spec:37. Commands are sent in command frames,
+ * each holding a command name and command specific data.
+ */
+public class ZMTPCommand {
+
+  public static final String READY = "READY";
+  public static final String ERROR = "ERROR";
+  public static final String PING = "PING";
+  public static final String PONG = "PONG";
+  public static final String SUBSCRIBE = "SUBSCRIBE";
+  public static final String CANCEL = "CANCEL";
+
+  /**
+   * Grants the peer credit to send more messages, see {@link ZMTPCreditHandler}. Not part of the
+   * ZMTP specification, only understood by peers using a {@link ZMTPCreditHandler}.
+   */
+  public static final String CREDIT = "CREDIT";
+
+  /**
+   * The maximum number of context octets in a PING command.
+   */
+  public static final int MAX_PING_CONTEXT_LENGTH = 16;
+
+  /**
+   * The maximum time to live of a PING command, in tenths of a second.
+   */
+  public static final int MAX_PING_TTL = 0xffff;
+
+  /**
+   * The metadata property carrying the socket type in a READY command.
+   */
+  public static final String SOCKET_TYPE = "Socket-Type";
+
+  /**
+   * The metadata property carrying the identity in a READY command.
+   */
+  public static final String IDENTITY = "Identity";
+
+  private static final byte LONG_FLAG = 0x02;
+
+  private final String name;
+  private final ChannelBuffer data;
+
+  /**
+   * Create a command.
+   *
+   * @param name The name of the command, at most 255 ASCII characters.
+   * @param data The command data.
+   */
+  public ZMTPCommand(final String name, final ChannelBuffer data) {
+    if (name == null) {
+      throw new NullPointerException("name");
+    }
+    if (data == null) {
+      throw new NullPointerException("data");
+    }
+    if (name.length() > 255) {
+      throw new IllegalArgumentException("name too long: " + name);
+    }
+    this.name = name;
+    this.data = data;
+  }
+
+  /**
+   * Create a READY command with the specified metadata properties.
+   */
+  public static ZMTPCommand ready(final Map<String, byte[]> properties) {
+    return new ZMTPCommand(READY, encodeProperties(properties));
+  }
+
+  /**
+   * Create a READY command carrying the socket type and identity of a session.
+   */
+  static ZMTPCommand ready(final ZMTPSocketType socketType, final byte[] identity) {
+    final Map<String, byte[]> properties = new LinkedHashMap<String, byte[]>();
+    properties.put(SOCKET_TYPE, socketType.name().getBytes(CharsetUtil.US_ASCII));
+    properties.put(IDENTITY, identity);
+    return ready(properties);
+  }
+
+  /**
+   * Create a PING command.
+   *
+   * @param ttl     The time in tenths of a second after which the peer may close the connection
+   *                if it receives no traffic, or 0 for no limit. At most {@link #MAX_PING_TTL}.
+   * @param context Up to {@link #MAX_PING_CONTEXT_LENGTH} octets that the peer echoes back in its
+   *                PONG command.
+   */
+  public static ZMTPCommand ping(final int ttl, final ChannelBuffer context) {
+    if (ttl < 0 || ttl > MAX_PING_TTL) {
+      throw new IllegalArgumentException("ttl: " + ttl);
+    }
+    if (context.readableBytes() > MAX_PING_CONTEXT_LENGTH) {
+      throw new IllegalArgumentException("context too long: " + context.readableBytes());
+    }
+    final ChannelBuffer data = ChannelBuffers.buffer(2 + context.readableBytes());
+    data.writeShort(ttl);
+    data.writeBytes(context, context.readerIndex(), context.readableBytes());
+    return new ZMTPCommand(PING, data);
+  }
+
+  /**
+   * Create a PONG command answering a PING command with the specified context.
+   */
+  public static ZMTPCommand pong(final ChannelBuffer context) {
+    return new ZMTPCommand(PONG, context);
+  }
+
+  /**
+   * Create a CREDIT command granting the peer credit to send more messages.
+   *
+   * @param messages The number of messages granted.
+   * @param bytes    The total size of the frames of the messages granted.
+   */
+  public static ZMTPCommand credit(final int messages, final long bytes) {
+    if (messages < 0) {
+      throw new IllegalArgumentException("messages: " + messages);
+    }
+    if (bytes < 0) {
+      throw new IllegalArgumentException("bytes: " + bytes);
+    }
+    final ChannelBuffer data = ChannelBuffers.buffer(12);
+    data.writeInt(messages);
+    data.writeLong(bytes);
+    return new ZMTPCommand(CREDIT, data);
+  }
+
+  /**
+   * Return the name of the command.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Return the command data.
+   *
+   * <p>Note: buffer contents and indices must not be modified.
+   */
+  public ChannelBuffer getData() {
+    return data;
+  }
+
+  /**
+   * Parse the command data as metadata properties, as carried by READY commands.
+   *
+   * @throws ZMTPException if the data is not well formed metadata
+   */
+  public Map<String, byte[]> getProperties() throws ZMTPException {
+    final ChannelBuffer buffer = data.duplicate();
+    final Map<String, byte[]> properties = new LinkedHashMap<String, byte[]>();
+    while (buffer.readable()) {
+      final int nameLength = buffer.readUnsignedByte();
+      if (buffer.readableBytes() < nameLength + 4) {
+        throw new ZMTPException("Malformed metadata in " + name + " command");
+      }
+      final String propertyName = buffer.readBytes(nameLength).toString(CharsetUtil.US_ASCII);
+      final long valueLength = buffer.readUnsignedInt();
+      if (buffer.readableBytes() < valueLength) {
+        throw new ZMTPException("Malformed metadata in " + name + " command");
+      }
+      final byte[] value = new byte[(int) valueLength];
+      buffer.readBytes(value);
+      properties.put(propertyName, value);
+    }
+    return properties;
+  }
+
+  /**
+   * Return the time to live of a PING command, in tenths of a second.
+   *
+   * @throws ZMTPException if this is not a well formed PING command
+   */
+  public int getPingTtl() throws ZMTPException {
+    checkPing();
+    return data.getUnsignedShort(data.readerIndex());
+  }
+
+  /**
+   * Return the context of a PING command, to be echoed back in a PONG command.
+   *
+   * @throws ZMTPException if this is not a well formed PING command
+   */
+  public ChannelBuffer getPingContext() throws ZMTPException {
+    checkPing();
+    final int length = Math.min(data.readableBytes() - 2, MAX_PING_CONTEXT_LENGTH);
+    return data.slice(data.readerIndex() + 2, length);
+  }
+
+  /**
+   * Return the number of messages granted by a CREDIT command.
+   *
+   * @throws ZMTPException if this is not a well formed CREDIT command
+   */
+  public int getCreditMessages() throws ZMTPException {
+    checkCredit();
+    return data.getInt(data.readerIndex());
+  }
+
+  /**
+   * Return the total size of the frames of the messages granted by a CREDIT command.
+   *
+   * @throws ZMTPException if this is not a well formed CREDIT command
+   */
+  public long getCreditBytes() throws ZMTPException {
+    checkCredit();
+    return data.getLong(data.readerIndex() + 4);
+  }
+
+  private void checkCredit() throws ZMTPException {
+    if (!CREDIT.equals(name) || data.readableBytes() < 12 ||
+        data.getInt(data.readerIndex()) < 0 || data.getLong(data.readerIndex() + 4) < 0) {
+      throw new ZMTPException("Malformed CREDIT command");
+    }
+  }
+
+  private void checkPing() throws ZMTPException {
+    if (!PING.equals(name) || data.readableBytes() < 2) {
+      throw new ZMTPException("Malformed PING command");
+    }
+  }
+
+  /**
+   * Return the number of bytes needed to write this command as a command frame.
+   */
+  public int size() {
+    final int bodySize = bodySize();
+    return (bodySize < 256 ? 2 : 9) + bodySize;
+  }
+
+  /**
+   * Write this command as a command frame.
+   */
+  public void write(final ChannelBuffer buffer) {
+    ZMTPUtils.encodeZMTP2FrameHeader(bodySize(), COMMAND_FLAG, buffer);
+    buffer.writeByte(name.length());
+    buffer.writeBytes(name.getBytes(CharsetUtil.US_ASCII));
+    buffer.writeBytes(data, data.readerIndex(), data.readableBytes());
+  }
+
+  /**
+   * Return true if the frame at the reader index of buffer is a command frame. Returns false if
+   * the buffer is empty.
+   */
+  static boolean isCommand(final ChannelBuffer buffer) {
+    return buffer.readable() && (buffer.getByte(buffer.readerIndex()) & COMMAND_FLAG) != 0;
+  }
+
+  /**
+   * Read a command frame from a buffer, consuming it only if it is complete.
+   *
+   * @return the command, or null if the buffer does not hold the complete frame
+   * @throws ZMTPException if the command frame is malformed
+   */
+  static ZMTPCommand read(final ChannelBuffer buffer) throws ZMTPException {
+    final int index = buffer.readerIndex();
+    if (buffer.readableBytes() < 2) {
+      return null;
+    }
+    final byte flags = buffer.getByte(index);
+    final int headerLength;
+    final long bodySize;
+    if ((flags & LONG_FLAG) == 0) {
+      headerLength = 2;
+      bodySize = buffer.getUnsignedByte(index + 1);
+    } else {
+      if (buffer.readableBytes() < 9) {
+        return null;
+      }
+      headerLength = 9;
+      bodySize = buffer.order() == BIG_ENDIAN ? buffer.getLong(index + 1)
+                                              : swapLong(buffer.getLong(index + 1));
+      if (bodySize > Integer.MAX_VALUE) {
+        throw new ZMTPException("Command frame too large: " + bodySize);
+      }
+    }
+    if (buffer.readableBytes() < headerLength + bodySize) {
+      return null;
+    }
+    if (bodySize < 1) {
+      throw new ZMTPException("Malformed command frame, missing command name");
+    }
+    final int nameLength = buffer.getUnsignedByte(index + headerLength);
+    if (nameLength + 1 > bodySize) {
+      throw new ZMTPException("Malformed command frame, command name too long");
+    }
+    buffer.skipBytes(headerLength + 1);
+    final String name = buffer.readBytes(nameLength).toString(CharsetUtil.US_ASCII);
+    final ChannelBuffer data = buffer.readSlice((int) bodySize - 1 - nameLength);
+    return new ZMTPCommand(name, data);
+  }
+
+  private int bodySize() {
+    return 1 + name.length() + data.readableBytes();
+  }
+
+  private static ChannelBuffer encodeProperties(final Map<String, byte[]> properties) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    for (final Map.Entry<String, byte[]> property : properties.entrySet()) {
+      final byte[] name = property.getKey().getBytes(CharsetUtil.US_ASCII);
+      if (name.length > 255) {
+        throw new IllegalArgumentException("property name too long: " + property.getKey());
+      }
+      buffer.writeByte(name.length);
+      buffer.writeBytes(name);
+      buffer.writeInt(property.getValue().length);
+      buffer.writeBytes(property.getValue());
+    }
+    return buffer;
+  }
+
+  @Override
+  public String toString() {
+    return "ZMTPCommand{" +
+           "name='" + name + '\'' +
+           ", data=" + ZMTPUtils.toString(data) +
+           '}';
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conflates outgoing messages per topic, for feeds where only the latest message of a topic
+ * matters, e.g. market data.
+ *
+ * <p>One instance is placed after the ZMTP codec in the pipeline of each connection. Outgoing
+ * {@link ZMTPMessage}s are passed on to the codec while the channel, and the {@link
+ * AutoFlushingWriteBatcher} and {@link ZMTPCreditHandler} in the pipeline if any, are writable.
+ * Otherwise they are held here, before they are encoded, keyed by their first content frame. A
+ * message written while a message with the same topic is held replaces the held message in place,
+ * i.e. it is sent in the position of the message it replaced, and the write future of the replaced
+ * message is completed successfully. At most one message per topic is thus held, and a lagging
+ * peer only receives the latest message of each topic once it catches up.
+ *
+ * <p>Other writes, e.g. already encoded buffers, are passed on as is.
+ */
+public class ZMTPConflatingHandler extends SimpleChannelHandler {
+
+  // Guarded by itself
+  private final LinkedHashMap<ZMTPFrame, MessageEvent> held =
+      new LinkedHashMap<ZMTPFrame, MessageEvent>();
+  private long heldBytes;
+  private boolean closed;
+
+  private final HeldWriteDrainer drainer = new HeldWriteDrainer(held) {
+    @Override
+    boolean hasNext(final ChannelHandlerContext ctx) {
+      return !held.isEmpty() && isWritable(ctx);
+    }
+
+    /**
+     * Remove the message of the topic that was held first. A replaced message keeps the position
+     * of its topic.
+     */
+    @Override
+    MessageEvent next() {
+      final Iterator<Map.Entry<ZMTPFrame, MessageEvent>> it = held.entrySet().iterator();
+      final MessageEvent e = it.next().getValue();
+      it.remove();
+      heldBytes -= size(e);
+      return e;
+    }
+  };
+
+  private final AtomicLong conflatedMessages = new AtomicLong();
+  private final AtomicLong conflatedBytes = new AtomicLong();
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final ZMTPMessage message = ZMTPUtils.outgoingMessage(e.getMessage());
+    if (message == null) {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    final ZMTPFrame topic = message.getContent().isEmpty()
+                            ? ZMTPFrame.EMPTY_FRAME
+                            : message.getContent().get(0);
+    final long size = ZMTPUtils.payloadSize(message);
+    final MessageEvent replaced;
+    synchronized (held) {
+      if (closed) {
+        e.getFuture().setFailure(new ClosedChannelException());
+        return;
+      }
+      replaced = held.put(topic, e);
+      heldBytes += size;
+      if (replaced != null) {
+        final long replacedSize = size(replaced);
+        heldBytes -= replacedSize;
+        conflatedMessages.incrementAndGet();
+        conflatedBytes.addAndGet(replacedSize);
+      }
+    }
+
+    if (replaced != null) {
+      replaced.getFuture().setSuccess();
+    }
+    drainer.drain(ctx);
+  }
+
+  @Override
+  public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    super.channelInterestChanged(ctx, e);
+    drainer.drain(ctx);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final List<MessageEvent> pending;
+    synchronized (held) {
+      closed = true;
+      pending = new ArrayList<MessageEvent>(held.values());
+      held.clear();
+      heldBytes = 0;
+    }
+    for (final MessageEvent event : pending) {
+      event.getFuture().setFailure(new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * Get the total size of the frames of a written message.
+   */
+  private static long size(final MessageEvent e) {
+    return ZMTPUtils.payloadSize(ZMTPUtils.outgoingMessage(e.getMessage()));
+  }
+
+  /**
+   * Get the number of topics that currently have a message held.
+   */
+  public int getHeldMessages() {
+    synchronized (held) {
+      return held.size();
+    }
+  }
+
+  /**
+   * Get the total size of the frames of the messages currently held.
+   */
+  public long getHeldBytes() {
+    synchronized (held) {
+      return heldBytes;
+    }
+  }
+
+  /**
+   * Get the number of held messages that were replaced by a newer message with the same topic.
+   */
+  public long getConflatedMessages() {
+    return conflatedMessages.get();
+  }
+
+  /**
+   * Get the total size of the frames of the messages that were replaced, i.e. the number of bytes
+   * that conflation saved from being sent.
+   */
+  public long getConflatedBytes() {
+    return conflatedBytes.get();
+  }
+}
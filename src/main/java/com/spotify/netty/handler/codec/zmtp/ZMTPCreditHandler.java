@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.ExpiringMessage;
+import com.spotify.netty.handler.queue.UrgentMessage;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Credit based flow control between two peers that both use this handler, on top of ZMTP/3.0
+ * command frames.
+ *
+ * <p>One instance is placed after the ZMTP codec in the pipeline of each connection, on both
+ * ends. When the handshake is done, each end grants the other a window of messages and bytes with
+ * a {@link ZMTPCommand#CREDIT} command. Sending a message uses up one message and the total size
+ * of its frames of the credit granted by the peer. The receiver hands out new credit as its
+ * consumers {@link ZMTPIncomingMessage#release() release} received messages, in batches of at
+ * least half the window. A receiver thus never holds more than its window of unreleased messages,
+ * no matter how fast the sender writes, and no message is dropped.
+ *
+ * <p>Messages written while out of credit are held by this handler, which is not writable until
+ * new credit arrives. Combine it with a {@link ZMTPHighWaterMarkHandler} after it in the pipeline
+ * to bound the number of messages held by the sender, e.g. blocking writers with the {@link
+ * ZMTPHighWaterMarkHandler.Policy#BLOCK} policy. A message is sent as long as any byte credit is
+ * left, even if it is larger than the credit, so that messages larger than the window can be sent.
+ *
+ * <p>A message wrapped in an {@link ExpiringMessage} whose deadline passes while it is held is
+ * dropped without using up any credit. Messages that are sent lose their deadline, as the peer
+ * has to receive every message that credit was spent on.
+ *
+ * <p>On connections that turn out to use an earlier protocol version this handler does nothing.
+ */
+public class ZMTPCreditHandler extends SimpleChannelHandler {
+
+  public static final int DEFAULT_WINDOW = 1000;
+  public static final long DEFAULT_WINDOW_BYTES = 16 * 1024 * 1024;
+
+  private final int window;
+  private final long windowBytes;
+
+  // Guarded by queue
+  private final ArrayDeque<MessageEvent> queue = new ArrayDeque<MessageEvent>();
+  private int messageCredit;
+  private long byteCredit;
+  private boolean connected;
+  private boolean closed;
+
+  private final HeldWriteDrainer drainer = new HeldWriteDrainer(queue) {
+    @Override
+    boolean hasNext(final ChannelHandlerContext ctx) {
+      return canSend();
+    }
+
+    @Override
+    MessageEvent next() {
+      final MessageEvent e = queue.poll();
+      if (!enabled) {
+        return e;
+      }
+      if (e.getMessage() instanceof ExpiringMessage) {
+        final ExpiringMessage expiring = (ExpiringMessage) e.getMessage();
+        if (expiring.isExpired()) {
+          // Left wrapped without spending credit, failed by send
+          return e;
+        }
+        // Once credit is spent the message has to reach the peer, drop its deadline
+        final MessageEvent unwrapped = new DownstreamMessageEvent(
+            e.getChannel(), e.getFuture(), expiring.getMessage(), e.getRemoteAddress());
+        spend(unwrapped);
+        return unwrapped;
+      }
+      spend(e);
+      return e;
+    }
+
+    @Override
+    void send(final ChannelHandlerContext ctx, final MessageEvent e) {
+      if (enabled && e.getMessage() instanceof ExpiringMessage) {
+        expiredMessages.incrementAndGet();
+        e.getFuture().setFailure(((ExpiringMessage) e.getMessage()).expired());
+        return;
+      }
+      ctx.sendDownstream(e);
+    }
+  };
+
+  private volatile boolean enabled;
+  private volatile ChannelHandlerContext ctx;
+
+  // Credit to grant the peer, returned by released messages
+  private final AtomicInteger releasedMessages = new AtomicInteger();
+  private final AtomicLong releasedBytes = new AtomicLong();
+
+  private final AtomicLong grantsSent = new AtomicLong();
+  private final AtomicLong grantsReceived = new AtomicLong();
+  private final AtomicLong expiredMessages = new AtomicLong();
+
+  private final ZMTPIncomingMessage.ReleaseListener releaseListener =
+      new ZMTPIncomingMessage.ReleaseListener() {
+        @Override
+        public void released(final ZMTPIncomingMessage message) {
+          final int messages = releasedMessages.incrementAndGet();
+          final long bytes = releasedBytes.addAndGet(message.getByteSize());
+          if (messages >= (window + 1) / 2 || bytes >= (windowBytes + 1) / 2) {
+            grantReleased();
+          }
+        }
+      };
+
+  public ZMTPCreditHandler() {
+    this(DEFAULT_WINDOW, DEFAULT_WINDOW_BYTES);
+  }
+
+  /**
+   * Create a new handler.
+   *
+   * @param window      The number of unreleased messages the peer may send.
+   * @param windowBytes The total size of the frames of the unreleased messages the peer may send.
+   */
+  public ZMTPCreditHandler(final int window, final long windowBytes) {
+    if (window < 1) {
+      throw new IllegalArgumentException("window: " + window);
+    }
+    if (windowBytes < 1) {
+      throw new IllegalArgumentException("windowBytes: " + windowBytes);
+    }
+    this.window = window;
+    this.windowBytes = windowBytes;
+  }
+
+  /**
+   * Called by the codec when the handshake is done.
+   */
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    this.ctx = ctx;
+    final CodecBase codec = ctx.getPipeline().get(CodecBase.class);
+    final boolean enabled = codec != null && codec.getSession().getActualVersion() >= 3;
+    synchronized (queue) {
+      this.connected = true;
+      this.enabled = enabled;
+    }
+    if (enabled) {
+      grant(window, windowBytes);
+    }
+    super.channelConnected(ctx, e);
+    drainer.drain(ctx);
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final Object message = e.getMessage();
+    if (message instanceof ZMTPIncomingMessage) {
+      if (enabled) {
+        ((ZMTPIncomingMessage) message).addReleaseListener(releaseListener);
+      }
+    } else if (message instanceof ZMTPCommand &&
+               ZMTPCommand.CREDIT.equals(((ZMTPCommand) message).getName())) {
+      final ZMTPCommand command = (ZMTPCommand) message;
+      final int messages = command.getCreditMessages();
+      final long bytes = command.getCreditBytes();
+      grantsReceived.incrementAndGet();
+      synchronized (queue) {
+        messageCredit += messages;
+        byteCredit += bytes;
+      }
+      drainer.drain(ctx);
+      if (isWritable()) {
+        Channels.fireChannelInterestChanged(ctx);
+      }
+      return;
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    this.ctx = ctx;
+    if (ZMTPUtils.outgoingMessage(e.getMessage()) == null) {
+      ctx.sendDownstream(e);
+      return;
+    }
+    synchronized (queue) {
+      if (closed) {
+        e.getFuture().setFailure(new ClosedChannelException());
+        return;
+      }
+      queue.add(e);
+    }
+    drainer.drain(ctx);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final List<MessageEvent> pending;
+    synchronized (queue) {
+      closed = true;
+      pending = new ArrayList<MessageEvent>(queue);
+      queue.clear();
+    }
+    for (final MessageEvent event : pending) {
+      event.getFuture().setFailure(new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * Check if the next held message can be sent. Must be called with the lock held.
+   */
+  private boolean canSend() {
+    if (queue.isEmpty() || !connected) {
+      return false;
+    }
+    return !enabled || (messageCredit > 0 && byteCredit > 0);
+  }
+
+  /**
+   * Use up the credit for sending a message. Must be called with the lock held.
+   */
+  private void spend(final MessageEvent e) {
+    messageCredit--;
+    byteCredit -= ZMTPUtils.payloadSize((ZMTPMessage) e.getMessage());
+  }
+
+  /**
+   * Grant the peer the credit returned by released messages.
+   */
+  private void grantReleased() {
+    final int messages = releasedMessages.getAndSet(0);
+    final long bytes = releasedBytes.getAndSet(0);
+    if (messages > 0 || bytes > 0) {
+      grant(messages, bytes);
+    }
+  }
+
+  private void grant(final int messages, final long bytes) {
+    final ChannelHandlerContext ctx = this.ctx;
+    grantsSent.incrementAndGet();
+    Channels.write(ctx, Channels.future(ctx.getChannel()),
+                   new UrgentMessage(ZMTPCommand.credit(messages, bytes)));
+  }
+
+  /**
+   * Returns true if messages written now are passed on right away, i.e. if no messages are held
+   * and the peer has granted credit.
+   */
+  public boolean isWritable() {
+    synchronized (queue) {
+      return queue.isEmpty() && (!enabled || (messageCredit > 0 && byteCredit > 0));
+    }
+  }
+
+  public int getWindow() {
+    return window;
+  }
+
+  public long getWindowBytes() {
+    return windowBytes;
+  }
+
+  /**
+   * Get the number of messages the peer currently allows this end to send.
+   */
+  public int getMessageCredit() {
+    synchronized (queue) {
+      return messageCredit;
+    }
+  }
+
+  /**
+   * Get the total size of messages the peer currently allows this end to send. Negative if the
+   * last message sent was larger than the remaining credit.
+   */
+  public long getByteCredit() {
+    synchronized (queue) {
+      return byteCredit;
+    }
+  }
+
+  /**
+   * Get the number of messages held while waiting for credit.
+   */
+  public int getQueuedMessages() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Get the number of CREDIT commands sent to the peer.
+   */
+  public long getGrantsSent() {
+    return grantsSent.get();
+  }
+
+  /**
+   * Get the number of CREDIT commands received from the peer.
+   */
+  public long getGrantsReceived() {
+    return grantsReceived.get();
+  }
+
+  /**
+   * Get the number of held messages that were dropped because their deadline passed.
+   */
+  public long getExpiredMessages() {
+    return expiredMessages.get();
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads outgoing messages over a set of connected peers, like a ZMQ DEALER socket.
+ *
+ * <p>A single instance is shared by the pipelines of all connections and placed after the ZMTP
+ * codec. Connections join the set when their handshake is done and leave it when closed. Each
+ * message passed to {@link #send(ZMTPMessage)} is written to one connection picked by the
+ * {@link Strategy} of the dealer. Connections that are not writable, either because the channel
+ * is not or because the {@link AutoFlushingWriteBatcher} in its pipeline is above its high water
+ * mark, are skipped.
+ */
+@ChannelHandler.Sharable
+public class ZMTPDealer extends SimpleChannelUpstreamHandler {
+
+  /**
+   * How a connection is picked for each message.
+   */
+  public enum Strategy {
+    /**
+     * Use the writable connections in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Use the writable connection with the fewest bytes queued in its write batcher. Looks at
+     * every connection for each message.
+     */
+    LEAST_PENDING_BYTES,
+    /**
+     * Use the writable one of two random connections with the fewest bytes queued in its write
+     * batcher. Nearly as well balanced as {@link #LEAST_PENDING_BYTES} at a constant cost.
+     */
+    POWER_OF_TWO_CHOICES
+  }
+
+  private static final Peer[] NO_PEERS = new Peer[0];
+
+  private static final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+    @Override
+    protected Random initialValue() {
+      return new Random();
+    }
+  };
+
+  private final Strategy strategy;
+  private final AtomicInteger next = new AtomicInteger();
+
+  // Copied on write, connections come and go far less often than messages are sent
+  private volatile Peer[] peers = NO_PEERS;
+
+  /**
+   * Create a dealer that uses the writable connections in turn.
+   */
+  public ZMTPDealer() {
+    this(Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Create a dealer with the specified strategy for picking connections.
+   */
+  public ZMTPDealer(final Strategy strategy) {
+    if (strategy == null) {
+      throw new NullPointerException("strategy");
+    }
+    this.strategy = strategy;
+  }
+
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final CodecBase codec = ctx.getPipeline().get(CodecBase.class);
+    if (codec == null) {
+      throw new IllegalStateException("No ZMTP codec in pipeline");
+    }
+    final Peer peer = new Peer(codec.getSession(), e.getChannel(),
+                               ctx.getPipeline().get(AutoFlushingWriteBatcher.class));
+    ctx.setAttachment(peer);
+    synchronized (this) {
+      final Peer[] peers = Arrays.copyOf(this.peers, this.peers.length + 1);
+      peers[peers.length - 1] = peer;
+      this.peers = peers;
+    }
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final Peer peer = (Peer) ctx.getAttachment();
+    if (peer != null) {
+      remove(peer);
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  private synchronized void remove(final Peer peer) {
+    final Peer[] peers = this.peers;
+    for (int i = 0; i < peers.length; i++) {
+      if (peers[i] == peer) {
+        final Peer[] newPeers = new Peer[peers.length - 1];
+        System.arraycopy(peers, 0, newPeers, 0, i);
+        System.arraycopy(peers, i + 1, newPeers, i, peers.length - i - 1);
+        this.peers = newPeers;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Send a message to one of the connected peers.
+   *
+   * @return the future of the write, or null if no connection is writable
+   */
+  public ChannelFuture send(final ZMTPMessage message) {
+    final ZMTPSession session = pick();
+    if (session == null) {
+      return null;
+    }
+    return session.getChannel().write(message);
+  }
+
+  /**
+   * Return the session of the connection that the next message should be sent to, or null if no
+   * connection is writable.
+   */
+  public ZMTPSession pick() {
+    final Peer[] peers = this.peers;
+    if (peers.length == 0) {
+      return null;
+    }
+    final Peer peer;
+    switch (strategy) {
+      case LEAST_PENDING_BYTES:
+        peer = leastPendingBytes(peers);
+        break;
+      case POWER_OF_TWO_CHOICES:
+        peer = powerOfTwoChoices(peers);
+        break;
+      default:
+        peer = roundRobin(peers);
+        break;
+    }
+    return peer == null ? null : peer.session;
+  }
+
+  /**
+   * Return the number of connected peers.
+   */
+  public int getPeerCount() {
+    return peers.length;
+  }
+
+  /**
+   * Return the strategy used to pick connections.
+   */
+  public Strategy getStrategy() {
+    return strategy;
+  }
+
+  private Peer roundRobin(final Peer[] peers) {
+    final int start = next.getAndIncrement();
+    for (int i = 0; i < peers.length; i++) {
+      final Peer peer = peers[index(start + i, peers.length)];
+      if (peer.isWritable()) {
+        return peer;
+      }
+    }
+    return null;
+  }
+
+  private Peer leastPendingBytes(final Peer[] peers) {
+    // Start at a rotating offset so that ties are broken in turn
+    final int start = next.getAndIncrement();
+    Peer best = null;
+    int bestPendingBytes = Integer.MAX_VALUE;
+    for (int i = 0; i < peers.length; i++) {
+      final Peer peer = peers[index(start + i, peers.length)];
+      if (!peer.isWritable()) {
+        continue;
+      }
+      final int pendingBytes = peer.getPendingBytes();
+      if (pendingBytes < bestPendingBytes) {
+        best = peer;
+        bestPendingBytes = pendingBytes;
+      }
+    }
+    return best;
+  }
+
+  private Peer powerOfTwoChoices(final Peer[] peers) {
+    if (peers.length == 1) {
+      return peers[0].isWritable() ? peers[0] : null;
+    }
+    final Random random = ZMTPDealer.random.get();
+    final int i = random.nextInt(peers.length);
+    final int j = (i + 1 + random.nextInt(peers.length - 1)) % peers.length;
+    final Peer a = peers[i];
+    final Peer b = peers[j];
+    final boolean aWritable = a.isWritable();
+    final boolean bWritable = b.isWritable();
+    if (aWritable && bWritable) {
+      return a.getPendingBytes() <= b.getPendingBytes() ? a : b;
+    } else if (aWritable) {
+      return a;
+    } else if (bWritable) {
+      return b;
+    }
+    // Both choices are congested, look for any writable connection
+    return roundRobin(peers);
+  }
+
+  private static int index(final int i, final int length) {
+    final int index = i % length;
+    return index < 0 ? index + length : index;
+  }
+
+  private static class Peer {
+
+    final ZMTPSession session;
+    final Channel channel;
+    final AutoFlushingWriteBatcher batcher;
+
+    Peer(final ZMTPSession session, final Channel channel, final AutoFlushingWriteBatcher batcher) {
+      this.session = session;
+      this.channel = channel;
+      this.batcher = batcher;
+    }
+
+    boolean isWritable() {
+      return channel.isWritable() && (batcher == null || batcher.isWritable());
+    }
+
+    int getPendingBytes() {
+      return batcher == null ? 0 : batcher.getQueuedBytes();
+    }
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.util.ExternalResourceReleasable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Passes incoming messages on to the rest of the pipeline on a fixed set of worker threads,
+ * keeping the messages of each remote identity in order.
+ *
+ * <p>A single instance is shared by the pipelines of all connections and placed after the ZMTP
+ * codec, like an {@link org.jboss.netty.handler.execution.ExecutionHandler}. Each {@link
+ * ZMTPIncomingMessage} is hashed by its {@link Key} to one of the workers, which each have their
+ * own lock free queue. Messages with the same key are thus handled one at a time and in the order
+ * they were received, while messages with different keys are spread over all workers. Other
+ * events are passed on in the I/O thread and may overtake messages that are still queued.
+ */
+@ChannelHandler.Sharable
+public class ZMTPDispatcher implements ChannelUpstreamHandler, ExternalResourceReleasable {
+
+  /**
+   * What to keep the order of messages by.
+   */
+  public enum Key {
+    /**
+     * The identity of the remote peer, or the connection if the peer is anonymous.
+     */
+    SESSION_IDENTITY,
+    /**
+     * The first envelope frame of each message, e.g. the identity of the original sender of a
+     * message forwarded by a ZMQ ROUTER. Messages without an envelope are ordered by the identity
+     * of the remote peer.
+     */
+    FIRST_ENVELOPE_FRAME
+  }
+
+  private static final AtomicInteger dispatcherCount = new AtomicInteger();
+
+  private final Key key;
+  private final Worker[] workers;
+
+  /**
+   * Create a new dispatcher with one worker per available processor, ordering messages by the
+   * identity of the remote peer.
+   */
+  public ZMTPDispatcher() {
+    this(Runtime.getRuntime().availableProcessors(), Key.SESSION_IDENTITY);
+  }
+
+  /**
+   * Create a new dispatcher.
+   *
+   * @param workers The number of worker threads.
+   * @param key     What to keep the order of messages by.
+   */
+  public ZMTPDispatcher(final int workers, final Key key) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("workers: " + workers);
+    }
+    if (key == null) {
+      throw new NullPointerException("key");
+    }
+    this.key = key;
+    this.workers = new Worker[workers];
+    final int id = dispatcherCount.incrementAndGet();
+    for (int i = 0; i < workers; i++) {
+      this.workers[i] = new Worker("zmtp-dispatcher-" + id + "-" + i);
+      this.workers[i].start();
+    }
+  }
+
+  @Override
+  public void handleUpstream(final ChannelHandlerContext ctx, final ChannelEvent e)
+      throws Exception {
+    final Object message = e instanceof MessageEvent ? ((MessageEvent) e).getMessage() : null;
+    if (message instanceof ZMTPIncomingMessage) {
+      workers[index(hash((ZMTPIncomingMessage) message))].dispatch(new Task(ctx, e));
+    } else {
+      ctx.sendUpstream(e);
+    }
+  }
+
+  /**
+   * Stop all workers. Messages still queued are discarded.
+   */
+  @Override
+  public void releaseExternalResources() {
+    for (final Worker worker : workers) {
+      worker.shutdown();
+    }
+  }
+
+  public Key getKey() {
+    return key;
+  }
+
+  public int getWorkerCount() {
+    return workers.length;
+  }
+
+  /**
+   * Get the number of messages queued for all workers.
+   */
+  public int getQueuedMessages() {
+    int queued = 0;
+    for (final Worker worker : workers) {
+      queued += worker.queued.get();
+    }
+    return queued;
+  }
+
+  /**
+   * Hash the key of a message. Messages of anonymous peers are ordered by their connection, so
+   * that they do not all share a single worker.
+   */
+  private int hash(final ZMTPIncomingMessage message) {
+    if (key == Key.FIRST_ENVELOPE_FRAME) {
+      final List<ZMTPFrame> envelope = message.getMessage().getEnvelope();
+      if (!envelope.isEmpty()) {
+        return envelope.get(0).hashCode();
+      }
+    }
+    final ZMTPSession session = message.getSession();
+    final byte[] identity = session.getRemoteIdentity();
+    if (identity == null || identity.length == 0) {
+      return System.identityHashCode(session);
+    }
+    return Arrays.hashCode(identity);
+  }
+
+  /**
+   * Map a hash to a worker, mixing the bits first as hashes of short identities are poorly
+   * distributed.
+   */
+  private int index(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (h & Integer.MAX_VALUE) % workers.length;
+  }
+
+  private static class Task {
+
+    private final ChannelHandlerContext ctx;
+    private final ChannelEvent event;
+
+    Task(final ChannelHandlerContext ctx, final ChannelEvent event) {
+      this.ctx = ctx;
+      this.event = event;
+    }
+  }
+
+  /**
+   * A worker thread with its own queue. Parks when the queue is empty, and is only unparked by
+   * producers when it has parked.
+   */
+  private static class Worker extends Thread {
+
+    private final Queue<Task> queue = new ConcurrentLinkedQueue<Task>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private volatile boolean running = true;
+    private volatile boolean parked;
+
+    Worker(final String name) {
+      super(name);
+      setDaemon(true);
+    }
+
+    void dispatch(final Task task) {
+      queued.incrementAndGet();
+      queue.offer(task);
+      if (parked) {
+        LockSupport.unpark(this);
+      }
+    }
+
+    void shutdown() {
+      running = false;
+      LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        final Task task = queue.poll();
+        if (task == null) {
+          parked = true;
+          if (queue.isEmpty() && running) {
+            LockSupport.park(this);
+          }
+          parked = false;
+          continue;
+        }
+        queued.decrementAndGet();
+        try {
+          task.ctx.sendUpstream(task.event);
+        } catch (Throwable t) {
+          Channels.fireExceptionCaught(task.ctx, t);
+        }
+      }
+    }
+  }
+}
@@ -16,6 +16,10 @@
 
 package com.spotify.netty.handler.codec.zmtp;
 
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.ExpiringMessage;
+import com.spotify.netty.handler.queue.UrgentMessage;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
@@ -23,7 +27,11 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 
 /**
- * Netty encoder for ZMTP messages.
+ * Netty encoder for ZMTP messages and, on ZMTP/3.0 sessions, {@link ZMTPCommand}s. A message or
+ * command wrapped in an {@link UrgentMessage} is encoded and passed on still wrapped if there is
+ * an {@link AutoFlushingWriteBatcher} in the pipeline that can prioritize it, and as a plain
+ * buffer otherwise. Likewise, a message wrapped in an {@link ExpiringMessage} is passed on with
+ * its deadline attached to the encoded buffer if there is a write batcher that can drop it.
  */
 class ZMTPFramingEncoder extends OneToOneEncoder {
 
@@ -35,16 +43,64 @@ class ZMTPFramingEncoder extends OneToOneEncoder {
   }
 
   @Override
-  protected Object encode(final ChannelHandlerContext channelHandlerContext, final Channel channel,
+  protected Object encode(final ChannelHandlerContext ctx, final Channel channel,
                           final Object o)
       throws Exception {
+    if (o instanceof ExpiringMessage) {
+      final ExpiringMessage expiring = (ExpiringMessage) o;
+      final Object encoded = encode(ctx, channel, expiring.getMessage());
+      if (encoded == expiring.getMessage()) {
+        return o;
+      }
+      if (encoded instanceof ChannelBuffer && hasBatcher(ctx)) {
+        return new ExpiringMessage(encoded, expiring.getDeadline());
+      }
+      return encoded;
+    }
+
+    if (o instanceof UrgentMessage) {
+      final Object message = ((UrgentMessage) o).getMessage();
+      final ChannelBuffer buffer;
+      if (message instanceof ZMTPMessage) {
+        buffer = encode((ZMTPMessage) message);
+      } else if (message instanceof ZMTPCommand) {
+        buffer = encode((ZMTPCommand) message);
+      } else {
+        return o;
+      }
+      if (hasBatcher(ctx)) {
+        return new UrgentMessage(buffer);
+      }
+      return buffer;
+    }
+
+    if (o instanceof ZMTPCommand) {
+      return encode((ZMTPCommand) o);
+    }
+
     if (!(o instanceof ZMTPMessage)) {
       return o;
     }
 
-    // TODO (dano): integrate with write batching to avoid buffer creation and reduce garbage
+    return encode((ZMTPMessage) o);
+  }
+
+  private static boolean hasBatcher(final ChannelHandlerContext ctx) {
+    return ctx != null && ctx.getPipeline().get(AutoFlushingWriteBatcher.class) != null;
+  }
+
+  private ChannelBuffer encode(final ZMTPCommand command) {
+    if (session.getActualVersion() < 3) {
+      throw new IllegalStateException(
+          "Commands require ZMTP/3.0, session uses version " + session.getActualVersion());
+    }
+    final ChannelBuffer buffer = ChannelBuffers.buffer(command.size());
+    command.write(buffer);
+    return buffer;
+  }
 
-    final ZMTPMessage message = (ZMTPMessage) o;
+  private ChannelBuffer encode(final ZMTPMessage message) {
+    // TODO (dano): integrate with write batching to avoid buffer creation and reduce garbage
 
     final int size = ZMTPUtils.messageSize(
         message, session.isEnveloped(), session.getActualVersion());
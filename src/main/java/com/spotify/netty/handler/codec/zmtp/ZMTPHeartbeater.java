@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.Clock;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Drives the ZMTP/3.1 heartbeats of any number of connections from a single periodic task, so
+ * heartbeating does not cost a timer per connection. By default the task runs on the scheduler
+ * shared by the {@link AutoFlushingWriteBatcher}s, see
+ * {@link AutoFlushingWriteBatcher#getDefaultScheduler()}.
+ *
+ * <p>On every tick, each connection with a heartbeat interval that has passed since its last PING
+ * is sent a new one, ahead of any queued messages. A connection is closed if its peer has not
+ * sent anything for the heartbeat timeout after an unanswered PING, or for the time to live that
+ * the peer announced in its own PINGs. Timeouts are thus detected with a precision of one tick.
+ * The task is only scheduled while there are connections to heartbeat.
+ */
+public class ZMTPHeartbeater {
+
+  private static final long DEFAULT_RESOLUTION = 10;
+  private static final TimeUnit DEFAULT_RESOLUTION_TIMEUNIT = MILLISECONDS;
+
+  private static final ZMTPHeartbeater DEFAULT = new ZMTPHeartbeater();
+
+  private final Set<Heartbeat> heartbeats =
+      Collections.newSetFromMap(new ConcurrentHashMap<Heartbeat, Boolean>());
+  private final long resolutionNanos;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+
+  private ScheduledFuture<?> tickFuture;
+
+  private final Runnable tickTask = new Runnable() {
+    @Override
+    public void run() {
+      tick();
+    }
+  };
+
+  /**
+   * Create a heartbeater with a resolution of 10 milliseconds using the default write batcher
+   * scheduler.
+   */
+  public ZMTPHeartbeater() {
+    this(DEFAULT_RESOLUTION, DEFAULT_RESOLUTION_TIMEUNIT, Clock.SYSTEM,
+         AutoFlushingWriteBatcher.getDefaultScheduler());
+  }
+
+  /**
+   * Create a heartbeater with a custom resolution, clock and scheduler.
+   *
+   * @param resolution     The interval between checks of all connections.
+   * @param resolutionUnit The unit of the resolution.
+   * @param clock          The clock used to measure time.
+   * @param scheduler      The scheduler used to run the periodic check.
+   */
+  public ZMTPHeartbeater(final long resolution, final TimeUnit resolutionUnit, final Clock clock,
+                         final ScheduledExecutorService scheduler) {
+    if (resolution <= 0) {
+      throw new IllegalArgumentException("resolution: " + resolution);
+    }
+    if (clock == null) {
+      throw new NullPointerException("clock");
+    }
+    if (scheduler == null) {
+      throw new NullPointerException("scheduler");
+    }
+    this.resolutionNanos = resolutionUnit.toNanos(resolution);
+    this.clock = clock;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Return the heartbeater used by codecs unless configured otherwise.
+   */
+  public static ZMTPHeartbeater getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Start heartbeating a connection.
+   */
+  Heartbeat register(final CodecBase codec, final ChannelHandlerContext ctx,
+                     final long intervalNanos, final long timeoutNanos, final int ttl) {
+    final Heartbeat heartbeat = new Heartbeat(codec, ctx, intervalNanos, timeoutNanos, ttl,
+                                              clock.nanoTime());
+    heartbeats.add(heartbeat);
+    synchronized (this) {
+      if (tickFuture == null) {
+        tickFuture = scheduler.scheduleAtFixedRate(tickTask, resolutionNanos, resolutionNanos,
+                                                   NANOSECONDS);
+      }
+    }
+    return heartbeat;
+  }
+
+  /**
+   * Stop heartbeating a connection.
+   */
+  void unregister(final Heartbeat heartbeat) {
+    heartbeats.remove(heartbeat);
+    stopIfIdle();
+  }
+
+  /**
+   * Cancel the periodic task if there are no connections left to heartbeat. It is scheduled
+   * again by the next registration.
+   */
+  private synchronized void stopIfIdle() {
+    if (tickFuture != null && heartbeats.isEmpty()) {
+      tickFuture.cancel(false);
+      tickFuture = null;
+    }
+  }
+
+  /**
+   * Get the number of connections currently heartbeated.
+   */
+  public int getConnectionCount() {
+    return heartbeats.size();
+  }
+
+  /**
+   * Check all connections, sending PINGs and closing connections as needed.
+   */
+  void tick() {
+    final long now = clock.nanoTime();
+    for (final Heartbeat heartbeat : heartbeats) {
+      boolean alive;
+      try {
+        alive = heartbeat.tick(now);
+      } catch (Exception e) {
+        // Never let one connection stop the task shared by all of them
+        Channels.close(heartbeat.ctx.getChannel());
+        alive = false;
+      }
+      if (!alive) {
+        heartbeats.remove(heartbeat);
+      }
+    }
+    stopIfIdle();
+  }
+
+  /**
+   * The heartbeat state of a connection. Reads are recorded by the I/O thread, everything else
+   * is only accessed by the tick task.
+   */
+  static class Heartbeat {
+
+    private final CodecBase codec;
+    private final ChannelHandlerContext ctx;
+    private final long intervalNanos;
+    private final long timeoutNanos;
+    private final int ttl;
+
+    private volatile boolean readActivity;
+    private volatile long remoteTtlNanos;
+
+    private long lastRead;
+    private long lastPing;
+    // Any value returned by the clock is a valid time, so a flag tells if a PING is unanswered
+    private boolean pingUnanswered;
+    private long unansweredPingSince;
+
+    private Heartbeat(final CodecBase codec, final ChannelHandlerContext ctx,
+                      final long intervalNanos, final long timeoutNanos, final int ttl,
+                      final long now) {
+      this.codec = codec;
+      this.ctx = ctx;
+      this.intervalNanos = intervalNanos;
+      this.timeoutNanos = timeoutNanos;
+      this.ttl = ttl;
+      this.lastRead = now;
+      this.lastPing = now;
+    }
+
+    /**
+     * Record that something was received from the peer.
+     */
+    void read() {
+      // Avoid the cost of a volatile write for every read
+      if (!readActivity) {
+        readActivity = true;
+      }
+    }
+
+    /**
+     * Set the time to live announced by the peer, after which the connection is closed if
+     * nothing has been received from it. Zero means no limit.
+     */
+    void setRemoteTtl(final long remoteTtlNanos) {
+      this.remoteTtlNanos = remoteTtlNanos;
+    }
+
+    /**
+     * @return false if the connection is closed and should no longer be heartbeated
+     */
+    boolean tick(final long now) throws Exception {
+      final Channel channel = ctx.getChannel();
+      if (!channel.isOpen()) {
+        return false;
+      }
+      if (readActivity) {
+        readActivity = false;
+        lastRead = now;
+        pingUnanswered = false;
+      }
+      final long remoteTtlNanos = this.remoteTtlNanos;
+      if ((pingUnanswered && now - unansweredPingSince >= timeoutNanos) ||
+          (remoteTtlNanos > 0 && now - lastRead >= remoteTtlNanos)) {
+        Channels.close(channel);
+        return false;
+      }
+      if (intervalNanos > 0 && now - lastPing >= intervalNanos) {
+        lastPing = now;
+        if (!pingUnanswered) {
+          pingUnanswered = true;
+          unansweredPingSince = now;
+        }
+        codec.writeUrgentCommand(ctx, ZMTPCommand.ping(ttl, ChannelBuffers.EMPTY_BUFFER));
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.ExpiringMessage;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the number of outgoing messages queued for a connection, like the send high water mark
+ * of a ZMQ socket.
+ *
+ * <p>One instance is placed after the ZMTP codec in the pipeline of each connection. Outgoing
+ * {@link ZMTPMessage}s are passed on to the codec while the channel, and the {@link
+ * AutoFlushingWriteBatcher} and {@link ZMTPCreditHandler} in the pipeline if any, are writable.
+ * Otherwise they are held here, before they are encoded, until the channel becomes writable
+ * again. When holding another message would exceed either the message or the byte limit, the
+ * {@link Policy} of the handler decides what happens. A single message is always accepted when
+ * nothing is held, even if it is larger than the byte limit.
+ *
+ * <p>Messages may be wrapped in an {@link ExpiringMessage}. Before the policy is applied, held
+ * messages whose deadline has passed are dropped to make room, and their write futures failed.
+ * Expired messages that are still held when the channel becomes writable are dropped by the
+ * codec instead of being encoded.
+ *
+ * <p>Other writes, e.g. already encoded buffers, are passed on as is.
+ */
+public class ZMTPHighWaterMarkHandler extends SimpleChannelHandler {
+
+  public static final int DEFAULT_HIGH_WATER_MARK = 1000;
+  public static final long DEFAULT_HIGH_WATER_MARK_BYTES = 64 * 1024 * 1024;
+
+  /**
+   * What to do with a message written when the high water mark is reached.
+   */
+  public enum Policy {
+    /**
+     * Discard the new message. Its write future is completed successfully, like a message dropped
+     * by a ZMQ PUB socket.
+     */
+    DROP_NEWEST,
+    /**
+     * Discard held messages, oldest first, until the new message fits. The write futures of the
+     * discarded messages are completed successfully.
+     */
+    DROP_OLDEST,
+    /**
+     * Fail the write future of the new message with a {@link ZMTPException}.
+     */
+    FAIL,
+    /**
+     * Block the writing thread until the new message fits or the channel is closed. Writes from
+     * the I/O thread of the channel, i.e. the thread that completed its handshake, cannot wait for
+     * that thread to make room and fail like {@link #FAIL}.
+     */
+    BLOCK
+  }
+
+  private final Policy policy;
+
+  // Guarded by itself
+  private final ArrayDeque<MessageEvent> queue = new ArrayDeque<MessageEvent>();
+  private long queuedBytes;
+  private boolean closed;
+
+  private final HeldWriteDrainer drainer = new HeldWriteDrainer(queue) {
+    @Override
+    boolean hasNext(final ChannelHandlerContext ctx) {
+      return !queue.isEmpty() && isWritable(ctx);
+    }
+
+    @Override
+    MessageEvent next() {
+      final MessageEvent e = queue.poll();
+      queuedBytes -= size(e);
+      // Wake up writers blocked by the BLOCK policy
+      queue.notifyAll();
+      return e;
+    }
+  };
+
+  private volatile int highWaterMark;
+  private volatile long highWaterMarkBytes;
+  private volatile Thread ioThread;
+
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private final AtomicLong blockedWrites = new AtomicLong();
+  private final AtomicLong expiredMessages = new AtomicLong();
+
+  public ZMTPHighWaterMarkHandler(final Policy policy) {
+    this(policy, DEFAULT_HIGH_WATER_MARK, DEFAULT_HIGH_WATER_MARK_BYTES);
+  }
+
+  /**
+   * Create a new handler.
+   *
+   * @param policy             What to do with messages written when the high water mark is
+   *                           reached.
+   * @param highWaterMark      The maximum number of messages held.
+   * @param highWaterMarkBytes The maximum total size of the frames of the messages held.
+   */
+  public ZMTPHighWaterMarkHandler(final Policy policy, final int highWaterMark,
+                                  final long highWaterMarkBytes) {
+    if (policy == null) {
+      throw new NullPointerException("policy");
+    }
+    this.policy = policy;
+    setHighWaterMark(highWaterMark);
+    setHighWaterMarkBytes(highWaterMarkBytes);
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    if (ZMTPUtils.outgoingMessage(e.getMessage()) == null) {
+      ctx.sendDownstream(e);
+      return;
+    }
+
+    final long size = size(e);
+    List<MessageEvent> expired = null;
+    List<MessageEvent> dropped = null;
+    Throwable failure = null;
+    synchronized (queue) {
+      if (!closed && !hasRoom(size)) {
+        expired = removeExpired();
+      }
+      if (!closed && !hasRoom(size)) {
+        switch (policy) {
+          case DROP_NEWEST:
+            droppedMessages.incrementAndGet();
+            dropped = new ArrayList<MessageEvent>(1);
+            dropped.add(e);
+            break;
+          case DROP_OLDEST:
+            dropped = new ArrayList<MessageEvent>();
+            while (!hasRoom(size)) {
+              final MessageEvent oldest = queue.poll();
+              queuedBytes -= size(oldest);
+              droppedMessages.incrementAndGet();
+              dropped.add(oldest);
+            }
+            break;
+          case FAIL:
+            failedWrites.incrementAndGet();
+            failure = new ZMTPException("high water mark reached");
+            break;
+          case BLOCK:
+            if (Thread.currentThread() == ioThread) {
+              failedWrites.incrementAndGet();
+              failure = new ZMTPException("high water mark reached in the I/O thread");
+              break;
+            }
+            blockedWrites.incrementAndGet();
+            try {
+              while (!closed && !hasRoom(size)) {
+                queue.wait();
+              }
+            } catch (InterruptedException ex) {
+              Thread.currentThread().interrupt();
+              failure = ex;
+            }
+            break;
+        }
+      }
+      if (closed) {
+        failure = new ClosedChannelException();
+      }
+      if (failure == null && (dropped == null || policy == Policy.DROP_OLDEST)) {
+        queue.add(e);
+        queuedBytes += size;
+      }
+    }
+
+    if (expired != null) {
+      for (final MessageEvent event : expired) {
+        event.getFuture().setFailure(((ExpiringMessage) event.getMessage()).expired());
+      }
+    }
+    if (dropped != null) {
+      for (final MessageEvent event : dropped) {
+        event.getFuture().setSuccess();
+      }
+    }
+    if (failure != null) {
+      e.getFuture().setFailure(failure);
+      return;
+    }
+    drainer.drain(ctx);
+  }
+
+  /**
+   * Called by the codec when the handshake is done, which happens in the I/O thread of the
+   * channel. A channel keeps its I/O thread until it is closed.
+   */
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    ioThread = Thread.currentThread();
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    super.channelInterestChanged(ctx, e);
+    drainer.drain(ctx);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final List<MessageEvent> pending;
+    synchronized (queue) {
+      closed = true;
+      pending = new ArrayList<MessageEvent>(queue);
+      queue.clear();
+      queuedBytes = 0;
+      queue.notifyAll();
+    }
+    for (final MessageEvent event : pending) {
+      event.getFuture().setFailure(new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * Remove held messages whose deadline has passed. Must be called with the lock held.
+   *
+   * @return The removed messages, or null if there were none.
+   */
+  private List<MessageEvent> removeExpired() {
+    List<MessageEvent> expired = null;
+    for (final Iterator<MessageEvent> it = queue.iterator(); it.hasNext(); ) {
+      final MessageEvent e = it.next();
+      if (e.getMessage() instanceof ExpiringMessage &&
+          ((ExpiringMessage) e.getMessage()).isExpired()) {
+        it.remove();
+        queuedBytes -= size(e);
+        expiredMessages.incrementAndGet();
+        if (expired == null) {
+          expired = new ArrayList<MessageEvent>();
+        }
+        expired.add(e);
+      }
+    }
+    if (expired != null) {
+      queue.notifyAll();
+    }
+    return expired;
+  }
+
+  /**
+   * Check if a message of the specified size can be held without exceeding the high water mark.
+   */
+  private boolean hasRoom(final long size) {
+    return queue.isEmpty() ||
+           (queue.size() < highWaterMark && queuedBytes + size <= highWaterMarkBytes);
+  }
+
+  /**
+   * Get the total size of the frames of a written message.
+   */
+  private static long size(final MessageEvent e) {
+    return ZMTPUtils.payloadSize(ZMTPUtils.outgoingMessage(e.getMessage()));
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Set the maximum number of messages held.
+   */
+  public void setHighWaterMark(final int highWaterMark) {
+    if (highWaterMark < 1) {
+      throw new IllegalArgumentException("highWaterMark: " + highWaterMark);
+    }
+    synchronized (queue) {
+      this.highWaterMark = highWaterMark;
+      queue.notifyAll();
+    }
+  }
+
+  public long getHighWaterMarkBytes() {
+    return highWaterMarkBytes;
+  }
+
+  /**
+   * Set the maximum total size of the frames of the messages held.
+   */
+  public void setHighWaterMarkBytes(final long highWaterMarkBytes) {
+    if (highWaterMarkBytes < 1) {
+      throw new IllegalArgumentException("highWaterMarkBytes: " + highWaterMarkBytes);
+    }
+    synchronized (queue) {
+      this.highWaterMarkBytes = highWaterMarkBytes;
+      queue.notifyAll();
+    }
+  }
+
+  /**
+   * Get the number of messages currently held.
+   */
+  public int getQueuedMessages() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Get the total size of the frames of the messages currently held.
+   */
+  public long getQueuedBytes() {
+    synchronized (queue) {
+      return queuedBytes;
+    }
+  }
+
+  /**
+   * Get the number of messages discarded by the {@link Policy#DROP_NEWEST} and {@link
+   * Policy#DROP_OLDEST} policies.
+   */
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Get the number of writes failed by the {@link Policy#FAIL} policy, or by the {@link
+   * Policy#BLOCK} policy in the I/O thread of the channel.
+   */
+  public long getFailedWrites() {
+    return failedWrites.get();
+  }
+
+  /**
+   * Get the number of writes that had to wait for room under the {@link Policy#BLOCK} policy.
+   */
+  public long getBlockedWrites() {
+    return blockedWrites.get();
+  }
+
+  /**
+   * Get the number of held messages that were dropped to make room because their deadline had
+   * passed.
+   */
+  public long getExpiredMessages() {
+    return expiredMessages.get();
+  }
+}
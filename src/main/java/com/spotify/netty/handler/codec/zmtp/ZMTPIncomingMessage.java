@@ -16,6 +16,8 @@
 
 package com.spotify.netty.handler.codec.zmtp;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
  * A ZMTP message along with the session it was received on.
  */
@@ -26,12 +28,61 @@ public class ZMTPIncomingMessage {
   private final boolean truncated;
   private final long byteSize;
 
+  private static final AtomicIntegerFieldUpdater<ZMTPIncomingMessage> releasedUpdater =
+      AtomicIntegerFieldUpdater.newUpdater(ZMTPIncomingMessage.class, "released");
+
+  private final ZMTPMemoryBudget.Account account;
+  private final long reservedBytes;
+  private volatile ReleaseListener releaseListener;
+  private volatile int released;
+
   public ZMTPIncomingMessage(final ZMTPSession session, final ZMTPMessage message,
                              final boolean truncated, final long byteSize) {
+    this(session, message, truncated, byteSize, null, 0);
+  }
+
+  ZMTPIncomingMessage(final ZMTPSession session, final ZMTPMessage message,
+                      final boolean truncated, final long byteSize,
+                      final ZMTPMemoryBudget.Account account, final long reservedBytes) {
     this.session = session;
     this.message = message;
     this.truncated = truncated;
     this.byteSize = byteSize;
+    this.account = account;
+    this.reservedBytes = reservedBytes;
+  }
+
+  /**
+   * Signal that the consumer is done with this message. Releases the bytes the message holds in
+   * the {@link ZMTPMemoryBudget} of the codec that decoded it and counts the message as processed
+   * by a {@link ZMTPBackpressureHandler}, if any. Calling this more than once has no effect.
+   */
+  public void release() {
+    if (!releasedUpdater.compareAndSet(this, 0, 1)) {
+      return;
+    }
+    if (account != null && reservedBytes > 0) {
+      account.getBudget().release(account, reservedBytes);
+    }
+    final ReleaseListener listener = releaseListener;
+    if (listener != null) {
+      listener.released(this);
+    }
+  }
+
+  /**
+   * Add a listener to be notified when this message is released. Must be added before the message
+   * is passed on to the consumer.
+   */
+  void addReleaseListener(final ReleaseListener listener) {
+    final ReleaseListener previous = releaseListener;
+    releaseListener = previous == null ? listener : new ReleaseListener() {
+      @Override
+      public void released(final ZMTPIncomingMessage message) {
+        previous.released(message);
+        listener.released(message);
+      }
+    };
   }
 
   /**
@@ -98,4 +149,12 @@ public class ZMTPIncomingMessage {
            ", message=" + message +
            '}';
   }
+
+  /**
+   * Notified when a message is released by its consumer.
+   */
+  interface ReleaseListener {
+
+    void released(ZMTPIncomingMessage message);
+  }
 }
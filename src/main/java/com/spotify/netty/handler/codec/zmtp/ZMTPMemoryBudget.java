@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.Channel;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the memory held by incoming data, shared by the codecs of any number of connections.
+ *
+ * <p>Codecs given a budget with {@link CodecBase#setMemoryBudget(ZMTPMemoryBudget)} reserve every
+ * received buffer from it. The bytes of frames that are not part of a message, e.g. greetings and
+ * commands, are released as soon as they are decoded. The bytes of a message stay reserved until
+ * the consumer of the message calls {@link ZMTPIncomingMessage#release()}, so every consumer of a
+ * connection with a budget must release the messages it receives.
+ *
+ * <p>When the reserved bytes exceed the limit, reading is suspended on the connections holding
+ * more than their share of the reserved bytes, the heaviest ones, while connections holding
+ * little, e.g. ones only sending small requests, keep reading. Once enough messages have been
+ * released to bring the reserved bytes down to the resume threshold, reading is resumed on all
+ * suspended connections.
+ *
+ * <p>Bytes of a message that has only been partly received cannot be released by any consumer,
+ * only by receiving the rest of the message. Reading is therefore never suspended on a connection
+ * in the middle of a message, but only once it has received the message, and those bytes do not
+ * count towards the resume threshold. The memory held by partly received messages is thus bounded
+ * by the size limit of the sessions rather than by the budget.
+ *
+ * <p>Reserving and releasing bytes below the limit is lock free.
+ */
+public class ZMTPMemoryBudget {
+
+  private final long limit;
+  private final long resumeThreshold;
+
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicLong partialBytes = new AtomicLong();
+  private final AtomicLong suspensions = new AtomicLong();
+  private final Set<Account> accounts =
+      Collections.newSetFromMap(new ConcurrentHashMap<Account, Boolean>());
+
+  // Written with this locked
+  private volatile boolean overLimit;
+  private int suspendedChannels;
+
+  /**
+   * Create a new budget that resumes reading when half of the limit is reserved.
+   *
+   * @param limit The maximum number of bytes reserved before reading is suspended.
+   */
+  public ZMTPMemoryBudget(final long limit) {
+    this(limit, limit / 2);
+  }
+
+  /**
+   * Create a new budget.
+   *
+   * @param limit           The maximum number of bytes reserved before reading is suspended.
+   * @param resumeThreshold The number of reserved bytes at or below which reading is resumed.
+   */
+  public ZMTPMemoryBudget(final long limit, final long resumeThreshold) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit: " + limit);
+    }
+    if (resumeThreshold < 0 || resumeThreshold > limit) {
+      throw new IllegalArgumentException("resumeThreshold: " + resumeThreshold);
+    }
+    this.limit = limit;
+    this.resumeThreshold = resumeThreshold;
+  }
+
+  /**
+   * Start accounting for the incoming data of a channel.
+   */
+  Account register(final Channel channel) {
+    final Account account = new Account(this, channel);
+    accounts.add(account);
+    return account;
+  }
+
+  /**
+   * Stop accounting for the incoming data of a channel. Bytes that are still reserved by the
+   * channel can still be released.
+   */
+  void unregister(final Account account) {
+    accounts.remove(account);
+    synchronized (this) {
+      if (account.suspended) {
+        account.suspended = false;
+        suspendedChannels--;
+      }
+    }
+  }
+
+  /**
+   * Reserve bytes received by a channel, suspending reading on other channels if the limit is
+   * exceeded. The bytes are held for a partly received message until {@link #decoded(Account,
+   * long, long)} says otherwise.
+   */
+  void reserve(final Account account, final long bytes) {
+    account.bytes.addAndGet(bytes);
+    account.partialBytes += bytes;
+    partialBytes.addAndGet(bytes);
+    final long used = usedBytes.addAndGet(bytes);
+    if (used > limit && !overLimit) {
+      suspendHeaviest();
+    }
+  }
+
+  /**
+   * Account for the data a channel has decoded. Must be called by the I/O thread of the channel.
+   *
+   * @param releasedBytes The bytes decoded without becoming part of a message, to be released.
+   * @param partialBytes  The bytes still held for data that is not yet a complete message. The
+   *                      rest of the reserved bytes are held by messages passed on to consumers.
+   */
+  void decoded(final Account account, final long releasedBytes, final long partialBytes) {
+    this.partialBytes.addAndGet(partialBytes - account.partialBytes);
+    account.partialBytes = partialBytes;
+    if (releasedBytes > 0) {
+      release(account, releasedBytes);
+    }
+    if (overLimit && partialBytes == 0 && !account.suspended &&
+        account.bytes.get() >= fairShare(usedBytes.get())) {
+      suspend(account);
+    }
+  }
+
+  /**
+   * Release bytes reserved by a channel, resuming reading if the resume threshold is reached.
+   */
+  void release(final Account account, final long bytes) {
+    account.bytes.addAndGet(-bytes);
+    usedBytes.addAndGet(-bytes);
+    if (overLimit && releasableBytes() <= resumeThreshold) {
+      resumeAll();
+    }
+  }
+
+  /**
+   * Return the reserved bytes that consumers can release, i.e. those of received messages.
+   */
+  private long releasableBytes() {
+    return usedBytes.get() - partialBytes.get();
+  }
+
+  private long fairShare(final long used) {
+    return used / Math.max(1, accounts.size());
+  }
+
+  /**
+   * Suspend reading on every channel holding at least its share of the reserved bytes, unless it
+   * is in the middle of a message.
+   */
+  private synchronized void suspendHeaviest() {
+    final long used = usedBytes.get();
+    if (overLimit || used <= limit) {
+      return;
+    }
+    overLimit = true;
+    final long fairShare = fairShare(used);
+    for (final Account account : accounts) {
+      if (account.partialBytes == 0 && account.bytes.get() >= fairShare) {
+        suspend(account);
+      }
+    }
+  }
+
+  private synchronized void suspend(final Account account) {
+    if (!overLimit || account.suspended || !accounts.contains(account)) {
+      return;
+    }
+    account.suspended = true;
+    suspendedChannels++;
+    suspensions.incrementAndGet();
+    ReadSuspension.suspend(account.channel);
+  }
+
+  private synchronized void resumeAll() {
+    if (!overLimit || releasableBytes() > resumeThreshold) {
+      return;
+    }
+    overLimit = false;
+    for (final Account account : accounts) {
+      if (account.suspended) {
+        account.suspended = false;
+        ReadSuspension.resume(account.channel);
+      }
+    }
+    suspendedChannels = 0;
+  }
+
+  /**
+   * Get the maximum number of bytes reserved before reading is suspended.
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * Get the number of reserved bytes at or below which reading is resumed.
+   */
+  public long getResumeThreshold() {
+    return resumeThreshold;
+  }
+
+  /**
+   * Get the number of bytes currently reserved.
+   */
+  public long getUsedBytes() {
+    return usedBytes.get();
+  }
+
+  /**
+   * Get the number of channels reading is currently suspended on.
+   */
+  public synchronized int getSuspendedChannels() {
+    return suspendedChannels;
+  }
+
+  /**
+   * Get the number of times reading has been suspended on a channel.
+   */
+  public long getSuspensions() {
+    return suspensions.get();
+  }
+
+  /**
+   * The bytes reserved by a single channel.
+   */
+  static class Account {
+
+    private final ZMTPMemoryBudget budget;
+    private final Channel channel;
+    private final AtomicLong bytes = new AtomicLong();
+
+    // Only written by the I/O thread of the channel
+    private volatile long partialBytes;
+
+    // Written with the budget locked
+    private volatile boolean suspended;
+
+    Account(final ZMTPMemoryBudget budget, final Channel channel) {
+      this.budget = budget;
+      this.channel = channel;
+    }
+
+    ZMTPMemoryBudget getBudget() {
+      return budget;
+    }
+
+    /**
+     * Get the number of bytes currently reserved by the channel.
+     */
+    long getBytes() {
+      return bytes.get();
+    }
+  }
+}
@@ -44,6 +44,7 @@ public class ZMTPMessageParser {
   private boolean hasMore;
   private long size;
   private int frameSize;
+  private boolean inMessage;
 
   // Used by discarding mode
   private int frameRemaining;
@@ -99,6 +100,7 @@ public class ZMTPMessageParser {
       }
 
       size += frameSize;
+      inMessage = true;
 
       // Read frame content
       final ZMTPFrame frame = ZMTPFrame.read(buffer, frameSize);
@@ -144,6 +146,29 @@ public class ZMTPMessageParser {
     part = enveloped ? envelope : content;
     hasMore = true;
     size = 0;
+    inMessage = false;
+  }
+
+  /**
+   * Return true if frames of a message have been consumed but the final frame has not.
+   */
+  boolean isParsingMessage() {
+    return inMessage || isOversized(size);
+  }
+
+  /**
+   * Return the number of bytes of the frames of the current message that have been consumed and
+   * kept so far.
+   */
+  long getBufferedBytes() {
+    long bytes = 0;
+    for (int i = 0; i < envelope.size(); i++) {
+      bytes += envelope.get(i).size();
+    }
+    for (int i = 0; i < content.size(); i++) {
+      bytes += content.get(i).size();
+    }
+    return bytes;
   }
 
   /**
@@ -166,6 +191,7 @@ public class ZMTPMessageParser {
         }
         size += frameSize;
         frameRemaining = frameSize;
+        inMessage = true;
       }
 
       // Discard bytes
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes messages to subscribed peers, like a ZMQ PUB socket.
+ *
+ * <p>A single instance is shared by the pipelines of all subscriber connections and placed after
+ * the ZMTP codec. Subscriptions sent by the peers, either as messages whose only frame starts with
+ * 1 to subscribe or 0 to unsubscribe, or as ZMTP/3.1 SUBSCRIBE and CANCEL commands, are kept in a
+ * prefix trie and consumed. Other messages are passed upstream. A message passed to
+ * {@link #publish(ZMTPMessage)} is sent to every subscriber with a prefix of its first content
+ * frame, found with a single walk of the trie.
+ *
+ * <p>A published message is encoded once per protocol version and framing among its subscribers,
+ * and each subscriber is written a duplicate of the shared buffer. Subscribers that have more
+ * than {@link #getHighWaterMark()} messages in flight, or whose channel is not writable, are slow:
+ * depending on the {@link SlowSubscriberPolicy}, messages to them are dropped or conflated, so a
+ * slow subscriber never blocks the publisher nor makes it queue without bound.
+ */
+@ChannelHandler.Sharable
+public class ZMTPPublisher extends SimpleChannelUpstreamHandler {
+
+  /**
+   * What to do with messages published to slow subscribers.
+   */
+  public enum SlowSubscriberPolicy {
+    /**
+     * Do not send the message to the subscriber, like ZeroMQ PUB sockets.
+     */
+    DROP,
+    /**
+     * Keep only the latest message for the subscriber, replacing any message kept before, and
+     * send it once the subscriber has caught up. Only suitable if each message supersedes all
+     * earlier ones, e.g. when there is a single topic of state updates.
+     */
+    CONFLATE
+  }
+
+  /**
+   * The default maximum number of messages in flight per subscriber, the same as the default
+   * send high water mark of ZeroMQ.
+   */
+  public static final int DEFAULT_HIGH_WATER_MARK = 1000;
+
+  private static final byte UNSUBSCRIBE = 0;
+  private static final byte SUBSCRIBE = 1;
+
+  private static final int MAX_VERSION = 3;
+
+  private final ZMTPSubscriptionTrie subscriptions = new ZMTPSubscriptionTrie();
+  private final SlowSubscriberPolicy policy;
+
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private final AtomicLong conflatedMessages = new AtomicLong();
+
+  private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+
+  /**
+   * Create a publisher that drops messages to slow subscribers.
+   */
+  public ZMTPPublisher() {
+    this(SlowSubscriberPolicy.DROP);
+  }
+
+  /**
+   * Create a publisher with the specified policy for slow subscribers.
+   */
+  public ZMTPPublisher(final SlowSubscriberPolicy policy) {
+    if (policy == null) {
+      throw new NullPointerException("policy");
+    }
+    this.policy = policy;
+  }
+
+  /**
+   * Get the maximum number of messages in flight per subscriber.
+   */
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Set the maximum number of messages in flight per subscriber, i.e. written but not yet
+   * completely sent. Subscribers with this many messages in flight are slow.
+   */
+  public void setHighWaterMark(final int highWaterMark) {
+    if (highWaterMark < 1) {
+      throw new IllegalArgumentException("highWaterMark: " + highWaterMark);
+    }
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Return the policy for messages published to slow subscribers.
+   */
+  public SlowSubscriberPolicy getSlowSubscriberPolicy() {
+    return policy;
+  }
+
+  /**
+   * Return the number of messages that were not sent to slow subscribers, including messages
+   * replaced by later ones when conflating.
+   */
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Return the number of messages kept for slow subscribers to be sent once they catch up.
+   */
+  public long getConflatedMessages() {
+    return conflatedMessages.get();
+  }
+
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final CodecBase codec = ctx.getPipeline().get(CodecBase.class);
+    if (codec == null) {
+      throw new IllegalStateException("No ZMTP codec in pipeline");
+    }
+    ctx.setAttachment(new ZMTPSubscriber(codec.getSession(), e.getChannel(), droppedMessages));
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final ZMTPSubscriber subscriber = (ZMTPSubscriber) ctx.getAttachment();
+    final Object message = e.getMessage();
+    if (subscriber != null && message instanceof ZMTPIncomingMessage) {
+      final List<ZMTPFrame> content = ((ZMTPIncomingMessage) message).getMessage().getContent();
+      if (content.size() == 1 && content.get(0).size() > 0) {
+        final ChannelBuffer data = content.get(0).getDataBuffer();
+        final byte action = data.getByte(data.readerIndex());
+        if (action == SUBSCRIBE || action == UNSUBSCRIBE) {
+          final byte[] prefix = new byte[data.readableBytes() - 1];
+          data.getBytes(data.readerIndex() + 1, prefix);
+          update(subscriber, action == SUBSCRIBE, prefix);
+          return;
+        }
+      }
+    } else if (subscriber != null && message instanceof ZMTPCommand) {
+      final ZMTPCommand command = (ZMTPCommand) message;
+      final boolean subscribe = ZMTPCommand.SUBSCRIBE.equals(command.getName());
+      if (subscribe || ZMTPCommand.CANCEL.equals(command.getName())) {
+        final ChannelBuffer data = command.getData();
+        final byte[] prefix = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), prefix);
+        update(subscriber, subscribe, prefix);
+        return;
+      }
+    }
+    super.messageReceived(ctx, e);
+  }
+
+  @Override
+  public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final ZMTPSubscriber subscriber = (ZMTPSubscriber) ctx.getAttachment();
+    if (subscriber != null && e.getChannel().isWritable()) {
+      subscriber.writeConflated();
+    }
+    super.channelInterestChanged(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final ZMTPSubscriber subscriber = (ZMTPSubscriber) ctx.getAttachment();
+    if (subscriber != null) {
+      synchronized (subscriptions) {
+        for (final byte[] prefix : subscriber.subscriptions) {
+          subscriptions.unsubscribe(prefix, subscriber);
+        }
+        subscriber.subscriptions.clear();
+      }
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  private void update(final ZMTPSubscriber subscriber, final boolean subscribe,
+                      final byte[] prefix) {
+    synchronized (subscriptions) {
+      if (subscribe) {
+        subscriptions.subscribe(prefix, subscriber);
+        subscriber.subscriptions.add(prefix);
+      } else if (subscriptions.unsubscribe(prefix, subscriber)) {
+        final Iterator<byte[]> iterator = subscriber.subscriptions.iterator();
+        while (iterator.hasNext()) {
+          if (Arrays.equals(iterator.next(), prefix)) {
+            iterator.remove();
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Send a message to all peers subscribed to a prefix of its first content frame.
+   *
+   * @return the number of subscribers the message was written to or, when conflating, kept for
+   *         as their latest message
+   */
+  public int publish(final ZMTPMessage message) {
+    final List<ZMTPSubscriber> matches = match(message);
+    if (matches.isEmpty()) {
+      return 0;
+    }
+    // Lazily encoded buffers, indexed by protocol version and whether the session is enveloped
+    final ChannelBuffer[] encoded = new ChannelBuffer[(MAX_VERSION + 1) * 2];
+    final int highWaterMark = this.highWaterMark;
+    int published = 0;
+    for (int i = 0; i < matches.size(); i++) {
+      final ZMTPSubscriber subscriber = matches.get(i);
+      final ZMTPSession session = subscriber.session;
+      final int version = session.getActualVersion();
+      final boolean enveloped = session.isEnveloped();
+      final int index = version * 2 + (enveloped ? 1 : 0);
+      ChannelBuffer buffer = encoded[index];
+      if (buffer == null) {
+        buffer = ChannelBuffers.buffer(ZMTPUtils.messageSize(message, enveloped, version));
+        ZMTPUtils.writeMessage(message, buffer, enveloped, version);
+        encoded[index] = buffer;
+      }
+      if (subscriber.write(buffer, highWaterMark)) {
+        published++;
+      } else if (policy == SlowSubscriberPolicy.CONFLATE) {
+        subscriber.conflate(buffer, highWaterMark);
+        conflatedMessages.incrementAndGet();
+        published++;
+      } else {
+        droppedMessages.incrementAndGet();
+      }
+    }
+    return published;
+  }
+
+  /**
+   * Return the subscribers to a prefix of the first content frame of message.
+   */
+  private List<ZMTPSubscriber> match(final ZMTPMessage message) {
+    final List<ZMTPSubscriber> matches = new ArrayList<ZMTPSubscriber>();
+    final List<ZMTPFrame> content = message.getContent();
+    final ChannelBuffer topic = content.isEmpty() ? ZMTPFrame.EMPTY_FRAME.getDataBuffer()
+                                                  : content.get(0).getDataBuffer();
+    synchronized (subscriptions) {
+      subscriptions.match(topic, topic.readerIndex(), topic.readableBytes(), matches);
+    }
+    return matches;
+  }
+
+  /**
+   * Return the number of subscriptions of all connected peers.
+   */
+  public int getSubscriptionCount() {
+    synchronized (subscriptions) {
+      return subscriptions.size();
+    }
+  }
+}
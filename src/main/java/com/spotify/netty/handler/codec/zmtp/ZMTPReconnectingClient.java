@@ -0,0 +1,547 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A ZMTP client that stays connected to a peer, reconnecting whenever the connection is lost, like
+ * a connecting ZMQ socket.
+ *
+ * <p>The pipelines of the connections are created by a pipeline factory that must include a ZMTP
+ * codec. A handler of the client is added last. Messages sent with {@link #send(ZMTPMessage)}
+ * while there is no connection whose handshake is done are queued, up to the high water mark, and
+ * written in batches of {@link #getBatchSize()} messages once the handshake of the next connection
+ * completes, each batch after the previous one has been written. Messages that were written to a
+ * connection that is lost before the writes complete are queued again, ahead of any other queued
+ * messages, so they are sent at least once. If that puts more messages than the high water mark in
+ * the queue, the newest queued messages are dropped. Messages whose write fails while the
+ * connection is still open, e.g. because a handler in the pipeline rejected them, are dropped.
+ *
+ * <p>Failed connection attempts and lost connections are followed by a new attempt after an
+ * exponential backoff, starting at the minimum backoff and doubling with every failed attempt up
+ * to the maximum backoff. The delay of each attempt is picked at random between half the backoff
+ * and the full backoff, so that clients that lost their connections at the same time, e.g. to a
+ * restarting server, do not all reconnect at once. The backoff is reset when a handshake
+ * completes. By default the attempts are scheduled on the scheduler shared by the {@link
+ * AutoFlushingWriteBatcher}s.
+ */
+public class ZMTPReconnectingClient {
+
+  public static final int DEFAULT_HIGH_WATER_MARK = 1000;
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final long DEFAULT_MIN_BACKOFF_MILLIS = 100;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10000;
+
+  private final ClientBootstrap bootstrap;
+  private final SocketAddress address;
+  private final ScheduledExecutorService scheduler;
+  private final Random random = new Random();
+
+  private final Object lock = new Object();
+
+  // Guarded by lock
+  private final ArrayDeque<ZMTPMessage> queue = new ArrayDeque<ZMTPMessage>();
+  private Connection connection;
+  private long attempt;
+  private Channel attemptChannel;
+  private ScheduledFuture<?> reconnect;
+  private int failedAttempts;
+  private boolean started;
+  private boolean closed;
+
+  private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+  private volatile int batchSize = DEFAULT_BATCH_SIZE;
+  private volatile long minBackoffNanos = MILLISECONDS.toNanos(DEFAULT_MIN_BACKOFF_MILLIS);
+  private volatile long maxBackoffNanos = MILLISECONDS.toNanos(DEFAULT_MAX_BACKOFF_MILLIS);
+
+  private final AtomicLong connectAttempts = new AtomicLong();
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong droppedMessages = new AtomicLong();
+  private final AtomicLong resentMessages = new AtomicLong();
+
+  /**
+   * Create a client using the default write batcher scheduler.
+   *
+   * @param channelFactory  The factory of the channels to connect with.
+   * @param pipelineFactory The factory of the pipelines of the connections, including a ZMTP codec.
+   * @param address         The address of the peer.
+   */
+  public ZMTPReconnectingClient(final ChannelFactory channelFactory,
+                                final ChannelPipelineFactory pipelineFactory,
+                                final SocketAddress address) {
+    this(channelFactory, pipelineFactory, address,
+         AutoFlushingWriteBatcher.getDefaultScheduler());
+  }
+
+  /**
+   * Create a client.
+   *
+   * @param channelFactory  The factory of the channels to connect with.
+   * @param pipelineFactory The factory of the pipelines of the connections, including a ZMTP codec.
+   * @param address         The address of the peer.
+   * @param scheduler       The scheduler used to schedule reconnection attempts.
+   */
+  public ZMTPReconnectingClient(final ChannelFactory channelFactory,
+                                final ChannelPipelineFactory pipelineFactory,
+                                final SocketAddress address,
+                                final ScheduledExecutorService scheduler) {
+    if (pipelineFactory == null) {
+      throw new NullPointerException("pipelineFactory");
+    }
+    if (address == null) {
+      throw new NullPointerException("address");
+    }
+    if (scheduler == null) {
+      throw new NullPointerException("scheduler");
+    }
+    this.bootstrap = new ClientBootstrap(channelFactory);
+    this.bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ChannelPipeline pipeline = pipelineFactory.getPipeline();
+        synchronized (lock) {
+          pipeline.addLast("zmtp-reconnecting-client", new Handler(attempt));
+        }
+        return pipeline;
+      }
+    });
+    this.address = address;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Start connecting to the peer.
+   */
+  public void start() {
+    synchronized (lock) {
+      if (started || closed) {
+        return;
+      }
+      started = true;
+    }
+    connect();
+  }
+
+  /**
+   * Send a message to the peer, or queue it if there is no connection or earlier messages are
+   * still queued.
+   *
+   * @return false if the message was dropped because the high water mark was reached or the client
+   *         is closed.
+   */
+  public boolean send(final ZMTPMessage message) {
+    if (message == null) {
+      throw new NullPointerException("message");
+    }
+    final Connection connection;
+    synchronized (lock) {
+      if (closed || queue.size() >= highWaterMark) {
+        droppedMessages.incrementAndGet();
+        return false;
+      }
+      queue.add(message);
+      connection = this.connection;
+    }
+    if (connection != null) {
+      connection.drain();
+    }
+    return true;
+  }
+
+  /**
+   * Stop reconnecting and close the current connection. Messages still queued are dropped.
+   */
+  public void close() {
+    final Channel channel;
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (reconnect != null) {
+        reconnect.cancel(false);
+        reconnect = null;
+      }
+      droppedMessages.addAndGet(queue.size());
+      queue.clear();
+      channel = attemptChannel;
+      attempt = 0;
+      attemptChannel = null;
+      if (connection != null) {
+        connection.lost = true;
+        connection = null;
+      }
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  private void connect() {
+    final long id;
+    final ChannelFuture future;
+    synchronized (lock) {
+      reconnect = null;
+      if (closed) {
+        return;
+      }
+      // The pipeline, and with a local transport even the handshake, is set up while connecting
+      id = connectAttempts.incrementAndGet();
+      attempt = id;
+      future = bootstrap.connect(address);
+      if (attempt == id) {
+        attemptChannel = future.getChannel();
+      }
+    }
+    future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          future.getChannel().close();
+          lost(id);
+        }
+      }
+    });
+  }
+
+  /**
+   * Called when the handshake of a connection has completed.
+   */
+  private void connected(final long id, final Channel channel) {
+    final Connection connection;
+    synchronized (lock) {
+      if (id != attempt) {
+        return;
+      }
+      failedAttempts = 0;
+      connects.incrementAndGet();
+      connection = new Connection(channel);
+      this.connection = connection;
+    }
+    connection.drain();
+  }
+
+  /**
+   * Called when a connection attempt failed or a connection was lost. Messages that were not
+   * written are queued again, within the high water mark, and a new attempt is scheduled.
+   */
+  private void lost(final long id) {
+    synchronized (lock) {
+      if (id != attempt) {
+        return;
+      }
+      attempt = 0;
+      attemptChannel = null;
+      final Connection connection = this.connection;
+      this.connection = null;
+      if (connection != null) {
+        connection.lost = true;
+        resentMessages.addAndGet(connection.unwritten.size());
+        final Write[] unwritten = connection.unwritten.toArray(new Write[0]);
+        for (int i = unwritten.length - 1; i >= 0; i--) {
+          queue.addFirst(unwritten[i].message);
+        }
+        connection.unwritten.clear();
+        while (queue.size() > highWaterMark) {
+          queue.pollLast();
+          droppedMessages.incrementAndGet();
+        }
+      }
+      if (closed) {
+        return;
+      }
+      final long backoff = Math.min(maxBackoffNanos,
+                                    minBackoffNanos << Math.min(failedAttempts, 30));
+      failedAttempts++;
+      final long delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+      reconnect = scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          connect();
+        }
+      }, delay, NANOSECONDS);
+    }
+  }
+
+  /**
+   * Get the number of messages queued while waiting for a connection.
+   */
+  public int getQueuedMessages() {
+    synchronized (lock) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Returns true if there is a connection whose handshake has completed.
+   */
+  public boolean isConnected() {
+    synchronized (lock) {
+      return connection != null;
+    }
+  }
+
+  public int getHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Set the maximum number of messages queued while waiting for a connection.
+   */
+  public void setHighWaterMark(final int highWaterMark) {
+    if (highWaterMark < 1) {
+      throw new IllegalArgumentException("highWaterMark: " + highWaterMark);
+    }
+    this.highWaterMark = highWaterMark;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Set the number of queued messages written at a time when a connection has been established.
+   */
+  public void setBatchSize(final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize: " + batchSize);
+    }
+    this.batchSize = batchSize;
+  }
+
+  public long getMinBackoff(final TimeUnit unit) {
+    return unit.convert(minBackoffNanos, NANOSECONDS);
+  }
+
+  public long getMaxBackoff(final TimeUnit unit) {
+    return unit.convert(maxBackoffNanos, NANOSECONDS);
+  }
+
+  /**
+   * Set the backoff after the first failed attempt and the maximum backoff.
+   */
+  public void setBackoff(final long minBackoff, final long maxBackoff, final TimeUnit unit) {
+    if (minBackoff < 1) {
+      throw new IllegalArgumentException("minBackoff: " + minBackoff);
+    }
+    if (maxBackoff < minBackoff) {
+      throw new IllegalArgumentException(
+          "maxBackoff must be greater than or equal to minBackoff (" + minBackoff + ")");
+    }
+    this.minBackoffNanos = unit.toNanos(minBackoff);
+    this.maxBackoffNanos = unit.toNanos(maxBackoff);
+  }
+
+  /**
+   * Get the number of connection attempts made.
+   */
+  public long getConnectAttempts() {
+    return connectAttempts.get();
+  }
+
+  /**
+   * Get the number of connections whose handshake completed.
+   */
+  public long getConnects() {
+    return connects.get();
+  }
+
+  /**
+   * Get the number of messages dropped because the high water mark was reached, the client was
+   * closed or their write failed while the connection was open.
+   */
+  public long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+
+  /**
+   * Get the number of messages queued again because their connection was lost before they were
+   * written.
+   */
+  public long getResentMessages() {
+    return resentMessages.get();
+  }
+
+  /**
+   * A connection whose handshake has completed and the messages written to it whose writes have
+   * not completed yet. All fields are guarded by the lock of the client.
+   */
+  private class Connection {
+
+    private final Channel channel;
+    private final LinkedHashSet<Write> unwritten = new LinkedHashSet<Write>();
+    private int batchWrites;
+    private boolean batchFull;
+    private boolean draining;
+    private boolean lost;
+
+    Connection(final Channel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Write queued messages until the queue is empty or a full batch has been written, and the
+     * batch after it once the last message of the batch has been written. Only one thread at a
+     * time writes, so that messages are not reordered, and none does so while holding the lock,
+     * as a handler may block the writing thread until the I/O thread has made room.
+     */
+    void drain() {
+      while (true) {
+        synchronized (lock) {
+          if (draining || !canWrite()) {
+            return;
+          }
+          draining = true;
+        }
+        try {
+          while (true) {
+            final Write write;
+            synchronized (lock) {
+              if (!canWrite()) {
+                break;
+              }
+              write = next();
+            }
+            channel.write(write.message).addListener(write);
+          }
+        } finally {
+          synchronized (lock) {
+            draining = false;
+          }
+        }
+      }
+    }
+
+    /**
+     * Check if the next queued message can be written. Must be called with the lock held.
+     */
+    private boolean canWrite() {
+      return !lost && !batchFull && !queue.isEmpty();
+    }
+
+    /**
+     * Take the next queued message and count it towards the current batch, which ends early when
+     * the queue runs empty. Must be called with the lock held.
+     */
+    private Write next() {
+      final boolean last = ++batchWrites >= batchSize;
+      final Write write = new Write(this, queue.poll(), last);
+      unwritten.add(write);
+      if (last) {
+        batchFull = true;
+      }
+      if (last || queue.isEmpty()) {
+        batchWrites = 0;
+      }
+      return write;
+    }
+
+    /**
+     * Called when the write of a message has completed.
+     */
+    void written(final Write write, final ChannelFuture future) {
+      synchronized (lock) {
+        if (lost) {
+          return;
+        }
+        if (!future.isSuccess()) {
+          if (!channel.isOpen()) {
+            // The connection is closing, the message is queued again when it is lost
+            return;
+          }
+          droppedMessages.incrementAndGet();
+        }
+        unwritten.remove(write);
+        if (write.last) {
+          batchFull = false;
+        }
+      }
+      drain();
+    }
+  }
+
+  /**
+   * A message written to a connection.
+   */
+  private static class Write implements ChannelFutureListener {
+
+    private final Connection connection;
+    private final ZMTPMessage message;
+    private final boolean last;
+
+    Write(final Connection connection, final ZMTPMessage message, final boolean last) {
+      this.connection = connection;
+      this.message = message;
+      this.last = last;
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+      connection.written(this, future);
+    }
+  }
+
+  /**
+   * Tells the client about the handshake and the closing of the connection of an attempt.
+   */
+  private class Handler extends SimpleChannelUpstreamHandler {
+
+    private final long id;
+
+    Handler(final long id) {
+      this.id = id;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      connected(id, e.getChannel());
+      super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      lost(id);
+      super.channelClosed(ctx, e);
+    }
+  }
+}
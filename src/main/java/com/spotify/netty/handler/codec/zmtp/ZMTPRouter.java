@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+/**
+ * Routes messages to connected peers by their identity, like a ZMQ ROUTER socket.
+ *
+ * <p>A single instance is shared by the pipelines of all connections and placed after the ZMTP
+ * codec. It registers the session of each connection under its remote identity when the
+ * handshake is done, and unregisters it when the channel is closed. Messages are then routed
+ * with {@link #send(byte[], ZMTPMessage)} in constant time, without boxing or copying the
+ * identity, and without any locking.
+ *
+ * <p>If two peers connect with the same identity, messages are routed to the one that connected
+ * last. Anonymous peers are given a unique identity by their session, see
+ * {@link ZMTPSession#setRemoteIdentity(byte[])}.
+ */
+@ChannelHandler.Sharable
+public class ZMTPRouter extends SimpleChannelUpstreamHandler {
+
+  private final ZMTPSessionRegistry sessions = new ZMTPSessionRegistry();
+
+  @Override
+  public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final CodecBase codec = ctx.getPipeline().get(CodecBase.class);
+    if (codec == null) {
+      throw new IllegalStateException("No ZMTP codec in pipeline");
+    }
+    final ZMTPSession session = codec.getSession();
+    ctx.setAttachment(session);
+    sessions.put(session);
+    super.channelConnected(ctx, e);
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final ZMTPSession session = (ZMTPSession) ctx.getAttachment();
+    if (session != null) {
+      sessions.remove(session);
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * Send a message to the peer with the specified identity.
+   *
+   * @return the future of the write, or null if no peer with the identity is connected
+   */
+  public ChannelFuture send(final byte[] identity, final ZMTPMessage message) {
+    final ZMTPSession session = sessions.get(identity);
+    if (session == null) {
+      return null;
+    }
+    return session.getChannel().write(message);
+  }
+
+  /**
+   * Return the session of the peer with the specified identity, or null if no such peer is
+   * connected.
+   */
+  public ZMTPSession getSession(final byte[] identity) {
+    return sessions.get(identity);
+  }
+
+  /**
+   * Return the number of connected peers.
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+}
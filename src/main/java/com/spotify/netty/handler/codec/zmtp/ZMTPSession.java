@@ -126,7 +126,7 @@ public class ZMTPSession {
   /**
    * Set the remote identity
    *
-   * @param remoteIdent Remote identity, if null an identity will be created
+   * @param remoteIdent Remote identity, if null or empty an identity will be created
    */
   public void setRemoteIdentity(@Nullable final byte[] remoteIdent) {
     if (this.remoteIdent != null) {
@@ -134,8 +134,8 @@ public class ZMTPSession {
     }
 
     this.remoteIdent = remoteIdent;
-    if (this.remoteIdent == null) {
-      // Create a new remote identity
+    if (this.remoteIdent == null || this.remoteIdent.length == 0) {
+      // Anonymous peer, create a new remote identity
       this.remoteIdent = ZMTPUtils.getBytesFromUUID(UUID.randomUUID());
     }
   }
@@ -159,7 +159,7 @@ public class ZMTPSession {
    * subclasses) and the actualVersion might be lower than the highest supported version of your
    * CodecBase subclass due to interoperability downgrades.
    *
-   * @return 1 for ZMTP/1.0 or 2 for ZMTP/2.0.
+   * @return 1 for ZMTP/1.0, 2 for ZMTP/2.0 or 3 for ZMTP/3.0.
    */
   public int getActualVersion() {
     return actualVersion;
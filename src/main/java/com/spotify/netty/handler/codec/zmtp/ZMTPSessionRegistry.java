@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent map from remote identities to sessions, used to route messages by identity.
+ *
+ * <p>Identities are hashed into primitive 64 bit keys that are stored in an open addressing table
+ * with linear probing, so neither lookups nor updates box keys or allocate wrapper objects, and a
+ * lookup usually touches a single slot. Hash collisions are resolved by comparing the identity
+ * octets of the entry, which are only looked at once the 64 bit keys match.
+ *
+ * <p>Lookups are lock free. Updates are serialized by a lock, and publish an entry before its key
+ * so that a lookup that sees a key also sees its entry. Removed entries leave their key behind as
+ * a tombstone that is reused when the same key is registered again, and the table is rebuilt
+ * when live entries and tombstones fill more than half of it.
+ */
+class ZMTPSessionRegistry {
+
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * Marks a slot that has never been used. Hashes of this value are remapped.
+   */
+  private static final long EMPTY = 0;
+
+  private volatile Table table = new Table(MIN_CAPACITY);
+
+  // Only accessed while holding the lock
+  private int size;
+  private int used;
+
+  /**
+   * Return the session with the specified remote identity, or null if there is none.
+   */
+  ZMTPSession get(final byte[] identity) {
+    final Table table = this.table;
+    final long key = hash(identity);
+    final int mask = table.mask;
+    for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+      final long k = table.keys.get(i);
+      if (k == EMPTY) {
+        return null;
+      }
+      if (k == key) {
+        final Entry entry = table.entries.get(i);
+        if (entry != null && Arrays.equals(entry.identity, identity)) {
+          return entry.session;
+        }
+      }
+    }
+  }
+
+  /**
+   * Register a session under its remote identity, replacing any session registered with the same
+   * identity.
+   */
+  synchronized void put(final ZMTPSession session) {
+    final byte[] identity = session.getRemoteIdentity();
+    if (identity == null) {
+      throw new IllegalArgumentException("session has no remote identity");
+    }
+    final long key = hash(identity);
+    // The session's identity array could be modified by its owner
+    final Entry entry = new Entry(identity.clone(), session);
+    final Table table = this.table;
+    final int mask = table.mask;
+    int tombstone = -1;
+    int i = (int) key & mask;
+    for (; ; i = (i + 1) & mask) {
+      final long k = table.keys.get(i);
+      if (k == EMPTY) {
+        break;
+      }
+      if (k == key) {
+        final Entry existing = table.entries.get(i);
+        if (existing == null) {
+          if (tombstone == -1) {
+            tombstone = i;
+          }
+        } else if (Arrays.equals(existing.identity, identity)) {
+          table.entries.set(i, entry);
+          return;
+        }
+      }
+    }
+    size++;
+    if (tombstone != -1) {
+      table.entries.set(tombstone, entry);
+      return;
+    }
+    if ((used + 1) * 2 > table.capacity()) {
+      rebuild(size * 4);
+      insert(this.table, key, entry);
+    } else {
+      table.entries.set(i, entry);
+      table.keys.set(i, key);
+    }
+    used++;
+  }
+
+  /**
+   * Unregister a session, unless another session has since been registered with the same
+   * identity.
+   *
+   * @return true if the session was unregistered
+   */
+  synchronized boolean remove(final ZMTPSession session) {
+    final byte[] identity = session.getRemoteIdentity();
+    if (identity == null) {
+      return false;
+    }
+    final long key = hash(identity);
+    final Table table = this.table;
+    final int mask = table.mask;
+    for (int i = (int) key & mask; ; i = (i + 1) & mask) {
+      final long k = table.keys.get(i);
+      if (k == EMPTY) {
+        return false;
+      }
+      if (k == key) {
+        final Entry entry = table.entries.get(i);
+        if (entry != null && entry.session == session) {
+          table.entries.set(i, null);
+          size--;
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of registered sessions.
+   */
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Replace the table with one that holds only the live entries, dropping all tombstones.
+   */
+  private void rebuild(final int minCapacity) {
+    final Table old = this.table;
+    final Table table = new Table(Math.max(MIN_CAPACITY, Integer.highestOneBit(minCapacity) << 1));
+    used = 0;
+    for (int i = 0; i < old.capacity(); i++) {
+      final Entry entry = old.entries.get(i);
+      if (entry != null) {
+        insert(table, old.keys.get(i), entry);
+        used++;
+      }
+    }
+    this.table = table;
+  }
+
+  private static void insert(final Table table, final long key, final Entry entry) {
+    final int mask = table.mask;
+    int i = (int) key & mask;
+    while (table.keys.get(i) != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    table.entries.set(i, entry);
+    table.keys.set(i, key);
+  }
+
+  /**
+   * Hash an identity into a 64 bit key using FNV-1a followed by the MurmurHash3 finalizer, which
+   * spreads the entropy of the identity into the low bits that select the slot.
+   */
+  static long hash(final byte[] identity) {
+    long h = 0xcbf29ce484222325L;
+    for (final byte b : identity) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY ? 1 : h;
+  }
+
+  private static class Table {
+
+    final AtomicLongArray keys;
+    final AtomicReferenceArray<Entry> entries;
+    final int mask;
+
+    Table(final int capacity) {
+      keys = new AtomicLongArray(capacity);
+      entries = new AtomicReferenceArray<Entry>(capacity);
+      mask = capacity - 1;
+    }
+
+    int capacity() {
+      return mask + 1;
+    }
+  }
+
+  private static class Entry {
+
+    final byte[] identity;
+    final ZMTPSession session;
+
+    Entry(final byte[] identity, final ZMTPSession session) {
+      this.identity = identity;
+      this.session = session;
+    }
+  }
+}
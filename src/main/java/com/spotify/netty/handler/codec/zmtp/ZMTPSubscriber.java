@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A connection subscribed to a {@link ZMTPPublisher}, keeping track of the messages in flight to
+ * it.
+ */
+class ZMTPSubscriber {
+
+  final ZMTPSession session;
+  final Channel channel;
+
+  /**
+   * The prefixes this subscriber is subscribed to, once per subscription, so that they can be
+   * removed when the connection is closed. Guarded by the subscription trie.
+   */
+  final List<byte[]> subscriptions = new ArrayList<byte[]>();
+
+  /**
+   * The last match of the subscription trie that collected this subscriber. Guarded by the
+   * subscription trie.
+   */
+  long matchEpoch;
+
+  private final AtomicLong droppedMessages;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicReference<ChannelBuffer> conflated = new AtomicReference<ChannelBuffer>();
+  private volatile int conflatedHighWaterMark;
+
+  private final ChannelFutureListener writeListener = new ChannelFutureListener() {
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+      inFlight.decrementAndGet();
+      writeConflated();
+    }
+  };
+
+  /**
+   * @param droppedMessages Counts kept messages that are replaced before they could be written.
+   */
+  ZMTPSubscriber(final ZMTPSession session, final Channel channel,
+                 final AtomicLong droppedMessages) {
+    this.session = session;
+    this.channel = channel;
+    this.droppedMessages = droppedMessages;
+  }
+
+  /**
+   * Write a duplicate of an encoded message, unless this subscriber is slow. A message kept by
+   * {@link #conflate(ChannelBuffer, int)} is dropped, as it would otherwise be delivered after
+   * this newer one.
+   *
+   * @return false if the subscriber is slow and the message was not written
+   */
+  boolean write(final ChannelBuffer encoded, final int highWaterMark) {
+    if (!reserve(highWaterMark)) {
+      return false;
+    }
+    if (conflated.getAndSet(null) != null) {
+      droppedMessages.incrementAndGet();
+    }
+    channel.write(encoded.duplicate()).addListener(writeListener);
+    return true;
+  }
+
+  /**
+   * Count a message as in flight, unless this subscriber is slow.
+   *
+   * @return false if the subscriber is slow
+   */
+  private boolean reserve(final int highWaterMark) {
+    if (!channel.isWritable()) {
+      return false;
+    }
+    if (inFlight.incrementAndGet() > highWaterMark) {
+      inFlight.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Keep an encoded message to be written once this subscriber has caught up, replacing and
+   * dropping any message kept before.
+   */
+  void conflate(final ChannelBuffer encoded, final int highWaterMark) {
+    conflatedHighWaterMark = highWaterMark;
+    if (conflated.getAndSet(encoded) != null) {
+      droppedMessages.incrementAndGet();
+    }
+    // The messages in flight may have completed before the message was kept
+    if (inFlight.get() == 0) {
+      writeConflated();
+    }
+  }
+
+  /**
+   * Write the message kept by {@link #conflate(ChannelBuffer, int)}, if any, unless this
+   * subscriber is still slow.
+   */
+  void writeConflated() {
+    // Only take the kept message once it can be written, so that it never has to be put back
+    // after a newer message was kept or written
+    if (conflated.get() == null || !reserve(conflatedHighWaterMark)) {
+      return;
+    }
+    final ChannelBuffer next = conflated.getAndSet(null);
+    if (next == null) {
+      inFlight.decrementAndGet();
+      return;
+    }
+    channel.write(next.duplicate()).addListener(writeListener);
+  }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A byte prefix trie mapping subscription prefixes to the subscribers of a publisher.
+ *
+ * <p>The trie is path compressed: every node holds the run of octets leading to it from its
+ * parent, so a chain of prefixes without branches costs a single node. Children are kept in an
+ * array sorted by their first octet. Matching a topic walks the trie once, from the root along the
+ * octets of the topic, and collects the subscribers of every node passed, so the cost depends on
+ * the length of the topic rather than on the number of subscriptions. A subscriber with several
+ * matching prefixes is collected once.
+ *
+ * <p>Subscriptions are counted, as in ZeroMQ: a prefix subscribed twice by the same subscriber
+ * must be unsubscribed twice.
+ *
+ * <p>Not thread safe.
+ */
+class ZMTPSubscriptionTrie {
+
+  private static final byte[] NO_OCTETS = new byte[0];
+  private static final Node[] NO_NODES = new Node[0];
+
+  private final Node root = new Node(NO_OCTETS);
+  private long epoch;
+  private int size;
+
+  /**
+   * Subscribe a subscriber to messages whose first frame starts with prefix.
+   */
+  void subscribe(final byte[] prefix, final ZMTPSubscriber subscriber) {
+    Node node = root;
+    int i = 0;
+    while (i < prefix.length) {
+      final int index = node.find(prefix[i]);
+      if (index < 0) {
+        final Node leaf = new Node(Arrays.copyOfRange(prefix, i, prefix.length));
+        node.insert(-index - 1, leaf);
+        node = leaf;
+        break;
+      }
+      Node child = node.children[index];
+      final int common = commonPrefixLength(child.label, prefix, i);
+      if (common < child.label.length) {
+        // Split the child where the new prefix diverges from it
+        final Node split = new Node(Arrays.copyOf(child.label, common));
+        child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+        split.insert(0, child);
+        node.children[index] = split;
+        child = split;
+      }
+      node = child;
+      i += common;
+    }
+    node.add(subscriber);
+    size++;
+  }
+
+  /**
+   * Remove one subscription of a subscriber to prefix.
+   *
+   * @return false if the subscriber was not subscribed to prefix
+   */
+  boolean unsubscribe(final byte[] prefix, final ZMTPSubscriber subscriber) {
+    final List<Node> path = new ArrayList<Node>();
+    Node node = root;
+    int i = 0;
+    while (i < prefix.length) {
+      path.add(node);
+      final int index = node.find(prefix[i]);
+      if (index < 0) {
+        return false;
+      }
+      node = node.children[index];
+      if (commonPrefixLength(node.label, prefix, i) != node.label.length) {
+        return false;
+      }
+      i += node.label.length;
+    }
+    if (!node.remove(subscriber)) {
+      return false;
+    }
+    size--;
+    prune(node, path);
+    return true;
+  }
+
+  /**
+   * Return the number of subscriptions.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Add the subscribers to the first length octets of topic at index to matches, each subscriber
+   * at most once.
+   */
+  void match(final ChannelBuffer topic, final int index, final int length,
+             final List<ZMTPSubscriber> matches) {
+    final long epoch = ++this.epoch;
+    Node node = root;
+    int i = 0;
+    while (true) {
+      node.collect(epoch, matches);
+      if (i == length) {
+        return;
+      }
+      final int childIndex = node.find(topic.getByte(index + i));
+      if (childIndex < 0) {
+        return;
+      }
+      node = node.children[childIndex];
+      final byte[] label = node.label;
+      if (i + label.length > length) {
+        return;
+      }
+      // The first octet has already been compared when finding the child
+      for (int j = 1; j < label.length; j++) {
+        if (topic.getByte(index + i + j) != label[j]) {
+          return;
+        }
+      }
+      i += label.length;
+    }
+  }
+
+  /**
+   * Remove nodes left without subscribers and merge chains of nodes without branches.
+   */
+  private void prune(Node node, final List<Node> path) {
+    for (int i = path.size() - 1; i >= 0; i--) {
+      final Node parent = path.get(i);
+      if (node.subscriberCount > 0) {
+        break;
+      }
+      if (node.children.length == 0) {
+        parent.remove(node);
+      } else if (node.children.length == 1) {
+        final Node child = node.children[0];
+        final byte[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+        child.label = label;
+        parent.children[parent.find(label[0])] = child;
+        break;
+      } else {
+        break;
+      }
+      node = parent;
+    }
+  }
+
+  private static int commonPrefixLength(final byte[] label, final byte[] prefix, final int offset) {
+    final int max = Math.min(label.length, prefix.length - offset);
+    int i = 0;
+    while (i < max && label[i] == prefix[offset + i]) {
+      i++;
+    }
+    return i;
+  }
+
+  private static class Node {
+
+    byte[] label;
+    Node[] children = NO_NODES;
+
+    // Parallel arrays of subscribers and their subscription counts
+    ZMTPSubscriber[] subscribers;
+    int[] counts;
+    int subscriberCount;
+
+    Node(final byte[] label) {
+      this.label = label;
+    }
+
+    /**
+     * Return the index of the child starting with the specified octet, or (-(insertion point) - 1)
+     * if there is none.
+     */
+    int find(final byte b) {
+      int low = 0;
+      int high = children.length - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final byte midByte = children[mid].label[0];
+        if (midByte < b) {
+          low = mid + 1;
+        } else if (midByte > b) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+
+    void insert(final int index, final Node child) {
+      final Node[] children = new Node[this.children.length + 1];
+      System.arraycopy(this.children, 0, children, 0, index);
+      children[index] = child;
+      System.arraycopy(this.children, index, children, index + 1, this.children.length - index);
+      this.children = children;
+    }
+
+    void remove(final Node child) {
+      final int index = find(child.label[0]);
+      final Node[] children = new Node[this.children.length - 1];
+      System.arraycopy(this.children, 0, children, 0, index);
+      System.arraycopy(this.children, index + 1, children, index, children.length - index);
+      this.children = children;
+    }
+
+    void add(final ZMTPSubscriber subscriber) {
+      for (int i = 0; i < subscriberCount; i++) {
+        if (subscribers[i] == subscriber) {
+          counts[i]++;
+          return;
+        }
+      }
+      if (subscribers == null) {
+        subscribers = new ZMTPSubscriber[1];
+        counts = new int[1];
+      } else if (subscriberCount == subscribers.length) {
+        subscribers = Arrays.copyOf(subscribers, subscriberCount * 2);
+        counts = Arrays.copyOf(counts, subscriberCount * 2);
+      }
+      subscribers[subscriberCount] = subscriber;
+      counts[subscriberCount] = 1;
+      subscriberCount++;
+    }
+
+    boolean remove(final ZMTPSubscriber subscriber) {
+      for (int i = 0; i < subscriberCount; i++) {
+        if (subscribers[i] == subscriber) {
+          if (--counts[i] == 0) {
+            subscriberCount--;
+            subscribers[i] = subscribers[subscriberCount];
+            counts[i] = counts[subscriberCount];
+            subscribers[subscriberCount] = null;
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    void collect(final long epoch, final List<ZMTPSubscriber> matches) {
+      for (int i = 0; i < subscriberCount; i++) {
+        final ZMTPSubscriber subscriber = subscribers[i];
+        if (subscriber.matchEpoch != epoch) {
+          subscriber.matchEpoch = epoch;
+          matches.add(subscriber);
+        }
+      }
+    }
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.spotify.netty.handler.codec.zmtp;
 
+import com.spotify.netty.handler.queue.ExpiringMessage;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -32,6 +34,7 @@ public class ZMTPUtils {
 
   public static final byte MORE_FLAG = 0x1;
   public static final byte FINAL_FLAG = 0x0;
+  public static final byte COMMAND_FLAG = 0x4;
   public static final ZMTPFrame DELIMITER = ZMTPFrame.create();
 
   /**
@@ -216,6 +219,32 @@ public class ZMTPUtils {
     return size;
   }
 
+  /**
+   * Return the ZMTP message of an outgoing write, which may be wrapped in an {@link
+   * ExpiringMessage}, or null if the write is something else.
+   */
+  static ZMTPMessage outgoingMessage(Object message) {
+    if (message instanceof ExpiringMessage) {
+      message = ((ExpiringMessage) message).getMessage();
+    }
+    return message instanceof ZMTPMessage ? (ZMTPMessage) message : null;
+  }
+
+  /**
+   * Get the total size of the frames of a message, without framing overhead. This is the byte
+   * size the receiving codec reports for the message.
+   */
+  static long payloadSize(final ZMTPMessage message) {
+    long size = 0;
+    for (final ZMTPFrame frame : message.getEnvelope()) {
+      size += frame.size();
+    }
+    for (final ZMTPFrame frame : message.getContent()) {
+      size += frame.size();
+    }
+    return size;
+  }
+
   /**
    * Create a string from binary data, keeping printable ascii and hex encoding everything else.
    *
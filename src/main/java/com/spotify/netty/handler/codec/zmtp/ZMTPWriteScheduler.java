@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules the writes of a group of connections in deficit round robin order, so that a
+ * connection writing large messages at a high rate cannot monopolize the I/O thread and delay the
+ * writes of the other connections of the group.
+ *
+ * <p>A single instance is shared by the pipelines of the connections to schedule fairly, e.g.
+ * the connections served by one I/O worker, and placed after the ZMTP codec. Outgoing {@link
+ * ZMTPMessage}s and buffers are queued per connection. Connections with queued writes take turns,
+ * and each turn a connection may send up to the quantum of bytes plus what it did not use of
+ * earlier turns while it had writes queued. A connection whose channel, or {@link
+ * AutoFlushingWriteBatcher} if there is one in the pipeline, is not writable does not take turns
+ * until it becomes writable again, so the batcher keeps at most about one quantum of data per
+ * connection beyond its high water mark.
+ *
+ * <p>Only one thread at a time passes writes on. Writes from other threads are queued and passed
+ * on by that thread, so a writing thread may end up writing for other connections.
+ *
+ * <p>Other writes are passed on as is.
+ */
+@ChannelHandler.Sharable
+public class ZMTPWriteScheduler extends SimpleChannelHandler {
+
+  public static final int DEFAULT_QUANTUM = 16 * 1024;
+
+  private final Object lock = new Object();
+
+  // Guarded by lock
+  private final ArrayDeque<Flow> active = new ArrayDeque<Flow>();
+  private boolean draining;
+  private int queuedMessages;
+  private long queuedBytes;
+
+  private volatile int quantum;
+
+  public ZMTPWriteScheduler() {
+    this(DEFAULT_QUANTUM);
+  }
+
+  /**
+   * Create a new scheduler.
+   *
+   * @param quantum The number of bytes a connection may send per turn.
+   */
+  public ZMTPWriteScheduler(final int quantum) {
+    setQuantum(quantum);
+  }
+
+  @Override
+  public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
+      throws Exception {
+    final long size = size(e.getMessage());
+    if (size < 0) {
+      ctx.sendDownstream(e);
+      return;
+    }
+    synchronized (lock) {
+      final Flow flow = flow(ctx);
+      if (flow.closed) {
+        e.getFuture().setFailure(new ClosedChannelException());
+        return;
+      }
+      flow.queue.add(e);
+      queuedMessages++;
+      queuedBytes += size;
+      activate(flow);
+    }
+    drain();
+  }
+
+  @Override
+  public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    super.channelInterestChanged(ctx, e);
+    synchronized (lock) {
+      activate(flow(ctx));
+    }
+    drain();
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    final List<MessageEvent> pending;
+    synchronized (lock) {
+      final Flow flow = flow(ctx);
+      flow.closed = true;
+      if (flow.active) {
+        active.remove(flow);
+        flow.active = false;
+      }
+      pending = new ArrayList<MessageEvent>(flow.queue);
+      flow.queue.clear();
+      for (final MessageEvent event : pending) {
+        queuedMessages--;
+        queuedBytes -= size(event.getMessage());
+      }
+    }
+    for (final MessageEvent event : pending) {
+      event.getFuture().setFailure(new ClosedChannelException());
+    }
+    super.channelClosed(ctx, e);
+  }
+
+  /**
+   * Get the flow of a connection, creating it on first use. Must be called with the lock held.
+   */
+  private Flow flow(final ChannelHandlerContext ctx) {
+    Flow flow = (Flow) ctx.getAttachment();
+    if (flow == null) {
+      flow = new Flow(ctx);
+      ctx.setAttachment(flow);
+    }
+    return flow;
+  }
+
+  /**
+   * Let a flow take turns if it has writes queued and can write. Must be called with the lock
+   * held.
+   */
+  private void activate(final Flow flow) {
+    if (!flow.active && !flow.queue.isEmpty() && flow.isWritable()) {
+      flow.active = true;
+      active.add(flow);
+    }
+  }
+
+  /**
+   * Give the active flows turns until none of them has anything left to write or can write.
+   */
+  private void drain() {
+    while (true) {
+      synchronized (lock) {
+        if (draining || active.isEmpty()) {
+          return;
+        }
+        draining = true;
+      }
+      try {
+        while (true) {
+          final Flow flow;
+          final List<MessageEvent> writes = new ArrayList<MessageEvent>();
+          synchronized (lock) {
+            flow = active.poll();
+            if (flow == null) {
+              break;
+            }
+            flow.active = false;
+            if (!flow.isWritable()) {
+              // Activated again when the channel becomes writable
+              continue;
+            }
+            flow.deficit += quantum;
+            while (!flow.queue.isEmpty()) {
+              final long size = size(flow.queue.peek().getMessage());
+              if (size > flow.deficit) {
+                break;
+              }
+              writes.add(flow.queue.poll());
+              flow.deficit -= size;
+              queuedMessages--;
+              queuedBytes -= size;
+            }
+            if (flow.queue.isEmpty()) {
+              flow.deficit = 0;
+            } else {
+              flow.active = true;
+              active.add(flow);
+            }
+          }
+          for (int i = 0; i < writes.size(); i++) {
+            flow.ctx.sendDownstream(writes.get(i));
+          }
+        }
+      } finally {
+        synchronized (lock) {
+          draining = false;
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the number of bytes a write accounts for, or -1 if it is not scheduled.
+   */
+  private static long size(final Object message) {
+    if (message instanceof ChannelBuffer) {
+      return ((ChannelBuffer) message).readableBytes();
+    }
+    final ZMTPMessage zmtpMessage = ZMTPUtils.outgoingMessage(message);
+    if (zmtpMessage == null) {
+      return -1;
+    }
+    return ZMTPUtils.payloadSize(zmtpMessage);
+  }
+
+  public int getQuantum() {
+    return quantum;
+  }
+
+  /**
+   * Set the number of bytes a connection may send per turn.
+   */
+  public void setQuantum(final int quantum) {
+    if (quantum < 1) {
+      throw new IllegalArgumentException("quantum: " + quantum);
+    }
+    this.quantum = quantum;
+  }
+
+  /**
+   * Get the number of writes currently queued, over all connections.
+   */
+  public int getQueuedMessages() {
+    synchronized (lock) {
+      return queuedMessages;
+    }
+  }
+
+  /**
+   * Get the number of bytes currently queued, over all connections.
+   */
+  public long getQueuedBytes() {
+    synchronized (lock) {
+      return queuedBytes;
+    }
+  }
+
+  /**
+   * Get the number of connections that have writes queued and are waiting for their turn.
+   */
+  public int getActiveFlows() {
+    synchronized (lock) {
+      return active.size();
+    }
+  }
+
+  /**
+   * The queued writes and scheduling state of a connection.
+   */
+  private static class Flow {
+
+    private final ChannelHandlerContext ctx;
+    private final ArrayDeque<MessageEvent> queue = new ArrayDeque<MessageEvent>();
+    private long deficit;
+    private boolean active;
+    private boolean closed;
+    private AutoFlushingWriteBatcher batcher;
+    private boolean lookedUp;
+
+    Flow(final ChannelHandlerContext ctx) {
+      this.ctx = ctx;
+    }
+
+    boolean isWritable() {
+      if (!ctx.getChannel().isWritable()) {
+        return false;
+      }
+      if (!lookedUp) {
+        batcher = ctx.getPipeline().get(AutoFlushingWriteBatcher.class);
+        lookedUp = true;
+      }
+      return batcher == null || batcher.isWritable();
+    }
+  }
+}
@@ -17,23 +17,73 @@
 package com.spotify.netty.handler.queue;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
 import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.SocketChannel;
 import org.jboss.netty.handler.queue.BufferedWriteHandler;
 import org.jetbrains.annotations.NotNull;
 
+import java.net.SocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 /**
  * A channel handler that attempts to batch together and consolidate smaller writes to avoid many
  * small individual writes on the channel and the syscall overhead this would incur.
+ *
+ * <p>When consolidating on socket channels, queued buffers are copied into a pooled per-channel
+ * buffer that is reused once the write future of the consolidated write has completed, instead of
+ * allocating a new buffer for every flush.
+ *
+ * <p>Flushing is suspended while the channel is not writable and resumed when the channel becomes
+ * writable again, so that a slow peer does not make outbound data pile up in the transport. The
+ * batcher instead keeps the data queued and has its own write buffer water marks: once more than
+ * {@link #getWriteBufferHighWaterMark()} bytes are queued, {@link #isWritable()} returns false
+ * until the queue has been drained below {@link #getWriteBufferLowWaterMark()}. Each change of
+ * writability is signalled with a channel interest changed event sent upstream. Writers should
+ * stop writing while the batcher is not writable to bound the memory used by a slow peer.
+ *
+ * <p>Messages wrapped in an {@link UrgentMessage} are kept in a separate queue that is always
+ * drained first, i.e. they are written ahead of any queued regular messages. Writing an urgent
+ * message triggers an immediate flush of the urgent queue, regardless of whether the channel is
+ * writable.
+ *
+ * <p>Messages wrapped in an {@link ExpiringMessage} are dropped instead of flushed if their
+ * deadline has passed by the time they are taken off the queue. Their write futures are failed
+ * and the drops are counted, see {@link #getExpiredMessages()}.
+ *
+ * <p>Closing the channel flushes the queues. By default anything that cannot be flushed right
+ * away, because the channel is not writable, is dropped. With a linger period set, see {@link
+ * #setLinger(long, TimeUnit)}, the close is instead held back until the queues have been flushed
+ * and written, or until the linger period has passed, like the linger option of a ZMQ socket.
+ * Writes requested while a close is held back fail. The messages and bytes flushed while
+ * lingering and those dropped when the linger period ran out are counted.
+ *
+ * <p>Every flush is reported to a {@link WriteBatcherMetrics}, see
+ * {@link #setMetrics(WriteBatcherMetrics)}, along with what triggered it.
+ *
+ * <p>The clock used to measure time and the scheduler that runs the periodic flush task can be
+ * replaced, e.g. with virtual time implementations to simulate batching policies reproducibly.
  */
 public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 
@@ -43,14 +93,48 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
   private static final TimeUnit DEFAULT_MAX_DELAY_TIMEUNIT = TimeUnit.MICROSECONDS;
   private static final boolean DEFAULT_CONSOLIDATE_ON_FLUSH = true;
   private static final int DEFAULT_MAX_BUFFER_SIZE = 4096;
+  private static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+  private static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+  private static final int MAX_POOLED_BUFFERS = 2;
+  private static final int MAX_POOLED_BUFFER_CAPACITY = 64 * 1024;
 
   private final AtomicInteger bufferSize = new AtomicInteger();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private final AtomicBoolean writable = new AtomicBoolean(true);
+  private final Queue<MessageEvent> urgentQueue = new ConcurrentLinkedQueue<MessageEvent>();
+  private final AtomicLong expiredMessages = new AtomicLong();
+  private final ConsolidationBufferPool bufferPool =
+      new ConsolidationBufferPool(MAX_POOLED_BUFFERS, MAX_POOLED_BUFFER_CAPACITY);
   private final long intervalNanos;
-  private final long maxDelayNanos = DEFAULT_MAX_DELAY_TIMEUNIT.toNanos(DEFAULT_MAX_DELAY);
-  private final int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+  private final long maxDelayNanos;
+  private final int maxBufferSize;
+  private final Clock clock;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+  private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+
+  private volatile long lingerNanos;
 
   private volatile long lastFlush;
   private volatile long lastWrite;
+  private volatile ChannelFuture lastWriteFuture;
+  private volatile PendingClose pendingClose;
+
+  private final AtomicLong lingerFlushedMessages = new AtomicLong();
+  private final AtomicLong lingerFlushedBytes = new AtomicLong();
+  private final AtomicLong lingerDroppedMessages = new AtomicLong();
+  private final AtomicLong lingerDroppedBytes = new AtomicLong();
+
+  private volatile ChannelHandlerContext ctx;
+  private volatile WriteBatcherMetrics metrics = WriteBatcherMetrics.NOOP;
+
+  // Only accessed by the thread holding the flushing lock
+  private int flushedMessages;
+  private long flushedBytes;
+  private long flushStart;
+  private long maxQueueDelayNanos;
+  private long totalQueueDelayNanos;
 
   private static final ScheduledThreadPoolExecutor flusher =
       new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
@@ -71,9 +155,9 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
     @Override
     public void run() {
       // Flush if the buffer has not been flushed during the last max delay time interval
-      final long nanosSinceLastFlush = System.nanoTime() - lastFlush;
+      final long nanosSinceLastFlush = clock.nanoTime() - lastFlush;
       if (nanosSinceLastFlush > maxDelayNanos) {
-        flush();
+        flush(FlushReason.SCHEDULED);
       }
     }
   };
@@ -123,8 +207,49 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
    */
   public AutoFlushingWriteBatcher(final long interval, final TimeUnit intervalUnit,
                                   final boolean consolidateOnFlush) {
+    this(interval, intervalUnit, DEFAULT_MAX_DELAY, DEFAULT_MAX_DELAY_TIMEUNIT,
+         DEFAULT_MAX_BUFFER_SIZE, consolidateOnFlush, Clock.SYSTEM, flusher);
+  }
+
+  /**
+   * Create a write batcher with a custom batching policy, clock and scheduler.
+   *
+   * @param interval           The flush interval, i.e. how often the flush task runs.
+   * @param intervalUnit       The time unit of the flush interval.
+   * @param maxDelay           Writes that arrive more than this long after the previous write are
+   *                           flushed immediately, and the flush task flushes if nothing has been
+   *                           flushed for this long.
+   * @param maxDelayUnit       The time unit of the max delay.
+   * @param maxBufferSize      The number of queued bytes above which the queue is flushed.
+   * @param consolidateOnFlush true if buffers should be consolidated on flush, false otherwise.
+   * @param clock              The clock used to measure time.
+   * @param scheduler          The scheduler used to run the flush task.
+   */
+  public AutoFlushingWriteBatcher(final long interval, final TimeUnit intervalUnit,
+                                  final long maxDelay, final TimeUnit maxDelayUnit,
+                                  final int maxBufferSize, final boolean consolidateOnFlush,
+                                  final Clock clock, final ScheduledExecutorService scheduler) {
     super(consolidateOnFlush);
+    if (clock == null) {
+      throw new NullPointerException("clock");
+    }
+    if (scheduler == null) {
+      throw new NullPointerException("scheduler");
+    }
     this.intervalNanos = intervalUnit.toNanos(interval);
+    this.maxDelayNanos = maxDelayUnit.toNanos(maxDelay);
+    this.maxBufferSize = maxBufferSize;
+    this.clock = clock;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Return the scheduler that runs the flush task of write batchers created without a custom
+   * scheduler. Other periodic per connection work, e.g. heartbeating, can share it instead of
+   * starting timers of its own. It must not be shut down.
+   */
+  public static ScheduledExecutorService getDefaultScheduler() {
+    return flusher;
   }
 
   /**
@@ -136,8 +261,8 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
     super.channelOpen(ctx, e);
 
     // Schedule a task to flush and enforce the maximum latency that a message is buffered
-    flushFuture = flusher.scheduleAtFixedRate(flushTask, intervalNanos, intervalNanos,
-                                              NANOSECONDS);
+    flushFuture = scheduler.scheduleAtFixedRate(flushTask, intervalNanos, intervalNanos,
+                                                NANOSECONDS);
   }
 
   /**
@@ -146,10 +271,73 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
   @Override
   public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
       throws Exception {
+    // Anything still queued when the channel is closed by the peer while lingering is dropped
+    final PendingClose close = pendingClose;
+    if (close != null) {
+      close.finish(true);
+    }
+
     super.channelClosed(ctx, e);
 
     // Remove the scheduled flushing task.
     flushFuture.cancel(false);
+
+    // Fail any urgent messages that did not make it out
+    for (MessageEvent ev = urgentQueue.poll(); ev != null; ev = urgentQueue.poll()) {
+      ev.getFuture().setFailure(new ClosedChannelException());
+    }
+  }
+
+  /**
+   * Called when the interest ops of the channel changes, e.g. when it becomes writable again.
+   */
+  @Override
+  public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    super.channelInterestChanged(ctx, e);
+
+    // Resume flushing if the channel is writable again
+    if (e.getChannel().isWritable()) {
+      flush(FlushReason.WRITABLE);
+    }
+  }
+
+  /**
+   * Called when the channel is closed by this end. Holds the close back until the queues have
+   * been written if there is a linger period.
+   */
+  @Override
+  public void closeRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+      throws Exception {
+    if (pendingClose != null) {
+      // Already lingering, complete when the channel closes
+      e.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) throws Exception {
+          e.getFuture().setSuccess();
+        }
+      });
+      return;
+    }
+    if (lingerNanos == 0 || !e.getChannel().isConnected()) {
+      super.closeRequested(ctx, e);
+      return;
+    }
+
+    this.ctx = ctx;
+    final PendingClose close = new PendingClose(ctx, e);
+    pendingClose = close;
+    flush(FlushReason.EXPLICIT);
+    close.timeout = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        close.close(true);
+      }
+    }, lingerNanos, NANOSECONDS);
+    if (close.closed.get()) {
+      close.timeout.cancel(false);
+    }
+    checkLinger();
   }
 
   /**
@@ -158,32 +346,540 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
   @Override
   public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
       throws Exception {
-    super.writeRequested(ctx, e);
+    this.ctx = ctx;
+    if (pendingClose != null) {
+      e.getFuture().setFailure(new ClosedChannelException());
+      return;
+    }
+    final long now = clock.nanoTime();
+
+    // Urgent messages skip the regular queue and are flushed right away
+    if (e.getMessage() instanceof UrgentMessage) {
+      final Object message = ((UrgentMessage) e.getMessage()).getMessage();
+      enqueued(ctx, message);
+      urgentQueue.add(new QueuedMessageEvent(e.getChannel(), e.getFuture(), message,
+                                             e.getRemoteAddress(), now));
+      flush(FlushReason.URGENT);
+      return;
+    }
+
+    // Only remember when the write was enqueued if the queue delay is reported
+    super.writeRequested(ctx, metrics == WriteBatcherMetrics.NOOP
+                              ? e
+                              : new QueuedMessageEvent(e.getChannel(), e.getFuture(),
+                                                       e.getMessage(), e.getRemoteAddress(), now));
 
     // Calculate new size of outgoing message buffer
-    final ChannelBuffer data = (ChannelBuffer) e.getMessage();
-    final int newBufferSize = bufferSize.addAndGet(data.readableBytes());
+    final int newBufferSize = enqueued(ctx, e.getMessage());
 
     // Calculate how long it was since the last outgoing message
-    final long now = System.nanoTime();
     final long nanosSinceLastWrite = now - lastWrite;
     lastWrite = now;
 
     // Flush if writes are sparse or if the buffer has reached its threshold size
-    if (nanosSinceLastWrite > maxDelayNanos ||
-        newBufferSize > maxBufferSize) {
-      flush();
+    if (nanosSinceLastWrite > maxDelayNanos) {
+      flush(FlushReason.SPARSE_WRITE);
+    } else if (newBufferSize > maxBufferSize) {
+      flush(FlushReason.SIZE_THRESHOLD);
     }
   }
 
   @Override
   public void flush() {
-    super.flush();
+    flush(FlushReason.EXPLICIT);
+  }
 
-    // The message buffer is now empty
-    bufferSize.set(0);
+  /**
+   * Flush the queue, reporting the flush to the metrics with the specified reason.
+   */
+  protected void flush(final FlushReason reason) {
+    flush(isConsolidateOnFlush(), reason);
 
     // Record the flush time for use in the scheduled flush task
-    lastFlush = System.nanoTime();
+    lastFlush = clock.nanoTime();
+  }
+
+  /**
+   * Write all queued messages to the channel, optionally consolidating buffers into a single
+   * write.
+   */
+  @Override
+  public void flush(final boolean consolidateOnFlush) {
+    flush(consolidateOnFlush, FlushReason.EXPLICIT);
+  }
+
+  private void flush(final boolean consolidateOnFlush, final FlushReason reason) {
+    final ChannelHandlerContext ctx = this.ctx;
+    if (ctx == null) {
+      // No write request was made.
+      return;
+    }
+
+    // Keep the data queued here instead of in the transport while the channel is not writable,
+    // with the exception of urgent messages.
+    final Channel channel = ctx.getChannel();
+    final boolean channelWritable = !channel.isConnected() || channel.isWritable();
+    if (!channelWritable && urgentQueue.isEmpty()) {
+      return;
+    }
+
+    // Only one thread at a time gets to flush, the others can rely on it picking up their writes
+    final boolean acquired = flushing.compareAndSet(false, true);
+    if (!acquired) {
+      return;
+    }
+
+    flushStart = clock.nanoTime();
+    flushedMessages = 0;
+    flushedBytes = 0;
+    maxQueueDelayNanos = 0;
+    totalQueueDelayNanos = 0;
+    try {
+      if (consolidateOnFlush) {
+        consolidatingFlush(ctx, channelWritable);
+      } else {
+        for (MessageEvent e = poll(ctx, channelWritable); e != null;
+             e = poll(ctx, channelWritable)) {
+          dequeued(ctx, e.getMessage());
+          lastWriteFuture = e.getFuture();
+          ctx.sendDownstream(e);
+          if (!channel.isWritable()) {
+            break;
+          }
+        }
+      }
+    } finally {
+      if (flushedMessages > 0) {
+        metrics.flushed(reason, flushedMessages, flushedBytes, maxQueueDelayNanos,
+                        totalQueueDelayNanos);
+        if (pendingClose != null) {
+          lingerFlushedMessages.addAndGet(flushedMessages);
+          lingerFlushedBytes.addAndGet(flushedBytes);
+        }
+      }
+      flushing.set(false);
+    }
+
+    // Pick up writes that were enqueued while we were flushing
+    if (!urgentQueue.isEmpty() ||
+        !getQueue().isEmpty() && (!channel.isConnected() || channel.isWritable())) {
+      flush(consolidateOnFlush, reason);
+    }
+
+    checkLinger();
+  }
+
+  /**
+   * Let a held back close proceed once everything queued has been flushed, and the last write has
+   * completed.
+   */
+  private void checkLinger() {
+    final PendingClose close = pendingClose;
+    if (close == null || flushing.get() || !urgentQueue.isEmpty() || !getQueue().isEmpty()) {
+      return;
+    }
+    final ChannelFuture last = lastWriteFuture;
+    if (last == null) {
+      close.close(false);
+      return;
+    }
+    last.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        close.close(false);
+      }
+    });
+  }
+
+  /**
+   * Get the next message to write, taking urgent messages before regular messages. Expired
+   * messages are dropped and the deadline of the returned message, if any, is unwrapped.
+   *
+   * @param includeRegular false if only urgent messages should be returned.
+   */
+  private MessageEvent poll(final ChannelHandlerContext ctx, final boolean includeRegular) {
+    while (true) {
+      MessageEvent e = urgentQueue.poll();
+      if (e == null && includeRegular) {
+        e = getQueue().poll();
+      }
+      if (e == null) {
+        return null;
+      }
+      if (!(e.getMessage() instanceof ExpiringMessage)) {
+        polled(e);
+        return e;
+      }
+      final ExpiringMessage message = (ExpiringMessage) e.getMessage();
+      if (!message.isExpired(clock.nanoTime())) {
+        polled(e);
+        return new DownstreamMessageEvent(e.getChannel(), e.getFuture(), message.getMessage(),
+                                          e.getRemoteAddress());
+      }
+      expiredMessages.incrementAndGet();
+      released(ctx, sizeOf(message));
+      e.getFuture().setFailure(message.expired());
+    }
+  }
+
+  /**
+   * Account for the queue delay of a message that is about to be written.
+   */
+  private void polled(final MessageEvent e) {
+    if (!(e instanceof QueuedMessageEvent)) {
+      return;
+    }
+    // Writes enqueued after the flush started are picked up by it without any delay
+    final long delay = Math.max(0, flushStart - ((QueuedMessageEvent) e).enqueued);
+    maxQueueDelayNanos = Math.max(maxQueueDelayNanos, delay);
+    totalQueueDelayNanos += delay;
+  }
+
+  /**
+   * Drain the queues, joining consecutive buffers into consolidated writes.
+   *
+   * @param includeRegular false if only urgent messages should be written.
+   */
+  private void consolidatingFlush(final ChannelHandlerContext ctx, final boolean includeRegular) {
+    List<MessageEvent> pending = new ArrayList<MessageEvent>();
+    int pendingBytes = 0;
+    for (MessageEvent e = poll(ctx, includeRegular); e != null;
+         e = poll(ctx, includeRegular)) {
+      dequeued(ctx, e.getMessage());
+      if (e.getMessage() instanceof ChannelBuffer) {
+        pending.add(e);
+        pendingBytes += ((ChannelBuffer) e.getMessage()).readableBytes();
+      } else {
+        if (consolidatedWrite(ctx, pending, pendingBytes)) {
+          pending = new ArrayList<MessageEvent>();
+        }
+        pendingBytes = 0;
+        lastWriteFuture = e.getFuture();
+        ctx.sendDownstream(e);
+      }
+    }
+    consolidatedWrite(ctx, pending, pendingBytes);
+  }
+
+  /**
+   * Write the pending buffers as a single buffer.
+   *
+   * @return true if the list of pending writes was handed off and must not be reused, false if it
+   *         was cleared and can be reused.
+   */
+  private boolean consolidatedWrite(final ChannelHandlerContext ctx,
+                                    final List<MessageEvent> pending, final int size) {
+    switch (pending.size()) {
+      case 0:
+        return false;
+      case 1:
+        final MessageEvent e = pending.remove(0);
+        lastWriteFuture = e.getFuture();
+        ctx.sendDownstream(e);
+        return false;
+    }
+
+    // The pooled buffer can only be reused if the transport is done with it when the write future
+    // completes. That holds for socket channels, but e.g. the local transport passes the buffer on
+    // to the receiving end as is.
+    final Channel channel = ctx.getChannel();
+    final boolean pooled = channel instanceof SocketChannel;
+    final ChannelBuffer consolidated = pooled
+                                       ? bufferPool.acquire(size)
+                                       : ChannelBuffers.buffer(size);
+    for (int i = 0; i < pending.size(); i++) {
+      final ChannelBuffer data = (ChannelBuffer) pending.get(i).getMessage();
+      consolidated.writeBytes(data, data.readerIndex(), data.readableBytes());
+    }
+
+    final ChannelFuture future = Channels.future(channel);
+    future.addListener(new ConsolidatedWriteListener(pending, pooled ? consolidated : null));
+    lastWriteFuture = future;
+    Channels.write(ctx, future, consolidated);
+    return true;
+  }
+
+  /**
+   * Account for a message that was added to a queue.
+   *
+   * @return The new number of queued bytes.
+   */
+  private int enqueued(final ChannelHandlerContext ctx, final Object message) {
+    final int size = sizeOf(message);
+    if (size == 0) {
+      return bufferSize.get();
+    }
+    final int newBufferSize = bufferSize.addAndGet(size);
+    if (newBufferSize > highWaterMark) {
+      setWritable(ctx, false);
+    }
+    return newBufferSize;
+  }
+
+  /**
+   * Account for a message that was removed from a queue.
+   */
+  private void dequeued(final ChannelHandlerContext ctx, final Object message) {
+    flushedMessages++;
+    final int size = sizeOf(message);
+    flushedBytes += size;
+    released(ctx, size);
+  }
+
+  /**
+   * Account for queued bytes that were written or dropped.
+   */
+  private void released(final ChannelHandlerContext ctx, final int size) {
+    if (size == 0) {
+      return;
+    }
+    final int newBufferSize = bufferSize.addAndGet(-size);
+    if (newBufferSize < lowWaterMark) {
+      setWritable(ctx, true);
+    }
+  }
+
+  /**
+   * Return the number of bytes a queued message accounts for.
+   */
+  private static int sizeOf(Object message) {
+    if (message instanceof ExpiringMessage) {
+      message = ((ExpiringMessage) message).getMessage();
+    }
+    return message instanceof ChannelBuffer ? ((ChannelBuffer) message).readableBytes() : 0;
+  }
+
+  /**
+   * Update the writability of this batcher and notify upstream handlers if it changed.
+   */
+  private void setWritable(final ChannelHandlerContext ctx, final boolean writable) {
+    if (this.writable.compareAndSet(!writable, writable)) {
+      Channels.fireChannelInterestChanged(ctx);
+    }
+  }
+
+  /**
+   * Returns true if the number of queued bytes has not exceeded the high water mark, or if it
+   * since has dropped below the low water mark. Writers should refrain from writing to the channel
+   * while this returns false.
+   */
+  public boolean isWritable() {
+    return writable.get();
+  }
+
+  /**
+   * Get the number of bytes currently queued in this batcher.
+   */
+  public int getQueuedBytes() {
+    return bufferSize.get();
+  }
+
+  /**
+   * Get how long closing the channel waits for queued messages to be written.
+   */
+  public long getLinger(final TimeUnit unit) {
+    return unit.convert(lingerNanos, NANOSECONDS);
+  }
+
+  /**
+   * Set how long closing the channel waits for queued messages to be written before dropping
+   * them. Zero, the default, closes the channel right away.
+   */
+  public void setLinger(final long linger, final TimeUnit unit) {
+    if (linger < 0) {
+      throw new IllegalArgumentException("linger: " + linger);
+    }
+    this.lingerNanos = unit.toNanos(linger);
+  }
+
+  /**
+   * Get the number of messages flushed while a close was held back.
+   */
+  public long getLingerFlushedMessages() {
+    return lingerFlushedMessages.get();
+  }
+
+  /**
+   * Get the number of bytes flushed while a close was held back.
+   */
+  public long getLingerFlushedBytes() {
+    return lingerFlushedBytes.get();
+  }
+
+  /**
+   * Get the number of messages that were still queued when the linger period ran out.
+   */
+  public long getLingerDroppedMessages() {
+    return lingerDroppedMessages.get();
+  }
+
+  /**
+   * Get the number of bytes that were still queued when the linger period ran out.
+   */
+  public long getLingerDroppedBytes() {
+    return lingerDroppedBytes.get();
+  }
+
+  /**
+   * Get the number of messages that were dropped because their deadline passed while they were
+   * queued.
+   */
+  public long getExpiredMessages() {
+    return expiredMessages.get();
+  }
+
+  /**
+   * Get the number of queued bytes above which this batcher is no longer writable.
+   */
+  public int getWriteBufferHighWaterMark() {
+    return highWaterMark;
+  }
+
+  /**
+   * Set the number of queued bytes above which this batcher is no longer writable.
+   */
+  public void setWriteBufferHighWaterMark(final int highWaterMark) {
+    if (highWaterMark < lowWaterMark) {
+      throw new IllegalArgumentException(
+          "highWaterMark must be greater than or equal to lowWaterMark (" + lowWaterMark + ")");
+    }
+    this.highWaterMark = highWaterMark;
+  }
+
+  /**
+   * Get the number of queued bytes below which this batcher becomes writable again.
+   */
+  public int getWriteBufferLowWaterMark() {
+    return lowWaterMark;
+  }
+
+  /**
+   * Set the number of queued bytes below which this batcher becomes writable again.
+   */
+  public void setWriteBufferLowWaterMark(final int lowWaterMark) {
+    if (lowWaterMark < 0 || lowWaterMark > highWaterMark) {
+      throw new IllegalArgumentException(
+          "lowWaterMark must be between 0 and highWaterMark (" + highWaterMark + ")");
+    }
+    this.lowWaterMark = lowWaterMark;
+  }
+
+  /**
+   * Get the metrics that flushes are reported to.
+   */
+  public WriteBatcherMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Set the metrics that flushes are reported to, e.g. a {@link WriteBatcherStats} instance.
+   */
+  public void setMetrics(final WriteBatcherMetrics metrics) {
+    if (metrics == null) {
+      throw new NullPointerException("metrics");
+    }
+    this.metrics = metrics;
+  }
+
+  /**
+   * Get the consolidation buffer pool of this batcher.
+   */
+  ConsolidationBufferPool getBufferPool() {
+    return bufferPool;
+  }
+
+  /**
+   * A queued write that remembers when it was enqueued.
+   */
+  private static class QueuedMessageEvent extends DownstreamMessageEvent {
+
+    private final long enqueued;
+
+    QueuedMessageEvent(final Channel channel, final ChannelFuture future, final Object message,
+                       final SocketAddress remoteAddress, final long enqueued) {
+      super(channel, future, message, remoteAddress);
+      this.enqueued = enqueued;
+    }
+  }
+
+  /**
+   * A close request held back until the queues have been written or the linger period has passed.
+   */
+  private class PendingClose {
+
+    private final ChannelHandlerContext ctx;
+    private final ChannelStateEvent event;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile ScheduledFuture<?> timeout;
+
+    PendingClose(final ChannelHandlerContext ctx, final ChannelStateEvent event) {
+      this.ctx = ctx;
+      this.event = event;
+    }
+
+    /**
+     * Let the close request proceed, once.
+     *
+     * @param expired true if the linger period has passed, in which case anything still queued is
+     *                counted as dropped.
+     */
+    void close(final boolean expired) {
+      if (finish(expired)) {
+        ctx.sendDownstream(event);
+      }
+    }
+
+    /**
+     * Stop lingering.
+     *
+     * @param drop true if anything still queued is to be counted as dropped.
+     * @return true if lingering was stopped by this call.
+     */
+    boolean finish(final boolean drop) {
+      if (!closed.compareAndSet(false, true)) {
+        return false;
+      }
+      final ScheduledFuture<?> timeout = this.timeout;
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+      if (drop) {
+        lingerDroppedMessages.addAndGet(urgentQueue.size() + getQueue().size());
+        lingerDroppedBytes.addAndGet(bufferSize.get());
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Propagates the outcome of a consolidated write to the futures of the individual writes and
+   * hands the consolidation buffer back to the pool.
+   */
+  private class ConsolidatedWriteListener implements ChannelFutureListener {
+
+    private final List<MessageEvent> writes;
+    private final ChannelBuffer buffer;
+
+    ConsolidatedWriteListener(final List<MessageEvent> writes, final ChannelBuffer buffer) {
+      this.writes = writes;
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+      if (buffer != null) {
+        bufferPool.release(buffer);
+      }
+      if (future.isSuccess()) {
+        for (int i = 0; i < writes.size(); i++) {
+          writes.get(i).getFuture().setSuccess();
+        }
+      } else {
+        final Throwable cause = future.getCause();
+        for (int i = 0; i < writes.size(); i++) {
+          writes.get(i).getFuture().setFailure(cause);
+        }
+      }
+    }
   }
-}
\ No newline at end of file
+}
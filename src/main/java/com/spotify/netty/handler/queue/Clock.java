@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+/**
+ * A source of monotonic time, used by {@link AutoFlushingWriteBatcher} so that its timing can be
+ * controlled in tests and simulations.
+ */
+public interface Clock {
+
+  /**
+   * A clock backed by {@link System#nanoTime()}.
+   */
+  Clock SYSTEM = new Clock() {
+    @Override
+    public long nanoTime() {
+      return System.nanoTime();
+    }
+  };
+
+  /**
+   * Return the current time in nanoseconds. Only meaningful in relation to other values returned
+   * by the same clock.
+   */
+  long nanoTime();
+}
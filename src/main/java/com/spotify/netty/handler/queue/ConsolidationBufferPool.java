@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, lock free pool of buffers used to consolidate queued writes when flushing. Buffers are
+ * acquired when flushing and released once the write future of the consolidated write completes,
+ * so a channel with a steady stream of flushes ends up reusing the same few buffers instead of
+ * allocating a new one per flush.
+ */
+class ConsolidationBufferPool {
+
+  private static final int MIN_CAPACITY = 4096;
+
+  private final AtomicReferenceArray<ChannelBuffer> slots;
+  private final int maxPooledCapacity;
+
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong allocatedBytes = new AtomicLong();
+
+  /**
+   * Create a new pool.
+   *
+   * @param maxPooledBuffers  The maximum number of idle buffers kept in the pool.
+   * @param maxPooledCapacity Buffers with a larger capacity than this are not returned to the pool
+   *                          when released.
+   */
+  ConsolidationBufferPool(final int maxPooledBuffers, final int maxPooledCapacity) {
+    this.slots = new AtomicReferenceArray<ChannelBuffer>(maxPooledBuffers);
+    this.maxPooledCapacity = maxPooledCapacity;
+  }
+
+  /**
+   * Get an empty buffer with room for at least the specified number of bytes, reusing a pooled
+   * buffer if possible.
+   */
+  ChannelBuffer acquire(final int size) {
+    for (int i = 0; i < slots.length(); i++) {
+      final ChannelBuffer buffer = slots.getAndSet(i, null);
+      if (buffer == null) {
+        continue;
+      }
+      if (buffer.capacity() >= size) {
+        buffer.clear();
+        return buffer;
+      }
+      // Too small for this batch, but keep it for smaller ones
+      slots.compareAndSet(i, null, buffer);
+    }
+    final int capacity = capacityFor(size);
+    allocations.incrementAndGet();
+    allocatedBytes.addAndGet(capacity);
+    return ChannelBuffers.buffer(capacity);
+  }
+
+  /**
+   * Hand a buffer back to the pool. The buffer must not be used by the caller afterwards.
+   */
+  void release(final ChannelBuffer buffer) {
+    if (buffer.capacity() > maxPooledCapacity) {
+      return;
+    }
+    for (int i = 0; i < slots.length(); i++) {
+      if (slots.compareAndSet(i, null, buffer)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Get the number of buffers this pool has had to allocate.
+   */
+  long getAllocations() {
+    return allocations.get();
+  }
+
+  /**
+   * Get the total capacity of all buffers this pool has had to allocate.
+   */
+  long getAllocatedBytes() {
+    return allocatedBytes.get();
+  }
+
+  /**
+   * Round the size up to the next power of two to avoid reallocating for slightly larger batches.
+   */
+  private static int capacityFor(final int size) {
+    if (size <= MIN_CAPACITY) {
+      return MIN_CAPACITY;
+    }
+    final int capacity = Integer.highestOneBit(size);
+    return capacity == size || capacity == 1 << 30 ? size : capacity << 1;
+  }
+}
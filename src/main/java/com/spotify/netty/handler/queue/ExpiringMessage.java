@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Attaches a deadline to an outgoing message. A message that has not been written by its deadline
+ * is dropped instead of being sent late, e.g. after the requester has already timed out, and its
+ * write future is failed with a {@link TimeoutException}.
+ *
+ * <p>ZMTP handlers drop expired messages before they are encoded. Encoders that understand this
+ * wrapper encode the wrapped message and keep the result wrapped if there is an {@link
+ * AutoFlushingWriteBatcher} in the pipeline, which then drops buffers that expire while queued
+ * instead of flushing them.
+ *
+ * <p>Deadlines are in the time of {@link System#nanoTime()}, or of the {@link Clock} of the write
+ * batcher if it has been replaced.
+ */
+public class ExpiringMessage {
+
+  private final Object message;
+  private final long deadline;
+
+  /**
+   * Wrap a message.
+   *
+   * @param message  The message to write.
+   * @param deadline The time in nanoseconds after which the message is dropped.
+   */
+  public ExpiringMessage(final Object message, final long deadline) {
+    if (message == null) {
+      throw new NullPointerException("message");
+    }
+    this.message = message;
+    this.deadline = deadline;
+  }
+
+  /**
+   * Wrap a message that is dropped if it has not been written within the specified timeout.
+   */
+  public static ExpiringMessage expireAfter(final Object message, final long timeout,
+                                            final TimeUnit unit) {
+    return new ExpiringMessage(message, Clock.SYSTEM.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * Return the wrapped message.
+   */
+  public Object getMessage() {
+    return message;
+  }
+
+  /**
+   * Return the time in nanoseconds after which the message is dropped.
+   */
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * Return true if the deadline has passed according to {@link Clock#SYSTEM}.
+   */
+  public boolean isExpired() {
+    return isExpired(Clock.SYSTEM.nanoTime());
+  }
+
+  /**
+   * Return true if the deadline has passed at the specified time.
+   */
+  public boolean isExpired(final long now) {
+    return now - deadline > 0;
+  }
+
+  /**
+   * Return the exception that the write future of a dropped message is failed with.
+   */
+  public TimeoutException expired() {
+    return new TimeoutException("message expired before it was written: " + message);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    final ExpiringMessage that = (ExpiringMessage) o;
+
+    return deadline == that.deadline && message.equals(that.message);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * message.hashCode() + (int) (deadline ^ (deadline >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return "ExpiringMessage{" +
+           "message=" + message +
+           ", deadline=" + deadline +
+           '}';
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+/**
+ * The reason an {@link AutoFlushingWriteBatcher} flushed its queue.
+ */
+public enum FlushReason {
+  /**
+   * A message was written after a period without writes and was flushed right away.
+   */
+  SPARSE_WRITE,
+  /**
+   * The number of queued bytes exceeded the batch size threshold.
+   */
+  SIZE_THRESHOLD,
+  /**
+   * The periodic flush task found messages that had been queued for longer than the max delay.
+   */
+  SCHEDULED,
+  /**
+   * An urgent message was written.
+   */
+  URGENT,
+  /**
+   * The channel became writable again after flushing had been suspended.
+   */
+  WRITABLE,
+  /**
+   * A flush was requested explicitly, e.g. by calling {@link AutoFlushingWriteBatcher#flush()} or
+   * by closing the channel.
+   */
+  EXPLICIT
+}
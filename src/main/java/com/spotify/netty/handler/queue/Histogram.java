@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of non-negative values with power of two bucket boundaries. Recording a
+ * value is a couple of atomic increments, which makes it cheap enough to use on the write path.
+ * Bucket {@code i} holds values in the range {@code [2^(i-1), 2^i)}, with bucket 0 holding zero.
+ */
+public class Histogram {
+
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+
+  /**
+   * Record a value. Negative values are recorded as zero.
+   */
+  public void record(final long value) {
+    final long v = Math.max(value, 0);
+    buckets.incrementAndGet(bucket(v));
+    count.incrementAndGet();
+    sum.addAndGet(v);
+  }
+
+  /**
+   * Get the number of recorded values.
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Get the sum of all recorded values.
+   */
+  public long getSum() {
+    return sum.get();
+  }
+
+  /**
+   * Get the mean of all recorded values, or zero if no values have been recorded.
+   */
+  public double getMean() {
+    final long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  /**
+   * Get an upper bound of the value at the specified quantile, i.e. the exclusive upper boundary
+   * of the bucket the quantile falls in.
+   *
+   * @param quantile A quantile between 0 and 1, e.g. 0.99 for the 99th percentile.
+   */
+  public long getQuantile(final double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("quantile must be between 0 and 1: " + quantile);
+    }
+    final long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Get the number of values recorded in a bucket.
+   */
+  public long getBucketCount(final int bucket) {
+    return buckets.get(bucket);
+  }
+
+  /**
+   * Get the number of buckets.
+   */
+  public int getBuckets() {
+    return BUCKETS;
+  }
+
+  /**
+   * Get the exclusive upper boundary of the values in a bucket.
+   */
+  public static long upperBound(final int bucket) {
+    return bucket >= BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  private static int bucket(final long value) {
+    return BUCKETS - Long.numberOfLeadingZeros(value);
+  }
+
+  @Override
+  public String toString() {
+    return "Histogram{" +
+           "count=" + getCount() +
+           ", mean=" + getMean() +
+           ", p50<" + getQuantile(0.5) +
+           ", p99<" + getQuantile(0.99) +
+           '}';
+  }
+}
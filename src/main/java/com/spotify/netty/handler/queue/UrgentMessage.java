@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+/**
+ * Tags an outgoing message as urgent. An {@link AutoFlushingWriteBatcher} writes urgent messages
+ * ahead of all queued regular messages and flushes them immediately, even when the channel is not
+ * writable. Encoders that understand this wrapper encode the wrapped message and keep the result
+ * wrapped.
+ *
+ * <p>Intended for small control messages, e.g. heartbeats, that must not wait behind bulk data.
+ */
+public class UrgentMessage {
+
+  private final Object message;
+
+  public UrgentMessage(final Object message) {
+    if (message == null) {
+      throw new NullPointerException("message");
+    }
+    this.message = message;
+  }
+
+  /**
+   * Return the wrapped message.
+   */
+  public Object getMessage() {
+    return message;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    final UrgentMessage that = (UrgentMessage) o;
+
+    return message.equals(that.message);
+  }
+
+  @Override
+  public int hashCode() {
+    return message.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return "UrgentMessage{" +
+           "message=" + message +
+           '}';
+  }
+}
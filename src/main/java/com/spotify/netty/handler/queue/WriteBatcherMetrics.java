@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+/**
+ * Receives measurements from an {@link AutoFlushingWriteBatcher}. Implementations are called on
+ * the flushing thread and must be thread safe and cheap.
+ *
+ * @see WriteBatcherStats
+ */
+public interface WriteBatcherMetrics {
+
+  /**
+   * Metrics that discards all measurements.
+   */
+  WriteBatcherMetrics NOOP = new WriteBatcherMetrics() {
+    @Override
+    public void flushed(final FlushReason reason, final int messages, final long bytes,
+                        final long maxQueueDelayNanos, final long totalQueueDelayNanos) {
+    }
+  };
+
+  /**
+   * Called after the batcher has written queued messages to the channel.
+   *
+   * @param reason               What triggered the flush.
+   * @param messages             The number of messages written.
+   * @param bytes                The number of bytes written.
+   * @param maxQueueDelayNanos   The time from the oldest of the messages being enqueued until the
+   *                             flush started.
+   * @param totalQueueDelayNanos The sum of the times from each of the messages being enqueued
+   *                             until the flush started. Divided by the number of messages, this
+   *                             is the mean queue delay.
+   */
+  void flushed(FlushReason reason, int messages, long bytes, long maxQueueDelayNanos,
+               long totalQueueDelayNanos);
+}
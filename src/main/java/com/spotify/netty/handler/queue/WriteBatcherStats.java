@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link WriteBatcherMetrics} implementation that keeps counters of flushes per
+ * {@link FlushReason}, histograms of batch sizes and of the largest queue delay per flush, and the
+ * mean queue delay of all messages. A single instance can be shared by the batchers of many
+ * channels to get aggregate numbers.
+ */
+public class WriteBatcherStats implements WriteBatcherMetrics {
+
+  private final AtomicLongArray flushes = new AtomicLongArray(FlushReason.values().length);
+  private final Histogram messagesPerFlush = new Histogram();
+  private final Histogram bytesPerFlush = new Histogram();
+  private final Histogram maxQueueDelayNanos = new Histogram();
+  private final AtomicLong totalQueueDelayNanos = new AtomicLong();
+
+  @Override
+  public void flushed(final FlushReason reason, final int messages, final long bytes,
+                      final long maxQueueDelayNanos, final long totalQueueDelayNanos) {
+    flushes.incrementAndGet(reason.ordinal());
+    messagesPerFlush.record(messages);
+    bytesPerFlush.record(bytes);
+    this.maxQueueDelayNanos.record(maxQueueDelayNanos);
+    this.totalQueueDelayNanos.addAndGet(totalQueueDelayNanos);
+  }
+
+  /**
+   * Get the number of flushes triggered for a specific reason.
+   */
+  public long getFlushes(final FlushReason reason) {
+    return flushes.get(reason.ordinal());
+  }
+
+  /**
+   * Get the total number of flushes.
+   */
+  public long getFlushes() {
+    long sum = 0;
+    for (int i = 0; i < flushes.length(); i++) {
+      sum += flushes.get(i);
+    }
+    return sum;
+  }
+
+  /**
+   * Get the distribution of the number of messages written per flush.
+   */
+  public Histogram getMessagesPerFlush() {
+    return messagesPerFlush;
+  }
+
+  /**
+   * Get the distribution of the number of bytes written per flush.
+   */
+  public Histogram getBytesPerFlush() {
+    return bytesPerFlush;
+  }
+
+  /**
+   * Get the distribution of the time in nanoseconds from the oldest message in a batch being
+   * enqueued until the batch was flushed. This is one value per flush, not per message, see
+   * {@link #getMeanQueueDelayNanos()} for the delay of a typical message.
+   */
+  public Histogram getMaxQueueDelayNanos() {
+    return maxQueueDelayNanos;
+  }
+
+  /**
+   * Get the sum of the times in nanoseconds from each flushed message being enqueued until it was
+   * flushed.
+   */
+  public long getTotalQueueDelayNanos() {
+    return totalQueueDelayNanos.get();
+  }
+
+  /**
+   * Get the mean time in nanoseconds from a message being enqueued until it was flushed.
+   */
+  public double getMeanQueueDelayNanos() {
+    final long messages = messagesPerFlush.getSum();
+    return messages == 0 ? 0 : (double) totalQueueDelayNanos.get() / messages;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder("WriteBatcherStats{flushes={");
+    final FlushReason[] reasons = FlushReason.values();
+    for (int i = 0; i < reasons.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(reasons[i]).append('=').append(flushes.get(i));
+    }
+    return sb.append("}, messagesPerFlush=").append(messagesPerFlush)
+        .append(", bytesPerFlush=").append(bytesPerFlush)
+        .append(", maxQueueDelayNanos=").append(maxQueueDelayNanos)
+        .append(", meanQueueDelayNanos=").append(getMeanQueueDelayNanos())
+        .append('}').toString();
+  }
+}
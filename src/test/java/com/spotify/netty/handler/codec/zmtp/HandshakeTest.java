@@ -9,6 +9,8 @@ import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.nio.ReadOnlyBufferException;
+
 import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
 import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
 import static org.mockito.Mockito.verify;
@@ -52,6 +54,28 @@ public class HandshakeTest {
     cmp(h.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x03, 0x00, 3, 0x66, 0x6f, 0x6f);
   }
 
+  @Test
+  public void testOnConnectSharesReadOnlyGreetings() {
+    CodecBase a = new ZMTP20Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.REQ), false);
+    CodecBase b = new ZMTP20Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.REQ), false);
+    ChannelBuffer greeting = a.onConnect();
+    try {
+      greeting.setByte(0, 0);
+      Assert.fail("the greeting should be read-only");
+    } catch (ReadOnlyBufferException e) {
+      // expected
+    }
+    cmp(greeting, 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x03, 0x00, 3, 0x66, 0x6f, 0x6f);
+    cmp(b.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x03, 0x00, 3, 0x66, 0x6f, 0x6f);
+
+    // A different socket type gets a different greeting
+    CodecBase c = new ZMTP20Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.REP), false);
+    cmp(c.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x04, 0x00, 3, 0x66, 0x6f, 0x6f);
+  }
+
   @Test
   public void test1to1Handshake() throws Exception {
     ZMTP10Codec h = new ZMTP10Codec(new ZMTPSession(ZMTPConnectionType.Addressed, FOO));
@@ -104,12 +128,12 @@ public class HandshakeTest {
     h.setListener(handshakeListener);
     cmp(h.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x1, 0x2, 0, 0x3, 0x66, 0x6f, 0x6f);
 
-    try {
-      h.inputOutput(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0x4, 0x7f));
-      Assert.fail("not enough data in greeting (because compat mode) shuld have thrown exception");
-    } catch (IndexOutOfBoundsException e) {
-      // expected
-    }
+    // not enough data in greeting (because compat mode), nothing should be consumed
+    ChannelBuffer signature = buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0x4, 0x7f);
+    Assert.assertNull(h.inputOutput(signature));
+    Assert.assertEquals(10, signature.readableBytes());
+    verifyNoMoreInteractions(handshakeListener);
+
     Assert.assertNull(h.inputOutput(buf(
         0xff, 0, 0, 0, 0, 0, 0, 0, 0x4, 0x7f, 0x1, 0x1, 0, 0x03, 0x62, 0x61, 0x72)));
     verify(handshakeListener).handshakeDone(2, BAR);
@@ -150,6 +174,142 @@ public class HandshakeTest {
         1, 2, 0, 8, 0x69, 0x64, 0x65, 0x6e, 0x74, 0x69, 0x74, 0x79);
   }
 
+  @Test
+  public void test2InteropTo2InteropFragmentedHandshake() throws Exception {
+    ZMTP20Codec h = new ZMTP20Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.PUB), true);
+    h.setListener(handshakeListener);
+    h.onConnect();
+    ChannelBuffer greeting = buf(
+        0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f, 0x01, 0x01, 0x00, 0x03, 0x62, 0x61, 0x72);
+    ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+    for (int i = 0; i < 9; i++) {
+      cumulation.writeByte(greeting.readByte());
+      Assert.assertNull(h.inputOutput(cumulation));
+    }
+    cumulation.writeByte(greeting.readByte());
+    cmp(h.inputOutput(cumulation), 0x01, 0x02, 0x00, 0x03, 0x66, 0x6f, 0x6f);
+    while (greeting.readableBytes() > 1) {
+      cumulation.writeByte(greeting.readByte());
+      Assert.assertNull(h.inputOutput(cumulation));
+    }
+    verifyNoMoreInteractions(handshakeListener);
+    cumulation.writeByte(greeting.readByte());
+    Assert.assertNull(h.inputOutput(cumulation));
+    verify(handshakeListener).handshakeDone(2, BAR);
+    Assert.assertFalse(cumulation.readable());
+  }
+
+  @Test
+  public void testZMTP1GreetingLength() throws Exception {
+    Assert.assertEquals(-1, CodecBase.zmtp1GreetingLength(buf()));
+    Assert.assertEquals(-1, CodecBase.zmtp1GreetingLength(buf(0x04, 0x00, 0x62)));
+    Assert.assertEquals(5, CodecBase.zmtp1GreetingLength(buf(0x04, 0x00, 0x62, 0x61, 0x72, 0x01)));
+    Assert.assertEquals(-1, CodecBase.zmtp1GreetingLength(buf(0xff, 0, 0, 0)));
+    Assert.assertEquals(10, CodecBase.zmtp1GreetingLength(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 1, 0)));
+  }
+
+  @Test
+  public void testZMTP2GreetingLength() throws Exception {
+    Assert.assertEquals(-1, ZMTP20Codec.zmtp2GreetingLength(buf(0xff, 0, 0, 0), true));
+    Assert.assertEquals(15, ZMTP20Codec.zmtp2GreetingLength(
+        buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x02, 0x00, 0x01, 0x61), true));
+    Assert.assertEquals(-1, ZMTP20Codec.zmtp2GreetingLength(buf(0x01, 0x02, 0x00, 0x01), false));
+    Assert.assertEquals(5, ZMTP20Codec.zmtp2GreetingLength(buf(0x01, 0x02, 0x00, 0x01, 0x61), false));
+  }
+
+  @Test
+  public void test3To3Handshake() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.DEALER), false);
+    h.setListener(handshakeListener);
+    ChannelBuffer greeting = h.onConnect();
+    Assert.assertEquals(64 + ZMTPCommand.ready(ZMTPSocketType.DEALER, FOO).size(),
+                        greeting.readableBytes());
+    cmp(greeting.slice(0, 14), 0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x03, 0x01, 'N', 'U');
+
+    ChannelBuffer peer = ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.ROUTER, BAR, true);
+    ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+    while (peer.readableBytes() > 1) {
+      cumulation.writeByte(peer.readByte());
+      Assert.assertNull(h.inputOutput(cumulation));
+    }
+    verifyNoMoreInteractions(handshakeListener);
+    cumulation.writeByte(peer.readByte());
+    Assert.assertNull(h.inputOutput(cumulation));
+    verify(handshakeListener).handshakeDone(3, BAR);
+  }
+
+  @Test
+  public void test3To2Handshake() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.DEALER), false);
+    try {
+      h.inputOutput(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x01, 0x00, 0x03, 0x62, 0x61,
+                        0x72, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0));
+      Assert.fail("A ZMTP/2.0 greeting is invalid in plain ZMTP/3.0. Should have thrown exception");
+    } catch (ZMTPException e) {
+      // pass
+    }
+  }
+
+  @Test
+  public void test3InteropTo3InteropHandshake() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.DEALER), true);
+    h.setListener(handshakeListener);
+    cmp(h.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f);
+    cmp(h.inputOutput(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f)), 0x03);
+    Assert.assertNull(h.inputOutput(buf()));
+
+    ChannelBuffer peer = ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.ROUTER, BAR, false);
+    ChannelBuffer input = ChannelBuffers.dynamicBuffer();
+    input.writeByte(0x03);
+    input.writeBytes(peer);
+    cmp(h.inputOutput(input), ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.DEALER, FOO, false));
+    Assert.assertNull(h.inputOutput(input));
+    verify(handshakeListener).handshakeDone(3, BAR);
+  }
+
+  @Test
+  public void test3InteropTo2InteropHandshake() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.PUB), true);
+    h.setListener(handshakeListener);
+    cmp(h.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f);
+    cmp(h.inputOutput(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f)), 0x03);
+    ChannelBuffer input = buf(0x01, 0x01, 0x00, 0x03, 0x62, 0x61, 0x72);
+    // the rest of a ZMTP/2.0 greeting, our major version took the place of the revision
+    cmp(h.inputOutput(input), 0x02, 0x00, 0x03, 0x66, 0x6f, 0x6f);
+    Assert.assertNull(h.inputOutput(input));
+    verify(handshakeListener).handshakeDone(2, BAR);
+  }
+
+  @Test
+  public void test3InteropTo1Handshake() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.PUB), true);
+    h.setListener(handshakeListener);
+    cmp(h.onConnect(), 0xff, 0, 0, 0, 0, 0, 0, 0, 0x04, 0x7f);
+    cmp(h.inputOutput(buf(0x04, 0x00, 0x62, 0x61, 0x72)), 0x66, 0x6f, 0x6f);
+    verify(handshakeListener).handshakeDone(1, BAR);
+  }
+
+  @Test
+  public void test3UnsupportedMechanism() throws Exception {
+    ZMTP30Codec h = new ZMTP30Codec(
+        new ZMTPSession(ZMTPConnectionType.Addressed, 0, FOO, ZMTPSocketType.DEALER), false);
+    ChannelBuffer peer = ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.ROUTER, BAR, true);
+    peer.setBytes(12, "PLAIN".getBytes());
+    try {
+      h.inputOutput(peer);
+      Assert.fail("Only the NULL mechanism is supported. Should have thrown exception");
+    } catch (ZMTPException e) {
+      // pass
+    }
+  }
+
   @Test
   public void testParseZMTP2Greeting() throws Exception {
     ChannelBuffer b = buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 0x01, 0x02, 0x00, 0x01, 0x61);
@@ -174,18 +334,9 @@ public class HandshakeTest {
 
   @Test
   public void testDetectProtocolVersion() {
-    try {
-      ZMTP20Codec.detectProtocolVersion(ChannelBuffers.wrappedBuffer(new byte[0]));
-      Assert.fail("Should have thown IndexOutOfBoundsException");
-    } catch (IndexOutOfBoundsException e) {
-      // ignore
-    }
-    try {
-      ZMTP20Codec.detectProtocolVersion(buf(0xff, 0, 0, 0));
-      Assert.fail("Should have thown IndexOutOfBoundsException");
-    } catch (IndexOutOfBoundsException e) {
-      // ignore
-    }
+    Assert.assertEquals(0, ZMTP20Codec.detectProtocolVersion(
+        ChannelBuffers.wrappedBuffer(new byte[0])));
+    Assert.assertEquals(0, ZMTP20Codec.detectProtocolVersion(buf(0xff, 0, 0, 0)));
 
     Assert.assertEquals(1, ZMTP20Codec.detectProtocolVersion(buf(0x07)));
     Assert.assertEquals(1, ZMTP20Codec.detectProtocolVersion(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 1, 0)));
@@ -4,6 +4,7 @@ import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -95,6 +96,13 @@ class PipelineTester {
     outerChannel.write(buf);
   }
 
+  /**
+   * Close the connection from the client end.
+   */
+  public void closeClient() {
+    outerChannel.close().awaitUninterruptibly();
+  }
+
   /**
    * Read an Object from the server end of the pipeline. This can be a ChannelBuffer, or, if
    * there is a FrameDecoder some sort of pojo.
@@ -113,8 +121,9 @@ class PipelineTester {
    * Write a Object to the server end of the pipeline.
    *
    * @param message the Object to be written
+   * @return the future of the write
    */
-  public void writeServer(Object message) {
-    innerChannel.write(message);
+  public ChannelFuture writeServer(Object message) {
+    return innerChannel.write(message);
   }
 }
@@ -1,7 +1,11 @@
 package com.spotify.netty.handler.codec.zmtp;
 
+import com.spotify.netty.handler.queue.ExpiringMessage;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -11,6 +15,12 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
 import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
@@ -97,4 +107,202 @@ public class PipelineTests {
 
 
   }
+
+  @Test
+  public void testZMTPPipelineIsNotModified() {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    ZMTP20Codec codec = new ZMTP20Codec(s, true);
+    ChannelPipeline p = Channels.pipeline(codec);
+
+    PipelineTester pt = new PipelineTester(p);
+    cmp(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 4, 0x7f), pt.readClient());
+    pt.writeClient(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 1, 4, 0, 1, 0x63));
+    cmp(buf(1, 3, 0, 3, 0x66, 0x6f, 0x6f), pt.readClient());
+
+    pt.writeClient(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62));
+    Assert.assertTrue(pt.readServer() instanceof ZMTPIncomingMessage);
+    Assert.assertEquals(asList("0", "pipelineTesterEndpoint"), p.getNames());
+    Assert.assertSame(codec, p.getFirst());
+
+    pt.writeServer(new ZMTPMessage(asList(ZMTPFrame.create("e")), asList(ZMTPFrame.create("b"))));
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+  }
+
+  @Test
+  public void testWriteBeforeHandshake() {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("b")))),
+        new ZMTP20Codec(s, true));
+
+    PipelineTester pt = new PipelineTester(p);
+    cmp(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 4, 0x7f), pt.readClient());
+    ChannelFuture future = futures.poll();
+    Assert.assertFalse(future.isDone());
+
+    pt.writeClient(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 1, 4, 0, 1, 0x63));
+    cmp(buf(1, 3, 0, 3, 0x66, 0x6f, 0x6f), pt.readClient());
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+    Assert.assertTrue(future.awaitUninterruptibly().isSuccess());
+  }
+
+  @Test
+  public void testWriteAfterHandshakeDoesNotOvertakeQueuedWrites() {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("a")))),
+        new ZMTP20Codec(s, true),
+        // Writes when the codec signals that the handshake is done
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("b")))));
+
+    PipelineTester pt = new PipelineTester(p);
+    cmp(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 4, 0x7f), pt.readClient());
+    pt.writeClient(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 1, 4, 0, 1, 0x63));
+    cmp(buf(1, 3, 0, 3, 0x66, 0x6f, 0x6f), pt.readClient());
+    // Both are queued while the handshake completes and written together, in order
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x61, 1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+    Assert.assertTrue(futures.poll().awaitUninterruptibly().isSuccess());
+    Assert.assertTrue(futures.poll().awaitUninterruptibly().isSuccess());
+  }
+
+  @Test
+  public void testWriteFromListenerOfQueuedWrite() {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("a")))),
+        new ZMTP20Codec(s, true));
+
+    PipelineTester pt = new PipelineTester(p);
+    cmp(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 4, 0x7f), pt.readClient());
+    final BlockingQueue<ChannelFuture> next = new LinkedBlockingQueue<ChannelFuture>();
+    futures.poll().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        next.add(future.getChannel().write(new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                           asList(ZMTPFrame.create("b")))));
+      }
+    });
+
+    pt.writeClient(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 1, 4, 0, 1, 0x63));
+    cmp(buf(1, 3, 0, 3, 0x66, 0x6f, 0x6f), pt.readClient());
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x61), pt.readClient());
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+    Assert.assertTrue(next.poll().awaitUninterruptibly().isSuccess());
+  }
+
+  @Test
+  public void testWriteFromListenerOfExpiredQueuedWrite() throws Exception {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, ExpiringMessage.expireAfter(
+            new ZMTPMessage(asList(ZMTPFrame.create("e")), asList(ZMTPFrame.create("a"))),
+            1, NANOSECONDS)),
+        new ZMTP20Codec(s, true));
+
+    PipelineTester pt = new PipelineTester(p);
+    cmp(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 4, 0x7f), pt.readClient());
+    final BlockingQueue<ChannelFuture> next = new LinkedBlockingQueue<ChannelFuture>();
+    final ChannelFuture expired = futures.poll();
+    expired.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) throws Exception {
+        next.add(future.getChannel().write(new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                           asList(ZMTPFrame.create("b")))));
+      }
+    });
+    Thread.sleep(1);
+
+    pt.writeClient(buf(0xff, 0, 0, 0, 0, 0, 0, 0, 0, 0x7f, 1, 4, 0, 1, 0x63));
+    cmp(buf(1, 3, 0, 3, 0x66, 0x6f, 0x6f), pt.readClient());
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+    Assert.assertTrue(expired.getCause() instanceof TimeoutException);
+    Assert.assertTrue(next.poll().awaitUninterruptibly().isSuccess());
+  }
+
+  @Test
+  public void testWriteBeforeHandshakeExceedingLimit() {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ZMTP20Codec codec = new ZMTP20Codec(s, true);
+    codec.setPendingWriteLimit(4);
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("b")))),
+        codec);
+
+    new PipelineTester(p);
+    ChannelFuture future = futures.poll();
+    Assert.assertTrue(future.isDone());
+    Assert.assertTrue(future.getCause() instanceof ZMTPException);
+  }
+
+  @Test
+  public void testZMTP3PipelinedGreeting() throws Exception {
+    ZMTPSession s = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REQ);
+    final BlockingQueue<ChannelFuture> futures = new LinkedBlockingQueue<ChannelFuture>();
+    ChannelPipeline p = Channels.pipeline(
+        new EarlyWriter(futures, new ZMTPMessage(asList(ZMTPFrame.create("e")),
+                                                 asList(ZMTPFrame.create("b")))),
+        new ZMTP30Codec(s, false));
+
+    // The greeting and the first message are sent without waiting for the peer
+    PipelineTester pt = new PipelineTester(p);
+    cmp(ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.REQ, "foo".getBytes(), true),
+        pt.readClient());
+    cmp(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62), pt.readClient());
+
+    ChannelBuffer input = ChannelBuffers.dynamicBuffer();
+    input.writeBytes(ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.REP, "c".getBytes(), true));
+    input.writeBytes(buf(1, 1, 0x65, 1, 0, 0, 1, 0x62));
+    ZMTPCommand command = new ZMTPCommand("X-TEST", buf(0x61));
+    ChannelBuffer commandFrame = ChannelBuffers.buffer(command.size());
+    command.write(commandFrame);
+    input.writeBytes(commandFrame);
+    pt.writeClient(input);
+
+    ZMTPIncomingMessage m = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertEquals(3, m.getSession().getActualVersion());
+    Assert.assertArrayEquals("c".getBytes(), m.getSession().getRemoteIdentity());
+    cmp(buf(0x62), m.getMessage().getContent().get(0).getDataBuffer());
+
+    ZMTPCommand received = (ZMTPCommand) pt.readServer();
+    Assert.assertEquals("X-TEST", received.getName());
+    cmp(buf(0x61), received.getData());
+  }
+
+  /**
+   * Writes a message as soon as the channel is connected, before the handshake is done.
+   */
+  private static class EarlyWriter extends SimpleChannelUpstreamHandler {
+
+    private final BlockingQueue<ChannelFuture> futures;
+    private final Object message;
+
+    EarlyWriter(final BlockingQueue<ChannelFuture> futures, final Object message) {
+      this.futures = futures;
+      this.message = message;
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e)
+        throws Exception {
+      futures.add(e.getChannel().write(message));
+      ctx.sendUpstream(e);
+    }
+  }
 }
@@ -0,0 +1,45 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the readability changes requested on a channel, which the local transport used by
+ * {@link PipelineTester} otherwise ignores. Placed first in the pipeline.
+ */
+class ReadabilityRecorder extends SimpleChannelDownstreamHandler {
+
+  private final List<Boolean> changes = new CopyOnWriteArrayList<Boolean>();
+
+  @Override
+  public void handleDownstream(final ChannelHandlerContext ctx, final ChannelEvent e)
+      throws Exception {
+    if (e instanceof ChannelStateEvent &&
+        ((ChannelStateEvent) e).getState() == ChannelState.INTEREST_OPS) {
+      final int ops = (Integer) ((ChannelStateEvent) e).getValue();
+      changes.add((ops & Channel.OP_READ) != 0);
+    }
+    super.handleDownstream(ctx, e);
+  }
+
+  /**
+   * Get the last requested readability, or null if none has been requested.
+   */
+  Boolean getReadable() {
+    return changes.isEmpty() ? null : changes.get(changes.size() - 1);
+  }
+
+  /**
+   * Get all requested readability changes in order.
+   */
+  List<Boolean> getChanges() {
+    return changes;
+  }
+}
@@ -18,6 +18,7 @@ package com.spotify.netty.handler.codec.zmtp;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
@@ -53,6 +54,8 @@ public class ZMQIntegrationTest {
 
   private String identity = "identity";
 
+  private volatile boolean zmtp30;
+
   private BlockingQueue<ZMTPIncomingMessage> incomingMessages =
       new LinkedBlockingQueue<ZMTPIncomingMessage>();
 
@@ -74,8 +77,8 @@ public class ZMQIntegrationTest {
       public ChannelPipeline getPipeline() throws Exception {
         return Channels.pipeline(
             new ExecutionHandler(executor),
-            new ZMTP20Codec(new ZMTPSession(ZMTPConnectionType.Addressed, 1024, identity.getBytes(),
-                                            ZMTPSocketType.REQ), false),
+            codec(new ZMTPSession(ZMTPConnectionType.Addressed, 1024, identity.getBytes(),
+                                  ZMTPSocketType.REQ)),
             new SimpleChannelUpstreamHandler() {
 
               @Override
@@ -98,6 +101,10 @@ public class ZMQIntegrationTest {
     serverAddress = (InetSocketAddress) serverChannel.getLocalAddress();
   }
 
+  private ChannelHandler codec(final ZMTPSession session) {
+    return zmtp30 ? new ZMTP30Codec(session, true) : new ZMTP20Codec(session, false);
+  }
+
   @After
   public void teardown() {
     if (serverChannel != null) {
@@ -137,6 +144,12 @@ public class ZMQIntegrationTest {
     assertArrayEquals("world".getBytes(), receivedMessage.getContent().get(1).getData());
   }
 
+  @Test
+  public void testZmqDealerWithZMTP30Interop() throws Exception {
+    zmtp30 = true;
+    testZmqDealer();
+  }
+
   @Test
   public void testZmqRouter() throws Exception {
     final ZMQ.Context context = ZMQ.context(1);
@@ -0,0 +1,106 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ZMTPBackpressureHandlerTest {
+
+  private final ReadabilityRecorder recorder = new ReadabilityRecorder();
+  private final ZMTPBackpressureHandler handler = new ZMTPBackpressureHandler();
+
+  @Test
+  public void testSuspendsOnPendingMessages() {
+    handler.setLowWaterMark(1);
+    handler.setHighWaterMark(2);
+    final PipelineTester pt = connect(null);
+
+    final ZMTPIncomingMessage[] messages = new ZMTPIncomingMessage[3];
+    for (int i = 0; i < messages.length; i++) {
+      pt.writeClient(message(1));
+      messages[i] = (ZMTPIncomingMessage) pt.readServer();
+    }
+    Assert.assertEquals(3, handler.getPendingMessages());
+    Assert.assertTrue(handler.isSuspended());
+    Assert.assertEquals(Boolean.FALSE, recorder.getReadable());
+
+    // Still above the low water mark
+    messages[0].release();
+    messages[0].release();
+    Assert.assertEquals(2, handler.getPendingMessages());
+    Assert.assertTrue(handler.isSuspended());
+
+    messages[1].release();
+    Assert.assertFalse(handler.isSuspended());
+    Assert.assertEquals(Boolean.TRUE, recorder.getReadable());
+    Assert.assertEquals(1, handler.getSuspensions());
+  }
+
+  @Test
+  public void testSuspendsOnPendingBytes() {
+    handler.setLowWaterMarkBytes(0);
+    handler.setHighWaterMarkBytes(10);
+    final PipelineTester pt = connect(null);
+
+    pt.writeClient(message(5));
+    final ZMTPIncomingMessage small = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertFalse(handler.isSuspended());
+    pt.writeClient(message(20));
+    final ZMTPIncomingMessage large = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertTrue(handler.isSuspended());
+    Assert.assertEquals(25, handler.getPendingBytes());
+
+    large.release();
+    Assert.assertTrue(handler.isSuspended());
+    small.release();
+    Assert.assertFalse(handler.isSuspended());
+    Assert.assertEquals(Arrays.asList(false, true), recorder.getChanges());
+  }
+
+  @Test
+  public void testSharesSuspensionWithMemoryBudget() {
+    handler.setLowWaterMark(0);
+    handler.setHighWaterMark(0);
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(64, 32);
+    final PipelineTester pt = connect(budget);
+
+    pt.writeClient(message(100));
+    final ZMTPIncomingMessage message = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertTrue(handler.isSuspended());
+    Assert.assertEquals(1, budget.getSuspendedChannels());
+
+    // Reading is suspended once, and only resumed when neither wants it suspended
+    message.release();
+    Assert.assertFalse(handler.isSuspended());
+    Assert.assertEquals(0, budget.getSuspendedChannels());
+    Assert.assertEquals(Arrays.asList(false, true), recorder.getChanges());
+  }
+
+  private PipelineTester connect(final ZMTPMemoryBudget budget) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+    final ZMTP20Codec codec = new ZMTP20Codec(session, false);
+    codec.setMemoryBudget(budget);
+    final ChannelPipeline pipeline = Channels.pipeline(recorder, codec, handler);
+    final PipelineTester pt = new PipelineTester(pipeline);
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, "client".getBytes(), true));
+    return pt;
+  }
+
+  /**
+   * Return a single frame message with the specified number of bytes.
+   */
+  private static ChannelBuffer message(final int size) {
+    final ChannelBuffer buffer = ChannelBuffers.buffer(2 + size);
+    buffer.writeByte(0);
+    buffer.writeByte(size);
+    buffer.writeZero(size);
+    return buffer;
+  }
+}
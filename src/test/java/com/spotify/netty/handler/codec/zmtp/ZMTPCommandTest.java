@@ -0,0 +1,64 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+/**
+ * Tests the encoding and decoding of ZMTP/3.0 command frames.
+ */
+public class ZMTPCommandTest {
+
+  @Test
+  public void testWriteReady() throws Exception {
+    ZMTPCommand ready = ZMTPCommand.ready(ZMTPSocketType.REQ, "foo".getBytes());
+    ChannelBuffer buffer = ChannelBuffers.buffer(ready.size());
+    ready.write(buffer);
+    cmp(buffer,
+        0x04, 41,
+        5, 'R', 'E', 'A', 'D', 'Y',
+        11, 'S', 'o', 'c', 'k', 'e', 't', '-', 'T', 'y', 'p', 'e', 0, 0, 0, 3, 'R', 'E', 'Q',
+        8, 'I', 'd', 'e', 'n', 't', 'i', 't', 'y', 0, 0, 0, 3, 'f', 'o', 'o');
+  }
+
+  @Test
+  public void testReadRoundTrip() throws Exception {
+    Map<String, byte[]> properties = new LinkedHashMap<String, byte[]>();
+    properties.put("Socket-Type", "ROUTER".getBytes());
+    properties.put("X-Large", new byte[300]);
+    ZMTPCommand ready = ZMTPCommand.ready(properties);
+    ChannelBuffer buffer = ChannelBuffers.buffer(ready.size());
+    ready.write(buffer);
+    // long frame
+    Assert.assertEquals(0x06, buffer.getByte(0));
+
+    Assert.assertTrue(ZMTPCommand.isCommand(buffer));
+    Assert.assertNull(ZMTPCommand.read(buffer.slice(0, buffer.readableBytes() - 1)));
+    ZMTPCommand read = ZMTPCommand.read(buffer);
+    Assert.assertFalse(buffer.readable());
+    Assert.assertEquals(ZMTPCommand.READY, read.getName());
+    Map<String, byte[]> parsed = read.getProperties();
+    Assert.assertEquals(properties.keySet(), parsed.keySet());
+    Assert.assertArrayEquals("ROUTER".getBytes(), parsed.get("Socket-Type"));
+    Assert.assertArrayEquals(new byte[300], parsed.get("X-Large"));
+  }
+
+  @Test
+  public void testIsCommand() {
+    Assert.assertFalse(ZMTPCommand.isCommand(buf()));
+    Assert.assertFalse(ZMTPCommand.isCommand(buf(0x01, 0x01, 0x61)));
+    Assert.assertTrue(ZMTPCommand.isCommand(buf(0x04, 0x01, 0x00)));
+  }
+
+  @Test(expected = ZMTPException.class)
+  public void testMalformedCommandName() throws Exception {
+    ZMTPCommand.read(buf(0x04, 0x02, 0x05, 'R'));
+  }
+}
@@ -0,0 +1,103 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPConflatingHandlerTest {
+
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+
+  private final AutoFlushingWriteBatcher batcher =
+      new AutoFlushingWriteBatcher(1, MILLISECONDS, 1000000, MICROSECONDS, 1024 * 1024,
+                                   true, scheduler, scheduler);
+
+  private final ZMTPConflatingHandler handler = new ZMTPConflatingHandler();
+
+  @Test
+  public void testPassesMessagesWhileWritable() {
+    final PipelineTester pt = connect(false);
+    pt.writeServer(message("a", "1"));
+    pt.writeServer(message("a", "2"));
+    Assert.assertEquals(0, handler.getHeldMessages());
+    Assert.assertEquals(0, handler.getConflatedMessages());
+    assertReceived(pt, message("a", "1"), message("a", "2"));
+  }
+
+  @Test
+  public void testReplacesHeldMessagesInPlace() {
+    final PipelineTester pt = connect(true);
+
+    // The first message makes the batcher unwritable, the rest are held
+    pt.writeServer(message("a", "1"));
+    final ChannelFuture a2 = pt.writeServer(message("a", "2"));
+    pt.writeServer(message("b", "1"));
+    pt.writeServer(message("a", "3"));
+    pt.writeServer(message("b", "22"));
+    Assert.assertEquals(2, handler.getHeldMessages());
+    Assert.assertEquals(5, handler.getHeldBytes());
+    Assert.assertTrue(a2.isSuccess());
+    Assert.assertEquals(2, handler.getConflatedMessages());
+    Assert.assertEquals(4, handler.getConflatedBytes());
+
+    assertReceived(pt, message("a", "1"), message("a", "3"), message("b", "22"));
+    Assert.assertEquals(0, handler.getHeldMessages());
+    Assert.assertEquals(0, handler.getHeldBytes());
+  }
+
+  @Test
+  public void testHeldMessagesFailedOnClose() {
+    final PipelineTester pt = connect(true);
+
+    pt.writeServer(message("a", "1"));
+    final ChannelFuture b = pt.writeServer(message("b", "1"));
+    pt.closeClient();
+    Assert.assertTrue(b.getCause() instanceof ClosedChannelException);
+    Assert.assertEquals(0, handler.getHeldMessages());
+  }
+
+  /**
+   * Flush the batcher and check that the expected messages are received. The batcher keeps
+   * flushing the messages passed on by the handler while it is flushing.
+   */
+  private void assertReceived(final PipelineTester pt, final ZMTPMessage... expected) {
+    batcher.flush();
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    for (final ZMTPMessage message : expected) {
+      ZMTPUtils.writeMessage(message, buffer, false, 2);
+    }
+    cmp(buffer, pt.readClient());
+  }
+
+  private PipelineTester connect(final boolean slow) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.PUB);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(
+        batcher, new ZMTP20Codec(session, false), handler));
+    batcher.flush();
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.SUB, "client".getBytes(), true));
+    if (slow) {
+      batcher.setWriteBufferLowWaterMark(1);
+      batcher.setWriteBufferHighWaterMark(1);
+    }
+    return pt;
+  }
+
+  private static ZMTPMessage message(final String topic, final String value) {
+    return ZMTPMessage.fromStringsUTF8(false, topic, value);
+  }
+}
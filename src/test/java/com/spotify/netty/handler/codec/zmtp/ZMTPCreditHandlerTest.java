@@ -0,0 +1,103 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPCreditHandlerTest {
+
+  @Test
+  public void testGrantsWindowOnConnect() {
+    final ZMTPCreditHandler handler = new ZMTPCreditHandler(10, 1000);
+    final PipelineTester pt = connect(handler);
+    cmp(encode(ZMTPCommand.credit(10, 1000)), pt.readClient());
+    Assert.assertEquals(1, handler.getGrantsSent());
+  }
+
+  @Test
+  public void testHoldsMessagesUntilCredit() {
+    final ZMTPCreditHandler handler = new ZMTPCreditHandler(10, 1000);
+    final PipelineTester pt = connect(handler);
+    pt.readClient();
+
+    final ChannelFuture a = pt.writeServer(ZMTPMessage.fromStringsUTF8(false, "a"));
+    pt.writeServer(ZMTPMessage.fromStringsUTF8(false, "bb"));
+    pt.writeServer(ZMTPMessage.fromStringsUTF8(false, "c"));
+    Assert.assertEquals(3, handler.getQueuedMessages());
+    Assert.assertFalse(handler.isWritable());
+    Assert.assertFalse(a.isDone());
+
+    // Two messages, but only enough bytes for the first and part of the second
+    pt.writeClient(encode(ZMTPCommand.credit(2, 2)));
+    cmp(buf(0, 1, 0x61), pt.readClient());
+    cmp(buf(0, 2, 0x62, 0x62), pt.readClient());
+    Assert.assertEquals(1, handler.getQueuedMessages());
+    Assert.assertEquals(0, handler.getMessageCredit());
+    Assert.assertEquals(-1, handler.getByteCredit());
+
+    pt.writeClient(encode(ZMTPCommand.credit(1, 1)));
+    Assert.assertEquals(1, handler.getQueuedMessages());
+    pt.writeClient(encode(ZMTPCommand.credit(0, 10)));
+    cmp(buf(0, 1, 0x63), pt.readClient());
+    Assert.assertEquals(0, handler.getQueuedMessages());
+    Assert.assertEquals(3, handler.getGrantsReceived());
+  }
+
+  @Test
+  public void testGrantsCreditOnRelease() {
+    final ZMTPCreditHandler handler = new ZMTPCreditHandler(4, 1000);
+    final PipelineTester pt = connect(handler);
+    pt.readClient();
+
+    pt.writeClient(buf(0, 1, 0x61));
+    pt.writeClient(buf(0, 2, 0x62, 0x62));
+    final ZMTPIncomingMessage a = (ZMTPIncomingMessage) pt.readServer();
+    final ZMTPIncomingMessage b = (ZMTPIncomingMessage) pt.readServer();
+
+    // Credit is granted in batches of half the window
+    a.release();
+    Assert.assertEquals(1, handler.getGrantsSent());
+    b.release();
+    Assert.assertEquals(2, handler.getGrantsSent());
+    cmp(encode(ZMTPCommand.credit(2, 3)), pt.readClient());
+  }
+
+  @Test
+  public void testDisabledBeforeZMTP3() {
+    final ZMTPCreditHandler handler = new ZMTPCreditHandler();
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(
+        new ZMTP20Codec(session, false), handler));
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, "client".getBytes(), true));
+    pt.writeClient(buf(0, 1, 0x61));
+    pt.readServer();
+
+    pt.writeServer(ZMTPMessage.fromStringsUTF8(false, "a"));
+    cmp(buf(0, 1, 0x61), pt.readClient());
+    Assert.assertEquals(0, handler.getGrantsSent());
+  }
+
+  private static PipelineTester connect(final ZMTPCreditHandler handler) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(
+        new ZMTP30Codec(session, false), handler));
+    pt.readClient();
+    pt.writeClient(ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.DEALER, "client".getBytes(), true));
+    return pt;
+  }
+
+  private static ChannelBuffer encode(final ZMTPCommand command) {
+    final ChannelBuffer buffer = ChannelBuffers.buffer(command.size());
+    command.write(buffer);
+    return buffer;
+  }
+}
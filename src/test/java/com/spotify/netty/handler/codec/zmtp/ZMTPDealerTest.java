@@ -0,0 +1,131 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPDealerTest {
+
+  private static final ZMTPMessage SMALL = ZMTPMessage.fromStringsUTF8(false, "x");
+  private static final ZMTPMessage LARGE = ZMTPMessage.fromStringsUTF8(
+      false, "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx");
+
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+
+  @Test
+  public void testNoPeers() {
+    Assert.assertNull(new ZMTPDealer().send(SMALL));
+  }
+
+  @Test
+  public void testRoundRobin() {
+    final ZMTPDealer dealer = new ZMTPDealer(ZMTPDealer.Strategy.ROUND_ROBIN);
+    final PipelineTester[] peers = {
+        connect(dealer, null), connect(dealer, null), connect(dealer, null)};
+    Assert.assertEquals(3, dealer.getPeerCount());
+    for (int i = 0; i < 6; i++) {
+      Assert.assertNotNull(dealer.send(SMALL));
+    }
+    for (final PipelineTester peer : peers) {
+      cmp(buf(0, 1, 0x78), peer.readClient());
+      cmp(buf(0, 1, 0x78), peer.readClient());
+    }
+  }
+
+  @Test
+  public void testSkipsUnwritablePeers() {
+    final ZMTPDealer dealer = new ZMTPDealer(ZMTPDealer.Strategy.ROUND_ROBIN);
+    final AutoFlushingWriteBatcher batcher = batcher();
+    connect(dealer, batcher);
+    batcher.setWriteBufferLowWaterMark(0);
+    batcher.setWriteBufferHighWaterMark(1);
+    connect(dealer, null);
+    connect(dealer, null);
+
+    // The first message makes the first peer unwritable
+    dealer.send(SMALL);
+    Assert.assertFalse(batcher.isWritable());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertNotNull(dealer.send(SMALL));
+    }
+    Assert.assertEquals(3, batcher.getQueuedBytes());
+  }
+
+  @Test
+  public void testNoWritablePeers() {
+    final ZMTPDealer dealer = new ZMTPDealer(ZMTPDealer.Strategy.POWER_OF_TWO_CHOICES);
+    final AutoFlushingWriteBatcher batcher = batcher();
+    connect(dealer, batcher);
+    batcher.setWriteBufferLowWaterMark(0);
+    batcher.setWriteBufferHighWaterMark(1);
+    Assert.assertNotNull(dealer.send(SMALL));
+    Assert.assertNull(dealer.send(SMALL));
+  }
+
+  @Test
+  public void testLeastPendingBytes() {
+    testBalancesPendingBytes(ZMTPDealer.Strategy.LEAST_PENDING_BYTES);
+  }
+
+  @Test
+  public void testPowerOfTwoChoices() {
+    testBalancesPendingBytes(ZMTPDealer.Strategy.POWER_OF_TWO_CHOICES);
+  }
+
+  private void testBalancesPendingBytes(final ZMTPDealer.Strategy strategy) {
+    final ZMTPDealer dealer = new ZMTPDealer(strategy);
+    final AutoFlushingWriteBatcher a = batcher();
+    final AutoFlushingWriteBatcher b = batcher();
+    connect(dealer, a);
+    connect(dealer, b);
+
+    // Small messages keep going to the peer with the least queued bytes
+    dealer.send(LARGE);
+    for (int i = 0; i < 5; i++) {
+      dealer.send(SMALL);
+    }
+    final int large = Math.max(a.getQueuedBytes(), b.getQueuedBytes());
+    final int small = Math.min(a.getQueuedBytes(), b.getQueuedBytes());
+    Assert.assertEquals(52, large);
+    Assert.assertEquals(15, small);
+  }
+
+  /**
+   * Create a batcher that only flushes when told to.
+   */
+  private AutoFlushingWriteBatcher batcher() {
+    return new AutoFlushingWriteBatcher(1, MILLISECONDS, 1000000, MICROSECONDS, 1024 * 1024,
+                                        true, scheduler, scheduler);
+  }
+
+  private static PipelineTester connect(final ZMTPDealer dealer,
+                                        final AutoFlushingWriteBatcher batcher) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "dealer".getBytes(), ZMTPSocketType.DEALER);
+    final ChannelHandler codec = new ZMTP20Codec(session, false);
+    final ChannelPipeline pipeline = batcher == null
+                                     ? Channels.pipeline(codec, dealer)
+                                     : Channels.pipeline(batcher, codec, dealer);
+    final PipelineTester pt = new PipelineTester(pipeline);
+    if (batcher != null) {
+      batcher.flush();
+    }
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.ROUTER, "peer".getBytes(), true));
+    // Wait for the handshake to complete
+    pt.writeClient(buf(0, 1, 0x61));
+    pt.readServer();
+    return pt;
+  }
+}
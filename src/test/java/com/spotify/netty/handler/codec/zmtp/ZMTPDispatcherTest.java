@@ -0,0 +1,139 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Arrays.asList;
+
+public class ZMTPDispatcherTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final int KEYS = 16;
+  private static final int MESSAGES = 1000;
+
+  private final ZMTPDispatcher dispatcher =
+      new ZMTPDispatcher(4, ZMTPDispatcher.Key.FIRST_ENVELOPE_FRAME);
+
+  @After
+  public void tearDown() {
+    dispatcher.releaseExternalResources();
+  }
+
+  @Test
+  public void testOrderedPerKey() {
+    final Map<String, Set<Thread>> threads = new ConcurrentHashMap<String, Set<Thread>>();
+    final PipelineTester pt = connect(new SimpleChannelUpstreamHandler() {
+      @Override
+      public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+          throws Exception {
+        final ZMTPMessage message = ((ZMTPIncomingMessage) e.getMessage()).getMessage();
+        final String key = message.getEnvelope().get(0).getDataBuffer().toString(UTF_8);
+        Set<Thread> keyThreads = threads.get(key);
+        if (keyThreads == null) {
+          keyThreads = Collections.synchronizedSet(new HashSet<Thread>());
+          threads.put(key, keyThreads);
+        }
+        keyThreads.add(Thread.currentThread());
+        super.messageReceived(ctx, e);
+      }
+    });
+
+    // Send all messages in a single buffer, round robin over the keys
+    final List<ZMTPMessage> messages = new ArrayList<ZMTPMessage>();
+    for (int i = 0; i < MESSAGES; i++) {
+      messages.add(new ZMTPMessage(
+          asList(ZMTPFrame.create("key" + (i % KEYS))),
+          asList(ZMTPFrame.create(String.valueOf(i)))));
+    }
+    int size = 0;
+    for (final ZMTPMessage message : messages) {
+      size += ZMTPUtils.messageSize(message, true, 2);
+    }
+    final ChannelBuffer buffer = ChannelBuffers.buffer(size);
+    for (final ZMTPMessage message : messages) {
+      ZMTPUtils.writeMessage(message, buffer, true, 2);
+    }
+    pt.writeClient(buffer);
+
+    final int[] last = new int[KEYS];
+    Arrays.fill(last, -1);
+    for (int i = 0; i < MESSAGES; i++) {
+      final ZMTPMessage message = ((ZMTPIncomingMessage) pt.readServer()).getMessage();
+      final int key = Integer.parseInt(
+          message.getEnvelope().get(0).getDataBuffer().toString(UTF_8).substring(3));
+      final int sequence = Integer.parseInt(
+          message.getContentFrame(0).getDataBuffer().toString(UTF_8));
+      Assert.assertTrue(sequence > last[key]);
+      last[key] = sequence;
+    }
+
+    // Each key is handled by a single worker, and the keys are spread over the workers
+    final Set<Thread> used = new HashSet<Thread>();
+    for (final Set<Thread> keyThreads : threads.values()) {
+      Assert.assertEquals(1, keyThreads.size());
+      used.addAll(keyThreads);
+    }
+    Assert.assertTrue(used.size() > 1);
+    Assert.assertFalse(used.contains(Thread.currentThread()));
+    Assert.assertEquals(0, dispatcher.getQueuedMessages());
+  }
+
+  @Test
+  public void testAnonymousPeersSpreadOverWorkers() {
+    final ZMTPDispatcher dispatcher = new ZMTPDispatcher(4, ZMTPDispatcher.Key.SESSION_IDENTITY);
+    final Set<Thread> used = Collections.synchronizedSet(new HashSet<Thread>());
+    final SimpleChannelUpstreamHandler recorder = new SimpleChannelUpstreamHandler() {
+      @Override
+      public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+          throws Exception {
+        used.add(Thread.currentThread());
+        super.messageReceived(ctx, e);
+      }
+    };
+
+    try {
+      for (int i = 0; i < KEYS; i++) {
+        final PipelineTester pt = connect(dispatcher, recorder, new byte[0]);
+        pt.writeClient(TestUtil.buf(1, 0, 0, 1, 0x61));
+        pt.readServer();
+      }
+    } finally {
+      dispatcher.releaseExternalResources();
+    }
+    Assert.assertTrue(used.size() > 1);
+  }
+
+  private PipelineTester connect(final SimpleChannelUpstreamHandler handler) {
+    return connect(dispatcher, handler, "client".getBytes());
+  }
+
+  private static PipelineTester connect(final ZMTPDispatcher dispatcher,
+                                        final SimpleChannelUpstreamHandler handler,
+                                        final byte[] identity) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "router".getBytes(), ZMTPSocketType.ROUTER);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(
+        new ZMTP20Codec(session, false), dispatcher, handler));
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, identity, true));
+    return pt;
+  }
+}
@@ -0,0 +1,179 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+/**
+ * Tests ZMTP/3.1 heartbeating, with heartbeat timers running in virtual time.
+ */
+public class ZMTPHeartbeatTest {
+
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+  private final ZMTPHeartbeater heartbeater = new ZMTPHeartbeater(10, MILLISECONDS, scheduler,
+                                                                  scheduler);
+  private final CountDownLatch closed = new CountDownLatch(1);
+
+  private ZMTP30Codec codec;
+  private PipelineTester pt;
+
+  @Before
+  public void setup() {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "foo".getBytes(), ZMTPSocketType.REP);
+    codec = new ZMTP30Codec(session, false);
+    codec.setHeartbeater(heartbeater);
+  }
+
+  @Test
+  public void testPingIsAnsweredWithPong() throws Exception {
+    connect();
+    pt.writeClient(command(ZMTPCommand.ping(0, buf(0x61, 0x62))));
+    cmp(command(ZMTPCommand.pong(buf(0x61, 0x62))), pt.readClient());
+
+    // PING and PONG are not passed upstream
+    pt.writeClient(command(ZMTPCommand.pong(buf(0x61))));
+    pt.writeClient(buf(1, 0, 0, 1, 0x62));
+    final ZMTPIncomingMessage m = (ZMTPIncomingMessage) pt.readServer();
+    cmp(buf(0x62), m.getMessage().getContent().get(0).getDataBuffer());
+    Assert.assertEquals(0, heartbeater.getConnectionCount());
+  }
+
+  @Test
+  public void testDeadPeerIsClosed() throws Exception {
+    codec.setHeartbeatInterval(100);
+    codec.setHeartbeatTimeout(300);
+    codec.setHeartbeatTtl(1000);
+    connect();
+    Assert.assertEquals(1, heartbeater.getConnectionCount());
+
+    scheduler.advance(100, MILLISECONDS);
+    cmp(command(ZMTPCommand.ping(10, ChannelBuffers.EMPTY_BUFFER)), pt.readClient());
+
+    // The peer never answers
+    scheduler.advance(290, MILLISECONDS);
+    Assert.assertEquals(1, closed.getCount());
+    scheduler.advance(10, MILLISECONDS);
+    Assert.assertTrue(closed.await(5, SECONDS));
+    Assert.assertEquals(0, heartbeater.getConnectionCount());
+    Assert.assertTrue(scheduler.getScheduledTasks().isEmpty());
+  }
+
+  @Test
+  public void testDeadPeerIsClosedWhenPingIsSentAtAnyTime() throws Exception {
+    // The PING is sent when the clock reads -1
+    final VirtualScheduler scheduler = new VirtualScheduler(MILLISECONDS.toNanos(-100) - 1);
+    codec.setHeartbeater(new ZMTPHeartbeater(10, MILLISECONDS, scheduler, scheduler));
+    codec.setHeartbeatInterval(100);
+    codec.setHeartbeatTimeout(300);
+    connect();
+
+    scheduler.advance(100, MILLISECONDS);
+    Assert.assertEquals(-1, scheduler.nanoTime());
+    cmp(command(ZMTPCommand.ping(0, ChannelBuffers.EMPTY_BUFFER)), pt.readClient());
+
+    scheduler.advance(300, MILLISECONDS);
+    Assert.assertTrue(closed.await(5, SECONDS));
+  }
+
+  @Test
+  public void testTickCancelledWhenConnectionCloses() throws Exception {
+    codec.setHeartbeatInterval(100);
+    connect();
+    Assert.assertEquals(1, scheduler.getScheduledTasks().size());
+
+    pt.closeClient();
+    Assert.assertTrue(closed.await(5, SECONDS));
+    Assert.assertEquals(0, heartbeater.getConnectionCount());
+    Assert.assertTrue(scheduler.getScheduledTasks().isEmpty());
+  }
+
+  @Test
+  public void testPongKeepsConnectionOpen() throws Exception {
+    codec.setHeartbeatInterval(100);
+    connect();
+
+    for (int i = 0; i < 10; i++) {
+      scheduler.advance(100, MILLISECONDS);
+      cmp(command(ZMTPCommand.ping(0, ChannelBuffers.EMPTY_BUFFER)), pt.readClient());
+      pt.writeClient(command(ZMTPCommand.pong(ChannelBuffers.EMPTY_BUFFER)));
+      // Make sure the PONG has been received before moving on
+      pt.writeClient(buf(1, 0, 0, 1, 0x62));
+      pt.readServer();
+    }
+    Assert.assertEquals(1, closed.getCount());
+
+    scheduler.advance(200, MILLISECONDS);
+    Assert.assertTrue(closed.await(5, SECONDS));
+  }
+
+  @Test
+  public void testRemoteTtl() throws Exception {
+    connect();
+    pt.writeClient(command(ZMTPCommand.ping(5, ChannelBuffers.EMPTY_BUFFER)));
+    cmp(command(ZMTPCommand.pong(ChannelBuffers.EMPTY_BUFFER)), pt.readClient());
+    Assert.assertEquals(1, heartbeater.getConnectionCount());
+
+    scheduler.advance(490, MILLISECONDS);
+    Assert.assertEquals(1, closed.getCount());
+    scheduler.advance(10, MILLISECONDS);
+    Assert.assertTrue(closed.await(5, SECONDS));
+  }
+
+  @Test
+  public void testNoHeartbeatsForZMTP30Peers() throws Exception {
+    codec.setHeartbeatInterval(100);
+    final ChannelBuffer greeting = ZMTP30Codec.makeZMTP3Greeting(
+        ZMTPSocketType.REQ, "bar".getBytes(), true);
+    // Minor version 0
+    greeting.setByte(11, 0);
+    connect(greeting);
+    Assert.assertEquals(0, heartbeater.getConnectionCount());
+  }
+
+  private void connect() {
+    connect(ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.REQ, "bar".getBytes(), true));
+  }
+
+  /**
+   * Connect to the codec and complete the handshake.
+   */
+  private void connect(final ChannelBuffer greeting) {
+    final ChannelPipeline pipeline = Channels.pipeline(new SimpleChannelUpstreamHandler() {
+      @Override
+      public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+          throws Exception {
+        closed.countDown();
+        super.channelClosed(ctx, e);
+      }
+    }, codec);
+    pt = new PipelineTester(pipeline);
+    pt.readClient();
+    pt.writeClient(greeting);
+    pt.writeClient(buf(1, 0, 0, 1, 0x61));
+    pt.readServer();
+  }
+
+  private static ChannelBuffer command(final ZMTPCommand command) {
+    final ChannelBuffer buffer = ChannelBuffers.buffer(command.size());
+    command.write(buffer);
+    return buffer;
+  }
+}
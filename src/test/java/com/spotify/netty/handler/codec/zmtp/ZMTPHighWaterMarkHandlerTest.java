@@ -0,0 +1,226 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.ExpiringMessage;
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPHighWaterMarkHandlerTest {
+
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+
+  private final AutoFlushingWriteBatcher batcher =
+      new AutoFlushingWriteBatcher(1, MILLISECONDS, 1000000, MICROSECONDS, 1024 * 1024,
+                                   true, scheduler, scheduler);
+
+  private ZMTP20Codec codec;
+
+  @Test
+  public void testPassesMessagesWhileWritable() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.FAIL, 1, 1);
+    final PipelineTester pt = connect(handler, false);
+    for (int i = 0; i < 3; i++) {
+      pt.writeServer(message("a"));
+    }
+    Assert.assertEquals(0, handler.getQueuedMessages());
+    batcher.flush();
+    cmp(buf(0, 1, 0x61, 0, 1, 0x61, 0, 1, 0x61), pt.readClient());
+  }
+
+  @Test
+  public void testDropNewest() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.DROP_NEWEST, 2, 1024);
+    final PipelineTester pt = connect(handler, true);
+
+    // The first message makes the batcher unwritable, the next two are held
+    pt.writeServer(message("a"));
+    final ChannelFuture b = pt.writeServer(message("b"));
+    pt.writeServer(message("c"));
+    Assert.assertEquals(2, handler.getQueuedMessages());
+    Assert.assertFalse(b.isDone());
+
+    final ChannelFuture d = pt.writeServer(message("d"));
+    Assert.assertTrue(d.isSuccess());
+    Assert.assertEquals(1, handler.getDroppedMessages());
+    Assert.assertEquals(2, handler.getQueuedMessages());
+
+    assertReceived(pt, "a", "b", "c");
+    Assert.assertTrue(b.isSuccess());
+    Assert.assertEquals(0, handler.getQueuedMessages());
+  }
+
+  @Test
+  public void testDropOldestByBytes() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.DROP_OLDEST, 100, 2);
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    final ChannelFuture b = pt.writeServer(message("b"));
+    pt.writeServer(message("c"));
+    Assert.assertEquals(2, handler.getQueuedBytes());
+
+    pt.writeServer(message("d"));
+    Assert.assertTrue(b.isSuccess());
+    Assert.assertEquals(1, handler.getDroppedMessages());
+    Assert.assertEquals(2, handler.getQueuedBytes());
+
+    assertReceived(pt, "a", "c", "d");
+  }
+
+  @Test
+  public void testFail() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.FAIL, 1, 1024);
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    pt.writeServer(message("b"));
+    final ChannelFuture c = pt.writeServer(message("c"));
+    Assert.assertTrue(c.getCause() instanceof ZMTPException);
+    Assert.assertEquals(1, handler.getFailedWrites());
+
+    assertReceived(pt, "a", "b");
+  }
+
+  @Test
+  public void testBlock() throws Exception {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.BLOCK, 1, 1024);
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    pt.writeServer(message("b"));
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        pt.writeServer(message("c"));
+      }
+    };
+    writer.start();
+    for (int i = 0; i < 100 && handler.getBlockedWrites() == 0; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, handler.getBlockedWrites());
+    Assert.assertTrue(writer.isAlive());
+
+    // Making room lets the writer continue
+    batcher.flush();
+    writer.join(1000);
+    Assert.assertFalse(writer.isAlive());
+    batcher.flush();
+    Assert.assertEquals(0, handler.getQueuedMessages());
+  }
+
+  @Test(timeout = 5000)
+  public void testBlockFailsInIOThread() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.BLOCK, 1, 1024);
+    // The local transport completes the handshake in the thread that writes the greeting
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    pt.writeServer(message("b"));
+    final ChannelFuture c = pt.writeServer(message("c"));
+    Assert.assertTrue(c.getCause() instanceof ZMTPException);
+    Assert.assertEquals(1, handler.getFailedWrites());
+    Assert.assertEquals(0, handler.getBlockedWrites());
+
+    assertReceived(pt, "a", "b");
+  }
+
+  @Test
+  public void testExpiredMessagesMakeRoom() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.FAIL, 1, 1024);
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    final ChannelFuture b =
+        pt.writeServer(new ExpiringMessage(message("b"), System.nanoTime() - 1));
+    final ChannelFuture c = pt.writeServer(message("c"));
+    Assert.assertTrue(b.getCause() instanceof TimeoutException);
+    Assert.assertFalse(c.isDone());
+    Assert.assertEquals(1, handler.getExpiredMessages());
+    Assert.assertEquals(0, handler.getFailedWrites());
+
+    assertReceived(pt, "a", "c");
+  }
+
+  @Test
+  public void testExpiredMessagesNotEncoded() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.FAIL, 10, 1024);
+    final PipelineTester pt = connect(handler, false);
+
+    final ChannelFuture a =
+        pt.writeServer(new ExpiringMessage(message("a"), System.nanoTime() - 1));
+    pt.writeServer(ExpiringMessage.expireAfter(message("b"), 1, MINUTES));
+    Assert.assertTrue(a.getCause() instanceof TimeoutException);
+    Assert.assertEquals(1, codec.getExpiredMessages());
+
+    assertReceived(pt, "b");
+  }
+
+  @Test
+  public void testHeldMessagesFailedOnClose() {
+    final ZMTPHighWaterMarkHandler handler =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.FAIL, 10, 1024);
+    final PipelineTester pt = connect(handler, true);
+
+    pt.writeServer(message("a"));
+    final ChannelFuture b = pt.writeServer(message("b"));
+    pt.closeClient();
+    Assert.assertTrue(b.getCause() instanceof ClosedChannelException);
+    Assert.assertEquals(0, handler.getQueuedMessages());
+  }
+
+  /**
+   * Flush the batcher and check that the expected messages are received. The batcher keeps
+   * flushing the messages passed on by the handler while it is flushing.
+   */
+  private void assertReceived(final PipelineTester pt, final String... expected) {
+    batcher.flush();
+    final ChannelBuffer received = pt.readClient();
+    for (final String s : expected) {
+      cmp(buf(0, 1, s.charAt(0)), received.readSlice(3));
+    }
+    Assert.assertFalse(received.readable());
+  }
+
+  private PipelineTester connect(final ZMTPHighWaterMarkHandler handler, final boolean slow) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+    codec = new ZMTP20Codec(session, false);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(batcher, codec, handler));
+    batcher.flush();
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, "client".getBytes(), true));
+    if (slow) {
+      batcher.setWriteBufferLowWaterMark(1);
+      batcher.setWriteBufferHighWaterMark(1);
+    }
+    return pt;
+  }
+
+  private static ZMTPMessage message(final String s) {
+    return ZMTPMessage.fromStringsUTF8(false, s);
+  }
+}
@@ -0,0 +1,172 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+
+public class ZMTPMemoryBudgetTest {
+
+  @Test
+  public void testReleasesHandshakeBytes() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(1000);
+    final ReadabilityRecorder recorder = new ReadabilityRecorder();
+    final PipelineTester pt = connect(budget, recorder);
+
+    pt.writeClient(message(1));
+    final ZMTPIncomingMessage message = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertEquals(1, budget.getUsedBytes());
+    message.release();
+    message.release();
+    Assert.assertEquals(0, budget.getUsedBytes());
+    Assert.assertNull(recorder.getReadable());
+  }
+
+  @Test
+  public void testSuspendsAndResumes() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(64, 32);
+    final ReadabilityRecorder recorder = new ReadabilityRecorder();
+    final PipelineTester pt = connect(budget, recorder);
+
+    pt.writeClient(message(100));
+    Assert.assertEquals(Boolean.FALSE, recorder.getReadable());
+    Assert.assertEquals(1, budget.getSuspendedChannels());
+
+    final ZMTPIncomingMessage message = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertEquals(100, budget.getUsedBytes());
+    message.release();
+    Assert.assertEquals(Boolean.TRUE, recorder.getReadable());
+    Assert.assertEquals(0, budget.getSuspendedChannels());
+    Assert.assertEquals(1, budget.getSuspensions());
+  }
+
+  @Test
+  public void testPartialMessagesHoldBudget() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(1000);
+    final PipelineTester pt = connect(budget, new ReadabilityRecorder());
+
+    // The first frame of a message and part of the second
+    pt.writeClient(buf(1, 2, 0x61, 0x61, 0, 3, 0x62));
+    Assert.assertEquals(5, budget.getUsedBytes());
+    pt.writeClient(buf(0x62, 0x62));
+    final ZMTPIncomingMessage message = (ZMTPIncomingMessage) pt.readServer();
+    Assert.assertEquals(5, budget.getUsedBytes());
+    message.release();
+    Assert.assertEquals(0, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testSuspendsHeaviestChannels() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(64, 32);
+    final ReadabilityRecorder light = new ReadabilityRecorder();
+    final ReadabilityRecorder heavy = new ReadabilityRecorder();
+    final PipelineTester a = connect(budget, light);
+    final PipelineTester b = connect(budget, heavy);
+
+    a.writeClient(message(1));
+    b.writeClient(message(100));
+    Assert.assertNull(light.getReadable());
+    Assert.assertEquals(Boolean.FALSE, heavy.getReadable());
+
+    a.readServer();
+    ((ZMTPIncomingMessage) b.readServer()).release();
+    Assert.assertEquals(Boolean.TRUE, heavy.getReadable());
+    Assert.assertEquals(1, budget.getUsedBytes());
+  }
+
+  @Test
+  public void testPartialMessagesAreNotSuspended() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(64, 32);
+    final List<ReadabilityRecorder> recorders = new ArrayList<ReadabilityRecorder>();
+    final List<PipelineTester> peers = new ArrayList<PipelineTester>();
+    for (int i = 0; i < 3; i++) {
+      recorders.add(new ReadabilityRecorder());
+      peers.add(connect(budget, recorders.get(i)));
+    }
+
+    // Every channel is part way through a message, together holding more than the limit
+    final ChannelBuffer[] messages = new ChannelBuffer[3];
+    for (int i = 0; i < 3; i++) {
+      messages[i] = message(100);
+      peers.get(i).writeClient(messages[i].readSlice(42));
+    }
+    Assert.assertEquals(126, budget.getUsedBytes());
+    Assert.assertEquals(0, budget.getSuspendedChannels());
+
+    // Each channel is suspended once it has received its message
+    final List<ZMTPIncomingMessage> received = new ArrayList<ZMTPIncomingMessage>();
+    for (int i = 0; i < 3; i++) {
+      peers.get(i).writeClient(messages[i]);
+      received.add((ZMTPIncomingMessage) peers.get(i).readServer());
+      Assert.assertEquals(Boolean.FALSE, recorders.get(i).getReadable());
+    }
+    Assert.assertEquals(3, budget.getSuspendedChannels());
+
+    for (final ZMTPIncomingMessage message : received) {
+      message.release();
+    }
+    Assert.assertEquals(0, budget.getUsedBytes());
+    Assert.assertEquals(0, budget.getSuspendedChannels());
+    for (final ReadabilityRecorder recorder : recorders) {
+      Assert.assertEquals(Boolean.TRUE, recorder.getReadable());
+    }
+  }
+
+  @Test
+  public void testResumesWhileOtherChannelsHoldPartialMessages() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(64, 32);
+    final ReadabilityRecorder complete = new ReadabilityRecorder();
+    final PipelineTester a = connect(budget, complete);
+    final PipelineTester b = connect(budget, new ReadabilityRecorder());
+
+    // The peer of b stops sending in the middle of a message
+    b.writeClient(message(100).readSlice(60));
+    a.writeClient(message(100));
+    Assert.assertEquals(Boolean.FALSE, complete.getReadable());
+
+    // Only the bytes of received messages can be released, so they alone decide when to resume
+    ((ZMTPIncomingMessage) a.readServer()).release();
+    Assert.assertEquals(60, budget.getUsedBytes());
+    Assert.assertEquals(Boolean.TRUE, complete.getReadable());
+  }
+
+  @Test
+  public void testClosedChannelReleasesInput() {
+    final ZMTPMemoryBudget budget = new ZMTPMemoryBudget(1000);
+    final PipelineTester pt = connect(budget, new ReadabilityRecorder());
+
+    pt.writeClient(buf(0, 3, 0x61));
+    Assert.assertEquals(3, budget.getUsedBytes());
+    pt.closeClient();
+    Assert.assertEquals(0, budget.getUsedBytes());
+  }
+
+  private static PipelineTester connect(final ZMTPMemoryBudget budget,
+                                        final ReadabilityRecorder recorder) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+    final ZMTP20Codec codec = new ZMTP20Codec(session, false);
+    codec.setMemoryBudget(budget);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(recorder, codec));
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, "client".getBytes(), true));
+    return pt;
+  }
+
+  /**
+   * Return a single frame message with the specified number of bytes.
+   */
+  private static ChannelBuffer message(final int size) {
+    final ChannelBuffer buffer = ChannelBuffers.buffer(2 + size);
+    buffer.writeByte(0);
+    buffer.writeByte(size);
+    buffer.writeZero(size);
+    return buffer;
+  }
+}
@@ -0,0 +1,201 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPPublisherTest {
+
+  private final VirtualScheduler scheduler = new VirtualScheduler();
+
+  private ZMTPPublisher publisher = new ZMTPPublisher();
+
+  @Test
+  public void testPublishToSubscribers() throws Exception {
+    final PipelineTester a = connect();
+    final PipelineTester b = connect();
+
+    // Subscribe a to "a" and b to everything
+    subscribe(a, buf(0, 2, 1, 0x61));
+    subscribe(b, buf(0, 1, 1));
+    Assert.assertEquals(2, publisher.getSubscriptionCount());
+
+    Assert.assertEquals(2, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "ab", "c")));
+    cmp(buf(1, 2, 0x61, 0x62, 0, 1, 0x63), a.readClient());
+    cmp(buf(1, 2, 0x61, 0x62, 0, 1, 0x63), b.readClient());
+
+    Assert.assertEquals(1, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "b")));
+    cmp(buf(0, 1, 0x62), b.readClient());
+
+    // Unsubscribe b
+    subscribe(b, buf(0, 1, 0));
+    Assert.assertEquals(1, publisher.getSubscriptionCount());
+    Assert.assertEquals(0, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "b")));
+  }
+
+  @Test
+  public void testSubscriptionsRemovedOnClose() throws Exception {
+    final PipelineTester a = connect();
+    subscribe(a, buf(0, 2, 1, 0x61));
+    subscribe(a, buf(0, 2, 1, 0x62));
+    Assert.assertEquals(2, publisher.getSubscriptionCount());
+    a.closeClient();
+    for (int i = 0; i < 100 && publisher.getSubscriptionCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(0, publisher.getSubscriptionCount());
+  }
+
+  @Test
+  public void testZMTP31SubscribeCommands() throws Exception {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "pub".getBytes(), ZMTPSocketType.PUB);
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(
+        new ZMTP30Codec(session, false), publisher));
+    pt.readClient();
+    pt.writeClient(ZMTP30Codec.makeZMTP3Greeting(ZMTPSocketType.SUB, "sub".getBytes(), true));
+    final ZMTPCommand subscribe = new ZMTPCommand(ZMTPCommand.SUBSCRIBE, buf(0x61));
+    final ChannelBuffer frame =
+        ChannelBuffers.buffer(subscribe.size());
+    subscribe.write(frame);
+    pt.writeClient(frame);
+    for (int i = 0; i < 100 && publisher.getSubscriptionCount() == 0; i++) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a")));
+    cmp(buf(0, 1, 0x61), pt.readClient());
+  }
+
+  @Test
+  public void testEncodesOnce() throws Exception {
+    final PipelineTester a = connect();
+    final PipelineTester b = connect();
+    subscribe(a, buf(0, 1, 1));
+    subscribe(b, buf(0, 1, 1));
+
+    Assert.assertEquals(2, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a")));
+    final ChannelBuffer received = a.readClient();
+    Assert.assertSame(received.array(), b.readClient().array());
+    cmp(buf(0, 1, 0x61), received);
+  }
+
+  @Test
+  public void testSlowSubscriberDropped() throws Exception {
+    publisher.setHighWaterMark(2);
+    final AutoFlushingWriteBatcher batcher = batcher();
+    final PipelineTester slow = connect(batcher);
+    final PipelineTester fast = connect();
+    subscribe(slow, buf(0, 1, 1));
+    subscribe(fast, buf(0, 1, 1));
+
+    for (int i = 0; i < 5; i++) {
+      publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a"));
+    }
+    Assert.assertEquals(3, publisher.getDroppedMessages());
+    for (int i = 0; i < 5; i++) {
+      cmp(buf(0, 1, 0x61), fast.readClient());
+    }
+
+    // Once the slow subscriber has caught up it gets new messages again
+    batcher.flush();
+    cmp(buf(0, 1, 0x61, 0, 1, 0x61), slow.readClient());
+    Assert.assertEquals(2, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a")));
+    Assert.assertEquals(3, publisher.getDroppedMessages());
+  }
+
+  @Test
+  public void testSlowSubscriberConflated() throws Exception {
+    publisher = new ZMTPPublisher(ZMTPPublisher.SlowSubscriberPolicy.CONFLATE);
+    publisher.setHighWaterMark(1);
+    final AutoFlushingWriteBatcher batcher = batcher();
+    final PipelineTester slow = connect(batcher);
+    subscribe(slow, buf(0, 1, 1));
+
+    Assert.assertEquals(1, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a")));
+    Assert.assertEquals(1, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "b")));
+    Assert.assertEquals(1, publisher.publish(ZMTPMessage.fromStringsUTF8(false, "c")));
+    Assert.assertEquals(2, publisher.getConflatedMessages());
+    Assert.assertEquals(1, publisher.getDroppedMessages());
+
+    // Completing the first write sends the latest message
+    batcher.flush();
+    cmp(buf(0, 1, 0x61), slow.readClient());
+    batcher.flush();
+    cmp(buf(0, 1, 0x63), slow.readClient());
+  }
+
+  @Test
+  public void testConflatedMessageNotSentAfterNewerMessage() throws Exception {
+    publisher = new ZMTPPublisher(ZMTPPublisher.SlowSubscriberPolicy.CONFLATE);
+    publisher.setHighWaterMark(1);
+    final AutoFlushingWriteBatcher batcher = batcher();
+    final PipelineTester slow = connect(batcher);
+    subscribe(slow, buf(0, 1, 1));
+
+    publisher.publish(ZMTPMessage.fromStringsUTF8(false, "a"));
+    publisher.publish(ZMTPMessage.fromStringsUTF8(false, "b"));
+    Assert.assertEquals(1, publisher.getConflatedMessages());
+
+    // The subscriber catches up while "b" is kept, so "c" is written right away and replaces it
+    publisher.setHighWaterMark(2);
+    publisher.publish(ZMTPMessage.fromStringsUTF8(false, "c"));
+    Assert.assertEquals(1, publisher.getDroppedMessages());
+
+    batcher.flush();
+    cmp(buf(0, 1, 0x61, 0, 1, 0x63), slow.readClient());
+    publisher.publish(ZMTPMessage.fromStringsUTF8(false, "d"));
+    batcher.flush();
+    cmp(buf(0, 1, 0x64), slow.readClient());
+  }
+
+  /**
+   * Create a batcher that only flushes when told to, to keep messages in flight.
+   */
+  private AutoFlushingWriteBatcher batcher() {
+    return new AutoFlushingWriteBatcher(1, MILLISECONDS, 1000000, MICROSECONDS, 1024 * 1024,
+                                        true, scheduler, scheduler);
+  }
+
+  private PipelineTester connect() {
+    return connect(null);
+  }
+
+  private PipelineTester connect(final AutoFlushingWriteBatcher batcher) {
+    final ZMTPSession session = new ZMTPSession(
+        ZMTPConnectionType.Broadcast, 1024, "pub".getBytes(), ZMTPSocketType.PUB);
+    final ZMTP20Codec codec = new ZMTP20Codec(session, false);
+    final ChannelPipeline pipeline = batcher == null
+                                     ? Channels.pipeline(codec, publisher)
+                                     : Channels.pipeline(batcher, codec, publisher);
+    final PipelineTester pt = new PipelineTester(pipeline);
+    if (batcher != null) {
+      batcher.flush();
+    }
+    pt.readClient();
+    pt.writeClient(ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.SUB, "sub".getBytes(), true));
+    return pt;
+  }
+
+  /**
+   * Send a subscription and wait until it has been processed, by sending a regular message after
+   * it that is passed upstream.
+   */
+  private static void subscribe(final PipelineTester pt,
+                                final ChannelBuffer subscription) {
+    pt.writeClient(subscription);
+    pt.writeClient(buf(0, 1, 0x78));
+    pt.readServer();
+  }
+}
@@ -0,0 +1,206 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class ZMTPReconnectingClientTest {
+
+  private static final String FAIL = "fail";
+
+  private final LocalAddress address = new LocalAddress("zmtp-reconnecting-client-test");
+  private final ServerBootstrap serverBootstrap =
+      new ServerBootstrap(new DefaultLocalServerChannelFactory());
+  private final ChannelGroup serverChannels = new DefaultChannelGroup();
+  private final Set<String> received = Collections.synchronizedSet(new HashSet<String>());
+
+  private final ZMTPReconnectingClient client = new ZMTPReconnectingClient(
+      new DefaultLocalClientChannelFactory(), new ChannelPipelineFactory() {
+    @Override
+    public ChannelPipeline getPipeline() throws Exception {
+      final ZMTPSession session = new ZMTPSession(
+          ZMTPConnectionType.Broadcast, 1024, "client".getBytes(), ZMTPSocketType.DEALER);
+      return Channels.pipeline(new ZMTP20Codec(session, false),
+                               new SimpleChannelDownstreamHandler() {
+                                 @Override
+                                 public void writeRequested(final ChannelHandlerContext ctx,
+                                                            final MessageEvent e)
+                                     throws Exception {
+                                   if (e.getMessage() instanceof ZMTPMessage &&
+                                       FAIL.equals(new String(((ZMTPMessage) e.getMessage())
+                                                                  .getContentFrame(0).getData()))) {
+                                     e.getFuture().setFailure(new ZMTPException("rejected"));
+                                     return;
+                                   }
+                                   super.writeRequested(ctx, e);
+                                 }
+                               });
+    }
+  }, address);
+
+  public ZMTPReconnectingClientTest() {
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+        return Channels.pipeline(new ZMTP20Codec(session, false),
+                                 new SimpleChannelUpstreamHandler() {
+                                   @Override
+                                   public void channelOpen(final ChannelHandlerContext ctx,
+                                                           final ChannelStateEvent e) {
+                                     serverChannels.add(e.getChannel());
+                                   }
+
+                                   @Override
+                                   public void messageReceived(final ChannelHandlerContext ctx,
+                                                               final MessageEvent e) {
+                                     final ZMTPIncomingMessage message =
+                                         (ZMTPIncomingMessage) e.getMessage();
+                                     received.add(new String(
+                                         message.getMessage().getContent().get(0).getData()));
+                                   }
+                                 });
+      }
+    });
+    client.setBackoff(1, 10, MILLISECONDS);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    serverChannels.close().awaitUninterruptibly();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Test
+  public void testQueuesUntilServerIsUp() throws Exception {
+    client.start();
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(client.send(message(i)));
+    }
+    Assert.assertEquals(100, client.getQueuedMessages());
+    Assert.assertFalse(client.isConnected());
+
+    startServer();
+    awaitReceived(100);
+    Assert.assertEquals(0, client.getQueuedMessages());
+    Assert.assertTrue(client.getConnectAttempts() > 1);
+    Assert.assertEquals(1, client.getConnects());
+  }
+
+  @Test
+  public void testDropsMessagesAboveHighWaterMark() throws Exception {
+    client.setHighWaterMark(10);
+    client.start();
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(client.send(message(i)));
+    }
+    Assert.assertFalse(client.send(message(10)));
+    Assert.assertEquals(1, client.getDroppedMessages());
+
+    startServer();
+    awaitReceived(10);
+  }
+
+  @Test
+  public void testSurvivesRestartingServer() throws Exception {
+    client.setBatchSize(7);
+    startServer();
+    client.start();
+
+    int sent = 0;
+    for (int restart = 0; restart < 10; restart++) {
+      for (int i = 0; i < 50; i++) {
+        Assert.assertTrue(client.send(message(sent++)));
+      }
+      awaitReceived(sent);
+
+      stopServer();
+      for (int i = 0; i < 50; i++) {
+        Assert.assertTrue(client.send(message(sent++)));
+      }
+      startServer();
+    }
+    awaitReceived(sent);
+    Assert.assertEquals(0, client.getDroppedMessages());
+    Assert.assertEquals(11, client.getConnects());
+  }
+
+  @Test
+  public void testContinuesAfterFailedWrite() throws Exception {
+    client.setBatchSize(1);
+    client.start();
+    for (int i = 0; i < 5; i++) {
+      Assert.assertTrue(client.send(message(i)));
+    }
+    Assert.assertTrue(client.send(ZMTPMessage.fromStringsUTF8(false, FAIL)));
+    for (int i = 5; i < 10; i++) {
+      Assert.assertTrue(client.send(message(i)));
+    }
+
+    startServer();
+    awaitReceived(10);
+    for (int i = 10; i < 20; i++) {
+      Assert.assertTrue(client.send(message(i)));
+    }
+    awaitReceived(20);
+    Assert.assertEquals(0, client.getQueuedMessages());
+    Assert.assertEquals(1, client.getDroppedMessages());
+    Assert.assertFalse(received.contains(FAIL));
+  }
+
+  private void startServer() {
+    serverChannels.add(serverBootstrap.bind(address));
+  }
+
+  private void stopServer() {
+    serverChannels.close().awaitUninterruptibly();
+    for (int i = 0; i < 100 && client.isConnected(); i++) {
+      sleep();
+    }
+    Assert.assertFalse(client.isConnected());
+  }
+
+  private void awaitReceived(final int count) {
+    for (int i = 0; i < 500 && received.size() < count; i++) {
+      sleep();
+    }
+    for (int i = 0; i < count; i++) {
+      Assert.assertTrue("missing " + i, received.contains(String.valueOf(i)));
+    }
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(10);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static ZMTPMessage message(final int i) {
+    return ZMTPMessage.fromStringsUTF8(false, String.valueOf(i));
+  }
+}
@@ -0,0 +1,101 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.cmp;
+
+public class ZMTPRouterTest {
+
+  private final ZMTPRouter router = new ZMTPRouter();
+
+  @Test
+  public void testRouteByIdentity() throws Exception {
+    connect("foo");
+    final PipelineTester bar = connect("bar");
+    Assert.assertEquals(2, router.getSessionCount());
+
+    final ChannelFuture future = router.send(
+        "bar".getBytes(), new ZMTPMessage(asList(ZMTPFrame.create("bar")),
+                                          asList(ZMTPFrame.create("b"))));
+    Assert.assertNotNull(future);
+    cmp(buf(1, 3, 0x62, 0x61, 0x72, 1, 0, 0, 1, 0x62), bar.readClient());
+
+    Assert.assertNull(router.send("baz".getBytes(), new ZMTPMessage(
+        asList(ZMTPFrame.create("baz")), asList(ZMTPFrame.create("b")))));
+
+    router.getSession("foo".getBytes()).getChannel().close().awaitUninterruptibly();
+    Assert.assertNull(router.getSession("foo".getBytes()));
+    Assert.assertEquals(1, router.getSessionCount());
+  }
+
+  @Test
+  public void testAnonymousPeers() throws Exception {
+    final List<ZMTPSession> sessions = new ArrayList<ZMTPSession>();
+    final PipelineTester first = connect(
+        new ZMTP20Codec(session(), false),
+        ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, new byte[0], true),
+        buf(1, 0, 0, 1, 0x61), sessions);
+    final PipelineTester second = connect(
+        new ZMTP20Codec(session(), false),
+        ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, new byte[0], true),
+        buf(1, 0, 0, 1, 0x61), sessions);
+    // A ZMTP/1.0 greeting without identity
+    final PipelineTester third = connect(
+        new ZMTP20Codec(session(), true), buf(1, 0), buf(1, 1, 2, 0, 0x61), sessions);
+    third.readClient();
+    Assert.assertEquals(3, router.getSessionCount());
+
+    final List<PipelineTester> peers = asList(first, second, third);
+    for (int i = 0; i < peers.size(); i++) {
+      final byte[] identity = sessions.get(i).getRemoteIdentity();
+      Assert.assertTrue(identity.length > 0);
+      Assert.assertSame(sessions.get(i), router.getSession(identity));
+
+      final byte content = (byte) ('a' + i);
+      Assert.assertNotNull(router.send(identity, new ZMTPMessage(
+          asList(ZMTPFrame.create("e")), asList(ZMTPFrame.create(new byte[]{content})))));
+      final ChannelBuffer received = peers.get(i).readClient();
+      Assert.assertEquals(content, received.getByte(received.writerIndex() - 1));
+    }
+  }
+
+  /**
+   * Connect a ZMTP/2.0 peer with the specified identity to a pipeline with the router.
+   */
+  private PipelineTester connect(final String identity) {
+    return connect(new ZMTP20Codec(session(), false),
+                   ZMTP20Codec.makeZMTP2Greeting(ZMTPSocketType.DEALER, identity.getBytes(),
+                                                 true),
+                   buf(1, 0, 0, 1, 0x61), new ArrayList<ZMTPSession>());
+  }
+
+  /**
+   * Connect a peer that sends the specified greeting and message to a pipeline with the router.
+   * The session of the connection is added to sessions once the handshake is done.
+   */
+  private PipelineTester connect(final CodecBase codec, final ChannelBuffer greeting,
+                                 final ChannelBuffer message, final List<ZMTPSession> sessions) {
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(codec, router));
+    pt.readClient();
+    pt.writeClient(greeting);
+    // Wait for the handshake to complete
+    pt.writeClient(message);
+    sessions.add(((ZMTPIncomingMessage) pt.readServer()).getSession());
+    return pt;
+  }
+
+  private static ZMTPSession session() {
+    return new ZMTPSession(
+        ZMTPConnectionType.Addressed, 1024, "router".getBytes(), ZMTPSocketType.ROUTER);
+  }
+}
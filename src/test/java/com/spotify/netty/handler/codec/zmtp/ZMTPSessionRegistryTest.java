@@ -0,0 +1,99 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZMTPSessionRegistryTest {
+
+  private final ZMTPSessionRegistry registry = new ZMTPSessionRegistry();
+
+  @Test
+  public void testPutGetRemove() {
+    final ZMTPSession a = session("a");
+    final ZMTPSession b = session("b");
+    registry.put(a);
+    registry.put(b);
+    Assert.assertEquals(2, registry.size());
+    Assert.assertSame(a, registry.get("a".getBytes()));
+    Assert.assertSame(b, registry.get("b".getBytes()));
+    Assert.assertNull(registry.get("c".getBytes()));
+
+    Assert.assertTrue(registry.remove(a));
+    Assert.assertFalse(registry.remove(a));
+    Assert.assertNull(registry.get("a".getBytes()));
+    Assert.assertSame(b, registry.get("b".getBytes()));
+    Assert.assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void testReplaceSameIdentity() {
+    final ZMTPSession first = session("a");
+    final ZMTPSession second = session("a");
+    registry.put(first);
+    registry.put(second);
+    Assert.assertEquals(1, registry.size());
+    Assert.assertSame(second, registry.get("a".getBytes()));
+
+    // Closing the replaced session must not unregister its successor
+    Assert.assertFalse(registry.remove(first));
+    Assert.assertSame(second, registry.get("a".getBytes()));
+  }
+
+  @Test
+  public void testIdentityIsCopied() {
+    final ZMTPSession a = session("a");
+    registry.put(a);
+    a.getRemoteIdentity()[0] = 'b';
+    Assert.assertNull(registry.get("b".getBytes()));
+    Assert.assertSame(a, registry.get("a".getBytes()));
+  }
+
+  @Test
+  public void testManySessions() {
+    final int n = 10000;
+    final ZMTPSession[] sessions = new ZMTPSession[n];
+    for (int i = 0; i < n; i++) {
+      sessions[i] = session("session-" + i);
+      registry.put(sessions[i]);
+    }
+    Assert.assertEquals(n, registry.size());
+    for (int i = 0; i < n; i++) {
+      Assert.assertSame(sessions[i], registry.get(("session-" + i).getBytes()));
+    }
+    for (int i = 0; i < n; i += 2) {
+      Assert.assertTrue(registry.remove(sessions[i]));
+    }
+    for (int i = 0; i < n; i++) {
+      final ZMTPSession expected = i % 2 == 0 ? null : sessions[i];
+      Assert.assertSame(expected, registry.get(("session-" + i).getBytes()));
+    }
+  }
+
+  @Test
+  public void testChurn() {
+    // Tombstones must not pile up when peers keep reconnecting with new identities
+    final ZMTPSession stable = session("stable");
+    registry.put(stable);
+    for (int i = 0; i < 100000; i++) {
+      final ZMTPSession session = session("transient-" + i);
+      registry.put(session);
+      Assert.assertSame(session, registry.get(("transient-" + i).getBytes()));
+      Assert.assertTrue(registry.remove(session));
+    }
+    Assert.assertEquals(1, registry.size());
+    Assert.assertSame(stable, registry.get("stable".getBytes()));
+  }
+
+  @Test
+  public void testHashNeverEmpty() {
+    Assert.assertTrue(ZMTPSessionRegistry.hash(new byte[0]) != 0);
+    Assert.assertTrue(ZMTPSessionRegistry.hash("a".getBytes()) !=
+                      ZMTPSessionRegistry.hash("b".getBytes()));
+  }
+
+  private static ZMTPSession session(final String identity) {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed);
+    session.setRemoteIdentity(identity.getBytes());
+    return session;
+  }
+}
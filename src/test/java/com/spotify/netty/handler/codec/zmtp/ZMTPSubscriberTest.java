@@ -0,0 +1,43 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import static com.spotify.netty.handler.codec.zmtp.TestUtil.buf;
+
+public class ZMTPSubscriberTest {
+
+  @Test
+  public void testReplacedWhileWritingConflatedIsCounted() {
+    final Channel channel = mock(Channel.class);
+    final AtomicLong dropped = new AtomicLong();
+    final ZMTPSubscriber subscriber = new ZMTPSubscriber(null, channel, dropped);
+    final ChannelBuffer first = buf(0x61);
+    final ChannelBuffer second = buf(0x62);
+
+    // A newer message is kept while the subscriber tries to write the first one
+    final AtomicBoolean published = new AtomicBoolean();
+    when(channel.isWritable()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(final InvocationOnMock invocation) throws Throwable {
+        if (published.compareAndSet(false, true)) {
+          subscriber.conflate(second, 1);
+        }
+        return false;
+      }
+    });
+    subscriber.conflate(first, 1);
+
+    Assert.assertEquals(1, dropped.get());
+  }
+}
@@ -0,0 +1,131 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ZMTPSubscriptionTrieTest {
+
+  private final ZMTPSubscriptionTrie trie = new ZMTPSubscriptionTrie();
+  private final ZMTPSubscriber a = new ZMTPSubscriber(null, null, null);
+  private final ZMTPSubscriber b = new ZMTPSubscriber(null, null, null);
+
+  @Test
+  public void testMatchPrefixes() {
+    trie.subscribe("foo".getBytes(), a);
+    trie.subscribe("foobar".getBytes(), b);
+    trie.subscribe("fob".getBytes(), b);
+    Assert.assertEquals(3, trie.size());
+
+    assertMatches("foo", a);
+    assertMatches("foobar", a, b);
+    assertMatches("foobaz", a);
+    assertMatches("fob", b);
+    assertMatches("fo");
+    assertMatches("");
+    assertMatches("bar");
+  }
+
+  @Test
+  public void testEmptyPrefixMatchesEverything() {
+    trie.subscribe(new byte[0], a);
+    assertMatches("", a);
+    assertMatches("anything", a);
+  }
+
+  @Test
+  public void testSubscriberMatchedOnce() {
+    trie.subscribe("".getBytes(), a);
+    trie.subscribe("f".getBytes(), a);
+    trie.subscribe("foo".getBytes(), a);
+    assertMatches("foo", a);
+  }
+
+  @Test
+  public void testSubscriptionsAreCounted() {
+    trie.subscribe("foo".getBytes(), a);
+    trie.subscribe("foo".getBytes(), a);
+    Assert.assertTrue(trie.unsubscribe("foo".getBytes(), a));
+    assertMatches("foo", a);
+    Assert.assertTrue(trie.unsubscribe("foo".getBytes(), a));
+    assertMatches("foo");
+    Assert.assertFalse(trie.unsubscribe("foo".getBytes(), a));
+    Assert.assertEquals(0, trie.size());
+  }
+
+  @Test
+  public void testUnsubscribeMergesNodes() {
+    trie.subscribe("foo".getBytes(), a);
+    trie.subscribe("foobar".getBytes(), b);
+    trie.subscribe("foobaz".getBytes(), b);
+    Assert.assertFalse(trie.unsubscribe("fooba".getBytes(), b));
+    Assert.assertTrue(trie.unsubscribe("foo".getBytes(), a));
+    Assert.assertTrue(trie.unsubscribe("foobaz".getBytes(), b));
+    assertMatches("foobar", b);
+    assertMatches("foobaz");
+    trie.subscribe("foo".getBytes(), a);
+    assertMatches("foobar", a, b);
+  }
+
+  @Test
+  public void testRandomSubscriptions() {
+    final Random random = new Random(4711);
+    final List<ZMTPSubscriber> subscribers = new ArrayList<ZMTPSubscriber>();
+    final List<byte[]> prefixes = new ArrayList<byte[]>();
+    for (int i = 0; i < 1000; i++) {
+      final ZMTPSubscriber subscriber = new ZMTPSubscriber(null, null, null);
+      final byte[] prefix = randomBytes(random, random.nextInt(5));
+      trie.subscribe(prefix, subscriber);
+      subscribers.add(subscriber);
+      prefixes.add(prefix);
+    }
+    // Unsubscribe half of them to exercise pruning
+    for (int i = 0; i < 1000; i += 2) {
+      Assert.assertTrue(trie.unsubscribe(prefixes.get(i), subscribers.get(i)));
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      final byte[] topic = randomBytes(random, random.nextInt(8));
+      final Set<ZMTPSubscriber> expected = new HashSet<ZMTPSubscriber>();
+      for (int j = 1; j < 1000; j += 2) {
+        final byte[] prefix = prefixes.get(j);
+        if (prefix.length <= topic.length &&
+            Arrays.equals(prefix, Arrays.copyOf(topic, prefix.length))) {
+          expected.add(subscribers.get(j));
+        }
+      }
+      Assert.assertEquals(expected, new HashSet<ZMTPSubscriber>(match(topic)));
+    }
+  }
+
+  private static byte[] randomBytes(final Random random, final int length) {
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      // Few distinct octets, to get shared prefixes
+      bytes[i] = (byte) (random.nextInt(3) - 1);
+    }
+    return bytes;
+  }
+
+  private List<ZMTPSubscriber> match(final byte[] topic) {
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(topic);
+    final List<ZMTPSubscriber> matches = new ArrayList<ZMTPSubscriber>();
+    trie.match(buffer, buffer.readerIndex(), buffer.readableBytes(), matches);
+    return matches;
+  }
+
+  private void assertMatches(final String topic, final ZMTPSubscriber... expected) {
+    final List<ZMTPSubscriber> matches = match(topic.getBytes());
+    Assert.assertEquals(expected.length, matches.size());
+    Assert.assertEquals(new HashSet<ZMTPSubscriber>(Arrays.asList(expected)),
+                        new HashSet<ZMTPSubscriber>(matches));
+  }
+}
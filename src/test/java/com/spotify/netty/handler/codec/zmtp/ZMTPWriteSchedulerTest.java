@@ -0,0 +1,137 @@
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.VirtualScheduler;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+public class ZMTPWriteSchedulerTest {
+
+  private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+  private volatile Runnable onFirstWrite;
+
+  @Test
+  public void testConnectionsTakeTurns() {
+    final ZMTPWriteScheduler scheduler = new ZMTPWriteScheduler(100);
+    final PipelineTester heavy = new PipelineTester(
+        Channels.pipeline(new Recorder("heavy"), scheduler));
+    final PipelineTester light = new PipelineTester(
+        Channels.pipeline(new Recorder("light"), scheduler));
+
+    // Both connections write while the first write of the heavy one is being passed on
+    onFirstWrite = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 3; i++) {
+          heavy.writeServer(buffer(100));
+        }
+        for (int i = 0; i < 3; i++) {
+          light.writeServer(buffer(10));
+        }
+      }
+    };
+    heavy.writeServer(buffer(100));
+
+    Assert.assertEquals(asList("heavy:100",
+                               "heavy:100",
+                               "light:10", "light:10", "light:10",
+                               "heavy:100",
+                               "heavy:100"), sent);
+    Assert.assertEquals(0, scheduler.getQueuedMessages());
+    Assert.assertEquals(0, scheduler.getQueuedBytes());
+    Assert.assertEquals(0, scheduler.getActiveFlows());
+  }
+
+  @Test
+  public void testLargeWritesUseUpSeveralTurns() {
+    final ZMTPWriteScheduler scheduler = new ZMTPWriteScheduler(100);
+    final PipelineTester heavy = new PipelineTester(
+        Channels.pipeline(new Recorder("heavy"), scheduler));
+    final PipelineTester light = new PipelineTester(
+        Channels.pipeline(new Recorder("light"), scheduler));
+
+    onFirstWrite = new Runnable() {
+      @Override
+      public void run() {
+        heavy.writeServer(buffer(250));
+        for (int i = 0; i < 3; i++) {
+          light.writeServer(buffer(60));
+        }
+      }
+    };
+    heavy.writeServer(buffer(10));
+
+    Assert.assertEquals(asList("heavy:10",
+                               "light:60",
+                               "light:60",
+                               "light:60",
+                               "heavy:250"), sent);
+  }
+
+  @Test
+  public void testQueuedWritesFailedOnClose() {
+    final VirtualScheduler virtualScheduler = new VirtualScheduler();
+    final AutoFlushingWriteBatcher batcher =
+        new AutoFlushingWriteBatcher(1, MILLISECONDS, 1000000, MICROSECONDS, 1024 * 1024,
+                                     true, virtualScheduler, virtualScheduler);
+    final ZMTPWriteScheduler scheduler = new ZMTPWriteScheduler();
+    final PipelineTester pt = new PipelineTester(Channels.pipeline(batcher, scheduler));
+    batcher.setWriteBufferLowWaterMark(1);
+    batcher.setWriteBufferHighWaterMark(1);
+
+    // The first write makes the batcher unwritable, the second is queued by the scheduler
+    pt.writeServer(buffer(10));
+    final ChannelFuture second = pt.writeServer(buffer(10));
+    Assert.assertEquals(1, scheduler.getQueuedMessages());
+    Assert.assertEquals(0, scheduler.getActiveFlows());
+
+    pt.closeClient();
+    Assert.assertTrue(second.getCause() instanceof ClosedChannelException);
+    Assert.assertEquals(0, scheduler.getQueuedMessages());
+  }
+
+  private static ChannelBuffer buffer(final int size) {
+    return ChannelBuffers.wrappedBuffer(new byte[size]);
+  }
+
+  /**
+   * Records the writes that reach the transport.
+   */
+  private class Recorder extends SimpleChannelDownstreamHandler {
+
+    private final String name;
+
+    Recorder(final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e)
+        throws Exception {
+      sent.add(name + ":" + ((ChannelBuffer) e.getMessage()).readableBytes());
+      super.writeRequested(ctx, e);
+      final Runnable hook = onFirstWrite;
+      onFirstWrite = null;
+      if (hook != null) {
+        hook.run();
+      }
+    }
+  }
+}
@@ -4,18 +4,46 @@
 
 package com.spotify.netty.handler.queue;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelState;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamChannelStateEvent;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.SocketChannel;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.jboss.netty.util.CharsetUtil.UTF_8;
 
 @RunWith(MockitoJUnitRunner.class)
 public class AutoFlushingWriteBatcherTest {
@@ -29,6 +57,9 @@ public class AutoFlushingWriteBatcherTest {
   @Mock
   public ChannelStateEvent e;
 
+  @Mock
+  public SocketChannel channel;
+
   @Test
   public void shouldStartFlushingOnChannelOpen() throws Exception {
     batcher.channelOpen(ctx, e);
@@ -49,6 +80,290 @@ public class AutoFlushingWriteBatcherTest {
     verifyFlushingStopped();
   }
 
+  @Test
+  public void shouldReuseConsolidationBufferAfterWriteCompletes() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(true);
+
+    // The first write is sparse and flushed right away
+    batcher.writeRequested(ctx, write("first"));
+
+    batcher.enqueue(write("foo"));
+    batcher.enqueue(write("bar"));
+    batcher.flush();
+    final MessageEvent consolidated1 = lastDownstreamWrite();
+    assertEquals("foobar", content(consolidated1));
+
+    // Completing the write hands the buffer back to the pool
+    consolidated1.getFuture().setSuccess();
+
+    batcher.enqueue(write("baz"));
+    batcher.enqueue(write("quux"));
+    batcher.flush();
+    final MessageEvent consolidated2 = lastDownstreamWrite();
+    assertEquals("bazquux", content(consolidated2));
+
+    assertThat(consolidated2.getMessage(), sameInstance(consolidated1.getMessage()));
+    assertEquals(1, batcher.getBufferPool().getAllocations());
+  }
+
+  @Test
+  public void shouldNotFlushWhileChannelIsNotWritable() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+
+    batcher.writeRequested(ctx, write("foo"));
+    batcher.flush();
+    verify(ctx, never()).sendDownstream(any(ChannelEvent.class));
+    assertEquals(3, batcher.getQueuedBytes());
+
+    when(channel.isWritable()).thenReturn(true);
+    when(e.getChannel()).thenReturn(channel);
+    batcher.channelInterestChanged(ctx, e);
+    assertEquals("foo", content(lastDownstreamWrite()));
+    assertEquals(0, batcher.getQueuedBytes());
+  }
+
+  @Test
+  public void shouldSignalWritabilityAtWaterMarks() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+    batcher.setWriteBufferLowWaterMark(4);
+    batcher.setWriteBufferHighWaterMark(8);
+
+    batcher.writeRequested(ctx, write("foo"));
+    batcher.writeRequested(ctx, write("bar"));
+    assertTrue(batcher.isWritable());
+    batcher.writeRequested(ctx, write("baz"));
+    assertFalse(batcher.isWritable());
+    verify(ctx).sendUpstream(any(ChannelStateEvent.class));
+
+    when(channel.isWritable()).thenReturn(true);
+    when(e.getChannel()).thenReturn(channel);
+    batcher.channelInterestChanged(ctx, e);
+    assertTrue(batcher.isWritable());
+    // One upstream event for the batcher turning unwritable, one for the event passed through,
+    // and one for the batcher becoming writable again.
+    verify(ctx, times(3)).sendUpstream(any(ChannelStateEvent.class));
+  }
+
+  @Test
+  public void shouldWriteUrgentMessagesFirstEvenIfChannelIsNotWritable() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+
+    batcher.writeRequested(ctx, write("bulk"));
+    batcher.writeRequested(ctx, write("more"));
+    batcher.writeRequested(ctx, urgentWrite("ping"));
+    assertEquals("ping", content(lastDownstreamWrite()));
+    assertEquals(8, batcher.getQueuedBytes());
+
+    when(channel.isWritable()).thenReturn(true);
+    batcher.writeRequested(ctx, urgentWrite("pong"));
+    assertEquals("pongbulkmore", content(lastDownstreamWrite()));
+    assertEquals(0, batcher.getQueuedBytes());
+  }
+
+  @Test
+  public void shouldDropExpiredMessagesWhenFlushing() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+
+    final long now = System.nanoTime();
+    final MessageEvent stale = expiringWrite("stale", now - 1);
+    batcher.writeRequested(ctx, stale);
+    batcher.writeRequested(ctx, expiringWrite("fresh", now + TimeUnit.MINUTES.toNanos(1)));
+    batcher.writeRequested(ctx, write("plain"));
+    assertEquals(15, batcher.getQueuedBytes());
+
+    when(channel.isWritable()).thenReturn(true);
+    batcher.flush();
+    assertEquals("freshplain", content(lastDownstreamWrite()));
+    assertEquals(0, batcher.getQueuedBytes());
+    assertEquals(1, batcher.getExpiredMessages());
+    assertTrue(stale.getFuture().isDone());
+    assertTrue(stale.getFuture().getCause() instanceof TimeoutException);
+  }
+
+  @Test
+  public void shouldHoldBackCloseUntilQueueIsWritten() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+    batcher.setLinger(1, TimeUnit.MINUTES);
+
+    batcher.writeRequested(ctx, write("foo"));
+    batcher.writeRequested(ctx, write("bar"));
+    final ChannelStateEvent close = closeEvent();
+    batcher.closeRequested(ctx, close);
+    verify(ctx, never()).sendDownstream(any(ChannelEvent.class));
+
+    // Writes are refused while lingering
+    final MessageEvent late = write("late");
+    batcher.writeRequested(ctx, late);
+    assertTrue(late.getFuture().getCause() instanceof ClosedChannelException);
+
+    when(channel.isWritable()).thenReturn(true);
+    when(e.getChannel()).thenReturn(channel);
+    batcher.channelInterestChanged(ctx, e);
+    final MessageEvent written = lastDownstreamWrite();
+    assertEquals("foobar", content(written));
+    verify(ctx, never()).sendDownstream(close);
+
+    // The close proceeds once the transport is done with the queued data
+    written.getFuture().setSuccess();
+    verify(ctx).sendDownstream(close);
+    assertEquals(2, batcher.getLingerFlushedMessages());
+    assertEquals(6, batcher.getLingerFlushedBytes());
+    assertEquals(0, batcher.getLingerDroppedMessages());
+  }
+
+  @Test
+  public void shouldCloseWhenLingerPeriodRunsOut() throws Exception {
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+    batcher.setLinger(10, TimeUnit.MILLISECONDS);
+
+    batcher.writeRequested(ctx, write("foo"));
+    batcher.writeRequested(ctx, write("bar"));
+    final ChannelStateEvent close = closeEvent();
+    batcher.closeRequested(ctx, close);
+
+    verify(ctx, timeout(1000)).sendDownstream(close);
+    assertEquals(0, batcher.getLingerFlushedMessages());
+    assertEquals(2, batcher.getLingerDroppedMessages());
+    assertEquals(6, batcher.getLingerDroppedBytes());
+  }
+
+  @Test
+  public void shouldReportFlushesToMetrics() throws Exception {
+    final WriteBatcherStats stats = new WriteBatcherStats();
+    batcher.setMetrics(stats);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(true);
+
+    batcher.writeRequested(ctx, write("first"));
+    assertEquals(1, stats.getFlushes(FlushReason.SPARSE_WRITE));
+
+    batcher.writeRequested(ctx, urgentWrite("ping"));
+    assertEquals(1, stats.getFlushes(FlushReason.URGENT));
+
+    when(channel.isWritable()).thenReturn(false);
+    batcher.writeRequested(ctx, write("foo"));
+    batcher.writeRequested(ctx, write("bar"));
+    when(channel.isWritable()).thenReturn(true);
+    batcher.flush();
+    assertEquals(1, stats.getFlushes(FlushReason.EXPLICIT));
+
+    assertEquals(3, stats.getFlushes());
+    assertEquals(4, stats.getMessagesPerFlush().getSum());
+    assertEquals(15, stats.getBytesPerFlush().getSum());
+    assertEquals(3, stats.getMaxQueueDelayNanos().getCount());
+  }
+
+  @Test
+  public void shouldReportQueueDelayOfWritesEnqueuedAtClockZero() throws Exception {
+    final VirtualScheduler scheduler = new VirtualScheduler();
+    final AutoFlushingWriteBatcher batcher = new AutoFlushingWriteBatcher(
+        1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 1024, true, scheduler, scheduler);
+    final WriteBatcherStats stats = new WriteBatcherStats();
+    batcher.setMetrics(stats);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+
+    // The clock reads zero when the write is enqueued
+    batcher.writeRequested(ctx, write("foo"));
+    scheduler.advance(5, MILLISECONDS);
+    when(channel.isWritable()).thenReturn(true);
+    batcher.flush();
+
+    assertEquals(1, stats.getFlushes());
+    assertEquals(MILLISECONDS.toNanos(5), stats.getMaxQueueDelayNanos().getSum());
+  }
+
+  @Test
+  public void shouldReportQueueDelayOfEachMessage() throws Exception {
+    final VirtualScheduler scheduler = new VirtualScheduler();
+    final AutoFlushingWriteBatcher batcher = new AutoFlushingWriteBatcher(
+        1, TimeUnit.SECONDS, 1, TimeUnit.SECONDS, 1024, true, scheduler, scheduler);
+    final WriteBatcherStats stats = new WriteBatcherStats();
+    batcher.setMetrics(stats);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(channel.isConnected()).thenReturn(true);
+    when(channel.isWritable()).thenReturn(false);
+
+    batcher.writeRequested(ctx, write("foo"));
+    scheduler.advance(2, MILLISECONDS);
+    batcher.writeRequested(ctx, write("bar"));
+    scheduler.advance(2, MILLISECONDS);
+    batcher.writeRequested(ctx, write("baz"));
+    scheduler.advance(2, MILLISECONDS);
+    when(channel.isWritable()).thenReturn(true);
+    batcher.flush();
+
+    assertEquals(1, stats.getFlushes());
+    assertEquals(MILLISECONDS.toNanos(6), stats.getMaxQueueDelayNanos().getSum());
+    assertEquals(MILLISECONDS.toNanos(6 + 4 + 2), stats.getTotalQueueDelayNanos());
+    assertEquals(MILLISECONDS.toNanos(4), stats.getMeanQueueDelayNanos(), 0);
+  }
+
+  @Test
+  public void shouldFlushQueuedWritesOnScheduleInVirtualTime() throws Exception {
+    final BatcherSimulator.Policy policy = new BatcherSimulator.Policy(
+        "default", 1000, 100, MICROSECONDS, 4096);
+    final List<BatcherSimulator.Write> trace = asList(
+        new BatcherSimulator.Write(MILLISECONDS.toNanos(10), 10),
+        new BatcherSimulator.Write(MILLISECONDS.toNanos(10) + MICROSECONDS.toNanos(10), 10),
+        new BatcherSimulator.Write(MILLISECONDS.toNanos(10) + MICROSECONDS.toNanos(20), 10));
+
+    final BatcherSimulator.Result result = BatcherSimulator.simulate(policy, trace);
+
+    // The first write is sparse and flushed immediately, the others wait for the flush task
+    assertEquals(3, result.getQueueDelayNanos().getCount());
+    assertEquals(MICROSECONDS.toNanos(990), result.getMaxQueueDelayNanos());
+    assertEquals(1, result.getStats().getFlushes(FlushReason.SPARSE_WRITE));
+    assertEquals(1, result.getStats().getFlushes(FlushReason.SCHEDULED));
+  }
+
+  private MessageEvent urgentWrite(final String s) {
+    final UrgentMessage message = new UrgentMessage(ChannelBuffers.copiedBuffer(s.getBytes()));
+    return new DownstreamMessageEvent(channel, Channels.future(channel), message, null);
+  }
+
+  private ChannelStateEvent closeEvent() {
+    return new DownstreamChannelStateEvent(channel, Channels.future(channel), ChannelState.OPEN,
+                                           Boolean.FALSE);
+  }
+
+  private MessageEvent expiringWrite(final String s, final long deadline) {
+    final ExpiringMessage message =
+        new ExpiringMessage(ChannelBuffers.copiedBuffer(s.getBytes()), deadline);
+    return new DownstreamMessageEvent(channel, Channels.future(channel), message, null);
+  }
+
+  private MessageEvent write(final String s) {
+    final ChannelBuffer buffer = ChannelBuffers.copiedBuffer(s.getBytes());
+    return new DownstreamMessageEvent(channel, Channels.future(channel), buffer, null);
+  }
+
+  private static String content(final MessageEvent e) {
+    return ((ChannelBuffer) e.getMessage()).toString(UTF_8);
+  }
+
+  private MessageEvent lastDownstreamWrite() {
+    final ArgumentCaptor<ChannelEvent> captor = ArgumentCaptor.forClass(ChannelEvent.class);
+    verify(ctx, atLeastOnce()).sendDownstream(captor.capture());
+    final List<ChannelEvent> events = captor.getAllValues();
+    return (MessageEvent) events.get(events.size() - 1);
+  }
 
   private void verifyFlushingStopped() throws InterruptedException {
     // give the scheduler plenty of time to stop the task
@@ -72,9 +387,13 @@ public class AutoFlushingWriteBatcherTest {
     }
 
     @Override
-    public void flush() {
+    protected void flush(final FlushReason reason) {
       flushCounter++;
-      super.flush();
+      super.flush(reason);
+    }
+
+    private void enqueue(final MessageEvent e) {
+      getQueue().add(e);
     }
   }
 }
@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2013 Spotify AB
+ */
+
+package com.spotify.netty.handler.queue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelPipeline;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.socket.DefaultSocketChannelConfig;
+import org.jboss.netty.channel.socket.SocketChannel;
+import org.jboss.netty.channel.socket.SocketChannelConfig;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Replays traces of writes through an {@link AutoFlushingWriteBatcher} in virtual time and
+ * measures how long each message is queued before it is flushed. The transport is simulated as
+ * infinitely fast, i.e. a flushed write completes immediately.
+ */
+public class BatcherSimulator {
+
+  /**
+   * A write of a number of bytes at a point in virtual time.
+   */
+  public static class Write {
+
+    final long time;
+    final int size;
+
+    public Write(final long time, final int size) {
+      this.time = time;
+      this.size = size;
+    }
+  }
+
+  /**
+   * The batching parameters of a write batcher.
+   */
+  public static class Policy {
+
+    final String name;
+    final long intervalNanos;
+    final long maxDelayNanos;
+    final int maxBufferSize;
+
+    public Policy(final String name, final long interval, final long maxDelay,
+                  final TimeUnit unit, final int maxBufferSize) {
+      this.name = name;
+      this.intervalNanos = unit.toNanos(interval);
+      this.maxDelayNanos = unit.toNanos(maxDelay);
+      this.maxBufferSize = maxBufferSize;
+    }
+
+    AutoFlushingWriteBatcher create(final VirtualScheduler scheduler) {
+      return new AutoFlushingWriteBatcher(intervalNanos, NANOSECONDS, maxDelayNanos, NANOSECONDS,
+                                          maxBufferSize, true, scheduler, scheduler);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * The outcome of replaying a trace.
+   */
+  public static class Result {
+
+    final Histogram queueDelayNanos = new Histogram();
+    final WriteBatcherStats stats = new WriteBatcherStats();
+    long maxQueueDelayNanos;
+
+    void record(final long delay) {
+      queueDelayNanos.record(delay);
+      maxQueueDelayNanos = Math.max(maxQueueDelayNanos, delay);
+    }
+
+    /**
+     * Get the distribution of the time each message spent queued in the batcher.
+     */
+    public Histogram getQueueDelayNanos() {
+      return queueDelayNanos;
+    }
+
+    /**
+     * Get the largest time any message spent queued in the batcher.
+     */
+    public long getMaxQueueDelayNanos() {
+      return maxQueueDelayNanos;
+    }
+
+    /**
+     * Get the flush statistics of the batcher.
+     */
+    public WriteBatcherStats getStats() {
+      return stats;
+    }
+
+    @Override
+    public String toString() {
+      final Histogram delay = queueDelayNanos;
+      return String.format(
+          "%,10d msgs %,8d flushes %,8.1f msgs/flush %,8.0f bytes/flush " +
+          "delay us: mean %,8.1f p50 < %,8.1f p99 < %,8.1f p999 < %,8.1f max %,8.1f",
+          delay.getCount(), stats.getFlushes(), stats.getMessagesPerFlush().getMean(),
+          stats.getBytesPerFlush().getMean(), delay.getMean() / 1000,
+          delay.getQuantile(0.5) / 1000.0, delay.getQuantile(0.99) / 1000.0,
+          delay.getQuantile(0.999) / 1000.0, maxQueueDelayNanos / 1000.0);
+    }
+  }
+
+  /**
+   * Replay a trace of writes through a batcher with the specified policy.
+   */
+  public static Result simulate(final Policy policy, final List<Write> trace) {
+    final VirtualScheduler scheduler = new VirtualScheduler();
+    final AutoFlushingWriteBatcher batcher = policy.create(scheduler);
+    final Result result = new Result();
+    batcher.setMetrics(result.stats);
+
+    final ChannelPipeline pipeline = new DefaultChannelPipeline();
+    pipeline.addLast("batcher", batcher);
+    final SimulatedChannel channel = new SimulatedChannel(pipeline);
+    Channels.fireChannelOpen(channel);
+
+    int maxSize = 0;
+    for (final Write write : trace) {
+      maxSize = Math.max(maxSize, write.size);
+    }
+    final byte[] payload = new byte[maxSize];
+
+    for (final Write write : trace) {
+      scheduler.advanceTo(write.time);
+      final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(payload, 0, write.size);
+      Channels.write(channel, buffer).addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) throws Exception {
+          result.record(scheduler.nanoTime() - write.time);
+        }
+      });
+    }
+
+    // Let the flush task pick up the tail of the trace
+    scheduler.advance(policy.intervalNanos * 2 + policy.maxDelayNanos, NANOSECONDS);
+    return result;
+  }
+
+  /**
+   * Generate a trace with exponentially distributed times between writes.
+   *
+   * @param seed              Random seed.
+   * @param messagesPerSecond Average rate of writes.
+   * @param messages          Number of writes.
+   * @param size              Size of each write.
+   */
+  public static List<Write> poissonTrace(final long seed, final double messagesPerSecond,
+                                         final int messages, final int size) {
+    final Random random = new Random(seed);
+    final double meanInterval = SECONDS.toNanos(1) / messagesPerSecond;
+    final List<Write> trace = new ArrayList<Write>(messages);
+    long time = 0;
+    for (int i = 0; i < messages; i++) {
+      time += (long) (-Math.log(1 - random.nextDouble()) * meanInterval);
+      trace.add(new Write(time, size));
+    }
+    return trace;
+  }
+
+  /**
+   * Generate a trace of bursts of back to back writes with idle periods in between.
+   *
+   * @param burstSize The number of writes in each burst.
+   * @param bursts    The number of bursts.
+   * @param gap       The time between the starts of two bursts.
+   * @param unit      The time unit of the gap.
+   * @param size      Size of each write.
+   */
+  public static List<Write> burstTrace(final int burstSize, final int bursts, final long gap,
+                                       final TimeUnit unit, final int size) {
+    final List<Write> trace = new ArrayList<Write>(burstSize * bursts);
+    for (int i = 0; i < bursts; i++) {
+      final long start = i * unit.toNanos(gap);
+      for (int j = 0; j < burstSize; j++) {
+        trace.add(new Write(start + j, size));
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Read a trace consisting of lines of whitespace separated timestamps in nanoseconds and write
+   * sizes in bytes.
+   */
+  public static List<Write> readTrace(final Reader reader) throws IOException {
+    final BufferedReader lines = new BufferedReader(reader);
+    final List<Write> trace = new ArrayList<Write>();
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      final String[] fields = line.split("\\s+");
+      trace.add(new Write(Long.parseLong(fields[0]), Integer.parseInt(fields[1])));
+    }
+    return trace;
+  }
+
+  /**
+   * A connected, always writable channel whose writes complete as soon as they are flushed.
+   */
+  private static class SimulatedChannel extends AbstractChannel implements SocketChannel {
+
+    private final SocketChannelConfig config = new DefaultSocketChannelConfig(new Socket());
+
+    SimulatedChannel(final ChannelPipeline pipeline) {
+      super(null, null, pipeline, new AbstractChannelSink() {
+        @Override
+        public void eventSunk(final ChannelPipeline pipeline, final ChannelEvent e) {
+          if (e instanceof MessageEvent) {
+            e.getFuture().setSuccess();
+          }
+        }
+      });
+    }
+
+    @Override
+    public SocketChannelConfig getConfig() {
+      return config;
+    }
+
+    @Override
+    public boolean isBound() {
+      return true;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+      return null;
+    }
+  }
+}
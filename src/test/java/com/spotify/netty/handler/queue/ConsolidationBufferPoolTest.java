@@ -0,0 +1,27 @@
+package com.spotify.netty.handler.queue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class ConsolidationBufferPoolTest {
+
+  @Test
+  public void shouldKeepBuffersThatAreTooSmallPooled() {
+    final ConsolidationBufferPool pool = new ConsolidationBufferPool(2, 64 * 1024);
+    final ChannelBuffer small = pool.acquire(100);
+    pool.release(small);
+
+    // A larger batch needs a new buffer, but must not evict the small one
+    final ChannelBuffer large = pool.acquire(16 * 1024);
+    assertEquals(2, pool.getAllocations());
+
+    assertThat(pool.acquire(100), sameInstance(small));
+    pool.release(large);
+    assertThat(pool.acquire(16 * 1024), sameInstance(large));
+    assertEquals(2, pool.getAllocations());
+  }
+}
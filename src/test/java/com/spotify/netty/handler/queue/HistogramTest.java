@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2013 Spotify AB
+ */
+
+package com.spotify.netty.handler.queue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+  @Test
+  public void testEmpty() {
+    final Histogram histogram = new Histogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getQuantile(0.5));
+    assertEquals(0, histogram.getMean(), 0);
+  }
+
+  @Test
+  public void testBuckets() {
+    final Histogram histogram = new Histogram();
+    histogram.record(0);
+    histogram.record(1);
+    histogram.record(2);
+    histogram.record(3);
+    histogram.record(1000);
+    histogram.record(-1);
+
+    assertEquals(6, histogram.getCount());
+    assertEquals(1006, histogram.getSum());
+    assertEquals(2, histogram.getBucketCount(0));
+    assertEquals(1, histogram.getBucketCount(1));
+    assertEquals(2, histogram.getBucketCount(2));
+    assertEquals(1, histogram.getBucketCount(10));
+  }
+
+  @Test
+  public void testQuantiles() {
+    final Histogram histogram = new Histogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.record(10);
+    }
+    histogram.record(100000);
+
+    assertEquals(16, histogram.getQuantile(0.5));
+    assertEquals(16, histogram.getQuantile(0.99));
+    assertEquals(131072, histogram.getQuantile(1));
+  }
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright (C) 2013 Spotify AB
+ */
+
+package com.spotify.netty.handler.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * A single threaded scheduler and clock operating in virtual time. Time only moves when
+ * {@link #advanceTo(long)} or {@link #advance(long, TimeUnit)} is called, which runs all tasks that
+ * are due on the calling thread in the order they are scheduled.
+ */
+public class VirtualScheduler extends AbstractExecutorService
+    implements ScheduledExecutorService, Clock {
+
+  private final PriorityQueue<Task<?>> tasks = new PriorityQueue<Task<?>>();
+
+  private long now;
+  private long sequence;
+  private boolean shutdown;
+
+  public VirtualScheduler() {
+    this(0);
+  }
+
+  /**
+   * Create a scheduler whose clock starts at the specified time, in nanoseconds.
+   */
+  public VirtualScheduler(final long now) {
+    this.now = now;
+  }
+
+  @Override
+  public long nanoTime() {
+    return now;
+  }
+
+  /**
+   * Move time forward, running all tasks that become due.
+   */
+  public void advance(final long duration, final TimeUnit unit) {
+    advanceTo(now + unit.toNanos(duration));
+  }
+
+  /**
+   * Move time forward to the specified point in time, running all tasks that become due.
+   */
+  public void advanceTo(final long time) {
+    if (time < now) {
+      throw new IllegalArgumentException("Cannot move time backwards");
+    }
+    while (!tasks.isEmpty() && tasks.peek().time <= time) {
+      final Task<?> task = tasks.poll();
+      now = task.time;
+      task.run();
+    }
+    now = time;
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(final Runnable command, final long delay,
+                                     final TimeUnit unit) {
+    return schedule(new Task<Object>(callable(command), unit.toNanos(delay), 0));
+  }
+
+  @Override
+  public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay,
+                                         final TimeUnit unit) {
+    return schedule(new Task<V>(callable, unit.toNanos(delay), 0));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay,
+                                                final long period, final TimeUnit unit) {
+    return schedule(new Task<Object>(callable(command), unit.toNanos(initialDelay),
+                                     unit.toNanos(period)));
+  }
+
+  @Override
+  public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command,
+                                                   final long initialDelay, final long delay,
+                                                   final TimeUnit unit) {
+    // Tasks take no virtual time to run, so fixed delay and fixed rate are the same thing
+    return scheduleAtFixedRate(command, initialDelay, delay, unit);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    schedule(command, 0, NANOSECONDS);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    tasks.clear();
+    return new ArrayList<Runnable>();
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  public boolean isTerminated() {
+    return shutdown && tasks.isEmpty();
+  }
+
+  @Override
+  public boolean awaitTermination(final long timeout, final TimeUnit unit) {
+    return isTerminated();
+  }
+
+  /**
+   * Get the tasks that are currently scheduled.
+   */
+  public List<ScheduledFuture<?>> getScheduledTasks() {
+    final List<ScheduledFuture<?>> scheduled = new ArrayList<ScheduledFuture<?>>(tasks);
+    Collections.sort(scheduled, null);
+    return scheduled;
+  }
+
+  private <V> Task<V> schedule(final Task<V> task) {
+    if (shutdown) {
+      throw new IllegalStateException("shut down");
+    }
+    tasks.add(task);
+    return task;
+  }
+
+  private static Callable<Object> callable(final Runnable runnable) {
+    return new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        runnable.run();
+        return null;
+      }
+    };
+  }
+
+  private class Task<V> implements ScheduledFuture<V>, Runnable {
+
+    private final Callable<V> callable;
+    private final long period;
+    private final long seq = sequence++;
+
+    private long time;
+    private boolean cancelled;
+    private boolean done;
+    private V result;
+    private Throwable failure;
+
+    Task(final Callable<V> callable, final long delay, final long period) {
+      this.callable = callable;
+      this.time = now + delay;
+      this.period = period;
+    }
+
+    @Override
+    public void run() {
+      try {
+        result = callable.call();
+        if (period > 0 && !cancelled) {
+          time += period;
+          tasks.add(this);
+          return;
+        }
+      } catch (Throwable t) {
+        failure = t;
+      }
+      done = true;
+    }
+
+    @Override
+    public long getDelay(final TimeUnit unit) {
+      return unit.convert(time - now, NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(final Delayed o) {
+      final Task<?> other = (Task<?>) o;
+      if (time != other.time) {
+        return time < other.time ? -1 : 1;
+      }
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+      if (done) {
+        return false;
+      }
+      cancelled = true;
+      done = true;
+      tasks.remove(this);
+      return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done;
+    }
+
+    @Override
+    public V get() throws ExecutionException {
+      if (!done) {
+        throw new IllegalStateException("Task has not run yet, advance time first");
+      }
+      if (failure != null) {
+        throw new ExecutionException(failure);
+      }
+      return result;
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit) throws ExecutionException {
+      return get();
+    }
+  }
+}
@@ -16,18 +16,60 @@
 
 package com.spotify.netty.zmtp;
 
+import com.spotify.netty.handler.codec.zmtp.ZMTP20Codec;
+import com.spotify.netty.handler.codec.zmtp.ZMTP30Codec;
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
+import com.spotify.netty.handler.codec.zmtp.ZMTPCreditHandler;
+import com.spotify.netty.handler.codec.zmtp.ZMTPDealer;
 import com.spotify.netty.handler.codec.zmtp.ZMTPFrame;
+import com.spotify.netty.handler.codec.zmtp.ZMTPHighWaterMarkHandler;
+import com.spotify.netty.handler.codec.zmtp.ZMTPIncomingMessage;
 import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
 import com.spotify.netty.handler.codec.zmtp.ZMTPMessageParser;
 import com.spotify.netty.handler.codec.zmtp.ZMTPMessageParsingException;
+import com.spotify.netty.handler.codec.zmtp.ZMTPParsedMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPPublisher;
+import com.spotify.netty.handler.codec.zmtp.ZMTPRouter;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSocketType;
 import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.BatcherSimulator;
 
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class Benchmark {
 
@@ -56,4 +98,714 @@ public class Benchmark {
     }
     System.out.println(sum);
   }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkDecoding() throws InterruptedException {
+    System.out.println("codec");
+    benchmarkDecoding(false, 100000);
+    System.out.println("codec with separate framing decoder");
+    benchmarkDecoding(true, 100000);
+  }
+
+  /**
+   * Feed a stream of messages through a server codec over the local transport. With
+   * {@code separateDecoder} the server instead installs its own framing decoder in front of the
+   * codec once the handshake is done, the way the codec used to hand over to a
+   * ZMTPFramingDecoder, so the two decoding paths can be compared.
+   */
+  private void benchmarkDecoding(final boolean separateDecoder, final long batches)
+      throws InterruptedException {
+    final ProgressMeter meter = new ProgressMeter("messages");
+    final LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new DefaultLocalServerChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+        final ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("codec", new ZMTP20Codec(session, true));
+        pipeline.addLast("counter", new SimpleChannelUpstreamHandler() {
+          @Override
+          public void channelConnected(final ChannelHandlerContext ctx,
+                                       final ChannelStateEvent e) {
+            if (separateDecoder) {
+              ctx.getPipeline().addBefore("codec", "framing", new SeparateFramingDecoder(session));
+            }
+          }
+
+          @Override
+          public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+            meter.inc(1, 0);
+          }
+        });
+        return pipeline;
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(address);
+
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new DefaultLocalClientChannelFactory());
+    clientBootstrap.setPipeline(Channels.pipeline(new SimpleChannelUpstreamHandler() {
+      @Override
+      public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+        // Discard the server greeting
+      }
+    }));
+    final Channel channel = clientBootstrap.connect(address).awaitUninterruptibly().getChannel();
+
+    // A ZMTP/2.0 DEALER greeting with the identity "client"
+    final ChannelBuffer greeting = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.encodeLength(0, greeting, true);
+    greeting.writeByte(0x7f);
+    greeting.writeByte(0x01);
+    greeting.writeByte(ZMTPSocketType.DEALER.ordinal());
+    greeting.writeByte(0x00);
+    greeting.writeByte("client".length());
+    greeting.writeBytes("client".getBytes());
+    channel.write(greeting).awaitUninterruptibly();
+
+    // Writes over the local transport are delivered on this thread, one batch of 1000 at a time
+    final ZMTPMessage message = ZMTPMessage.fromStringsUTF8(
+        false, "datadatadatadatadatadatadatadatadatadata");
+    final int size = ZMTPUtils.messageSize(message, false, 2);
+    final ChannelBuffer batch = ChannelBuffers.buffer(size * 1000);
+    for (int i = 0; i < 1000; i++) {
+      ZMTPUtils.writeMessage(message, batch, false, 2);
+    }
+    for (long i = 0; i < batches; i++) {
+      channel.write(batch.duplicate()).awaitUninterruptibly();
+    }
+    meter.finish();
+
+    channel.close().awaitUninterruptibly();
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  /**
+   * Frames messages in a handler of its own and passes them on through the codec.
+   */
+  private static class SeparateFramingDecoder extends FrameDecoder {
+
+    private final ZMTPSession session;
+    private final ZMTPMessageParser parser;
+
+    SeparateFramingDecoder(final ZMTPSession session) {
+      this.session = session;
+      this.parser = new ZMTPMessageParser(session.isEnveloped(), session.getSizeLimit(),
+                                          session.getActualVersion());
+    }
+
+    @Override
+    protected Object decode(final ChannelHandlerContext ctx, final Channel channel,
+                            final ChannelBuffer buffer) throws Exception {
+      final ZMTPParsedMessage parsed = parser.parse(buffer);
+      if (parsed == null) {
+        return null;
+      }
+      return new ZMTPIncomingMessage(session, parsed.getMessage(), parsed.isTruncated(),
+                                     parsed.getByteSize());
+    }
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkBatcherAllocation() throws InterruptedException {
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        // Discard everything
+        return Channels.pipeline(new SimpleChannelUpstreamHandler());
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new NioClientSocketChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return Channels.pipeline(new AutoFlushingWriteBatcher());
+      }
+    });
+    final Channel channel = clientBootstrap.connect(serverChannel.getLocalAddress())
+        .awaitUninterruptibly().getChannel();
+
+    final ProgressMeter meter = new ProgressMeter("messages");
+    final byte[] payload = new byte[100];
+    for (long i = 0; i < 100000; i++) {
+      final long allocatedBefore = allocatedBytes();
+      for (long j = 0; j < 1000; j++) {
+        while (!channel.isWritable()) {
+          Thread.sleep(0, 100);
+        }
+        channel.write(ChannelBuffers.wrappedBuffer(payload));
+      }
+      final long allocated = allocatedBytes() - allocatedBefore;
+      meter.inc(1000, 0);
+      if (i % 1000 == 0) {
+        System.out.printf("%,10d bytes allocated per message%n", allocated / 1000);
+      }
+    }
+    meter.finish();
+
+    channel.close().awaitUninterruptibly();
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkFragmentedHandshakes() throws InterruptedException {
+    final ProgressMeter meter = new ProgressMeter("handshakes");
+    final LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new DefaultLocalServerChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Addressed, 1024, "server".getBytes(), ZMTPSocketType.ROUTER);
+        return Channels.pipeline(
+            new ZMTP20Codec(session, true),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void channelConnected(final ChannelHandlerContext ctx,
+                                           final ChannelStateEvent e) {
+                // Fired once the handshake is done
+                meter.inc(1, 0);
+                e.getChannel().close();
+              }
+            });
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(address);
+
+    // A ZMTP/2.0 DEALER greeting with the identity "client"
+    final ChannelBuffer greeting = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.encodeLength(0, greeting, true);
+    greeting.writeByte(0x7f);
+    greeting.writeByte(0x01);
+    greeting.writeByte(ZMTPSocketType.DEALER.ordinal());
+    greeting.writeByte(0x00);
+    greeting.writeByte("client".length());
+    greeting.writeBytes("client".getBytes());
+
+    // Keep a bounded number of connections handshaking at once
+    final Semaphore connections = new Semaphore(100);
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new DefaultLocalClientChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return Channels.pipeline(new SimpleChannelUpstreamHandler() {
+          @Override
+          public void channelConnected(final ChannelHandlerContext ctx,
+                                       final ChannelStateEvent e) {
+            // Send the greeting in 3 byte fragments
+            final int length = greeting.readableBytes();
+            for (int i = 0; i < length; i += 3) {
+              e.getChannel().write(greeting.slice(i, Math.min(3, length - i)));
+            }
+          }
+
+          @Override
+          public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+            // Discard the server greeting
+          }
+
+          @Override
+          public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+            connections.release();
+          }
+        });
+      }
+    });
+
+    for (long i = 0; i < 10000000; i++) {
+      connections.acquire();
+      clientBootstrap.connect(address);
+    }
+    meter.finish();
+
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkConnects() throws InterruptedException {
+    final ProgressMeter meter = new ProgressMeter("connects");
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Addressed, 1024, "server".getBytes(), ZMTPSocketType.ROUTER);
+        return Channels.pipeline(
+            new ZMTP20Codec(session, true),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void channelConnected(final ChannelHandlerContext ctx,
+                                           final ChannelStateEvent e) {
+                // Fired once the handshake is done
+                meter.inc(1, 0);
+                e.getChannel().close();
+              }
+            });
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+
+    // Keep a bounded number of connections handshaking at once
+    final Semaphore connections = new Semaphore(100);
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new NioClientSocketChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Addressed, 1024, "client".getBytes(), ZMTPSocketType.DEALER);
+        return Channels.pipeline(
+            new ZMTP20Codec(session, true),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void channelClosed(final ChannelHandlerContext ctx,
+                                        final ChannelStateEvent e) {
+                connections.release();
+              }
+            });
+      }
+    });
+
+    for (long i = 0; i < 1000000; i++) {
+      connections.acquire();
+      clientBootstrap.connect(serverChannel.getLocalAddress());
+    }
+    meter.finish();
+
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkRouterLookups() throws InterruptedException {
+    final int peers = 10000;
+    final ZMTPRouter router = new ZMTPRouter();
+    final LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new DefaultLocalServerChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Addressed, 1024, "server".getBytes(), ZMTPSocketType.ROUTER);
+        return Channels.pipeline(new ZMTP20Codec(session, false), router);
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(address);
+
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new DefaultLocalClientChannelFactory());
+    final byte[][] identities = new byte[peers][];
+    for (int i = 0; i < peers; i++) {
+      identities[i] = ("client-" + i).getBytes();
+      final ZMTPSession session = new ZMTPSession(
+          ZMTPConnectionType.Addressed, 1024, identities[i], ZMTPSocketType.DEALER);
+      clientBootstrap.setPipeline(Channels.pipeline(new ZMTP20Codec(session, false)));
+      clientBootstrap.connect(address).awaitUninterruptibly();
+    }
+    while (router.getSessionCount() < peers) {
+      Thread.sleep(10);
+    }
+
+    final ProgressMeter meter = new ProgressMeter("lookups");
+    long found = 0;
+    for (long i = 0; i < 1000000; i++) {
+      for (int j = 0; j < 1000; j++) {
+        if (router.getSession(identities[(int) ((i * 1000 + j) % peers)]) != null) {
+          found++;
+        }
+      }
+      meter.inc(1000, 0);
+    }
+    meter.finish();
+    System.out.println(found);
+
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkDealer() throws InterruptedException {
+    for (final ZMTPDealer.Strategy strategy : ZMTPDealer.Strategy.values()) {
+      System.out.println(strategy);
+      benchmarkDealer(strategy, 4, 10000000);
+    }
+  }
+
+  private void benchmarkDealer(final ZMTPDealer.Strategy strategy, final int backends,
+                               final long messages) throws InterruptedException {
+    final ProgressMeter meter = new ProgressMeter("messages");
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.ROUTER);
+        return Channels.pipeline(
+            new ZMTP20Codec(session, false),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+                meter.inc(1, 0);
+              }
+            });
+      }
+    });
+    final List<Channel> serverChannels = new ArrayList<Channel>();
+    for (int i = 0; i < backends; i++) {
+      serverChannels.add(serverBootstrap.bind(new InetSocketAddress("localhost", 0)));
+    }
+
+    final ZMTPDealer dealer = new ZMTPDealer(strategy);
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new NioClientSocketChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "client".getBytes(), ZMTPSocketType.DEALER);
+        return Channels.pipeline(new AutoFlushingWriteBatcher(),
+                                 new ZMTP20Codec(session, false),
+                                 dealer);
+      }
+    });
+    for (final Channel serverChannel : serverChannels) {
+      clientBootstrap.connect(serverChannel.getLocalAddress());
+    }
+    while (dealer.getPeerCount() < backends) {
+      Thread.sleep(10);
+    }
+
+    final ZMTPMessage message = ZMTPMessage.fromStringsUTF8(
+        false, "datadatadatadatadatadatadatadatadatadata");
+    for (long i = 0; i < messages; ) {
+      if (dealer.send(message) != null) {
+        i++;
+      } else {
+        Thread.yield();
+      }
+    }
+    meter.finish();
+
+    for (final Channel serverChannel : serverChannels) {
+      serverChannel.close().awaitUninterruptibly();
+    }
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkSubscriptionMatching() throws InterruptedException {
+    final int subscribers = 100;
+    final int subscriptionsPerSubscriber = 1000;
+    final ZMTPPublisher publisher = new ZMTPPublisher();
+    final LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new DefaultLocalServerChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "pub".getBytes(), ZMTPSocketType.PUB);
+        return Channels.pipeline(new ZMTP20Codec(session, false), publisher);
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(address);
+
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new DefaultLocalClientChannelFactory());
+    for (int i = 0; i < subscribers; i++) {
+      final int subscriber = i;
+      final ZMTPSession session = new ZMTPSession(
+          ZMTPConnectionType.Broadcast, 1024, "sub".getBytes(), ZMTPSocketType.SUB);
+      clientBootstrap.setPipeline(Channels.pipeline(
+          new ZMTP20Codec(session, false),
+          new SimpleChannelUpstreamHandler() {
+            @Override
+            public void channelConnected(final ChannelHandlerContext ctx,
+                                         final ChannelStateEvent e) {
+              for (int j = 0; j < subscriptionsPerSubscriber; j++) {
+                final byte[] topic = topic(subscriber * subscriptionsPerSubscriber + j);
+                final byte[] subscription = new byte[topic.length + 1];
+                subscription[0] = 1;
+                System.arraycopy(topic, 0, subscription, 1, topic.length);
+                e.getChannel().write(new ZMTPMessage(
+                    Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create(subscription))));
+              }
+            }
+
+            @Override
+            public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+              // Discard published messages
+            }
+          }));
+      clientBootstrap.connect(address).awaitUninterruptibly();
+    }
+    while (publisher.getSubscriptionCount() < subscribers * subscriptionsPerSubscriber) {
+      Thread.sleep(10);
+    }
+
+    final int topics = subscribers * subscriptionsPerSubscriber;
+    final ZMTPMessage[] messages = new ZMTPMessage[topics];
+    for (int i = 0; i < topics; i++) {
+      messages[i] = new ZMTPMessage(Collections.<ZMTPFrame>emptyList(),
+                                    asList(ZMTPFrame.create(topic(i)),
+                                           ZMTPFrame.create("data")));
+    }
+
+    final ProgressMeter meter = new ProgressMeter("messages");
+    long sent = 0;
+    for (long i = 0; i < 1000000; i++) {
+      for (int j = 0; j < 1000; j++) {
+        sent += publisher.publish(messages[(int) ((i * 1000 + j) * 7919 % topics)]);
+      }
+      meter.inc(1000, 0);
+    }
+    meter.finish();
+    System.out.println(sent);
+
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkFanOut() throws InterruptedException {
+    final int subscribers = 1000;
+    final ProgressMeter meter = new ProgressMeter("deliveries");
+    final ZMTPPublisher publisher = new ZMTPPublisher();
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "pub".getBytes(), ZMTPSocketType.PUB);
+        return Channels.pipeline(new AutoFlushingWriteBatcher(),
+                                 new ZMTP20Codec(session, false),
+                                 publisher);
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new NioClientSocketChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "sub".getBytes(), ZMTPSocketType.SUB);
+        return Channels.pipeline(
+            new ZMTP20Codec(session, false),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void channelConnected(final ChannelHandlerContext ctx,
+                                           final ChannelStateEvent e) {
+                // Subscribe to everything
+                e.getChannel().write(new ZMTPMessage(
+                    Collections.<ZMTPFrame>emptyList(),
+                    asList(ZMTPFrame.create(new byte[]{1}))));
+              }
+
+              @Override
+              public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+                meter.inc(1, 0);
+              }
+            });
+      }
+    });
+    for (int i = 0; i < subscribers; i++) {
+      clientBootstrap.connect(serverChannel.getLocalAddress());
+    }
+    while (publisher.getSubscriptionCount() < subscribers) {
+      Thread.sleep(10);
+    }
+
+    final ZMTPMessage message = ZMTPMessage.fromStringsUTF8(
+        false, "topic", "datadatadatadatadatadatadatadatadatadata");
+    for (long i = 0; i < 1000000; i++) {
+      publisher.publish(message);
+    }
+    meter.finish();
+    System.out.println("dropped: " + publisher.getDroppedMessages());
+
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  private static byte[] topic(final int i) {
+    return ("quotes.exchange-" + i % 10 + ".symbol-" + i).getBytes();
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkCreditFlowControl() throws InterruptedException {
+    final int window = 1000;
+    final ProgressMeter meter = new ProgressMeter("messages");
+    final BlockingQueue<ZMTPIncomingMessage> received =
+        new LinkedBlockingQueue<ZMTPIncomingMessage>();
+    final AtomicInteger maxUnreleased = new AtomicInteger();
+
+    final ServerBootstrap serverBootstrap = new ServerBootstrap(
+        new NioServerSocketChannelFactory());
+    serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "server".getBytes(), ZMTPSocketType.DEALER);
+        return Channels.pipeline(
+            new ZMTP30Codec(session, false),
+            new ZMTPCreditHandler(window, 1024 * 1024),
+            new SimpleChannelUpstreamHandler() {
+              @Override
+              public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) {
+                received.add((ZMTPIncomingMessage) e.getMessage());
+              }
+            });
+      }
+    });
+    final Channel serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+
+    // A consumer that is slower than the sender, it pauses after every 100 messages
+    final Thread consumer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (long i = 0; ; i++) {
+            final int unreleased = received.size() + 1;
+            if (unreleased > maxUnreleased.get()) {
+              maxUnreleased.set(unreleased);
+            }
+            received.take().release();
+            meter.inc(1, 0);
+            if (i % 100 == 0) {
+              Thread.sleep(1);
+            }
+          }
+        } catch (InterruptedException e) {
+          // done
+        }
+      }
+    };
+    consumer.start();
+
+    final ZMTPHighWaterMarkHandler highWaterMark =
+        new ZMTPHighWaterMarkHandler(ZMTPHighWaterMarkHandler.Policy.BLOCK, window, 1024 * 1024);
+    final ClientBootstrap clientBootstrap = new ClientBootstrap(
+        new NioClientSocketChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        final ZMTPSession session = new ZMTPSession(
+            ZMTPConnectionType.Broadcast, 1024, "client".getBytes(), ZMTPSocketType.DEALER);
+        return Channels.pipeline(new AutoFlushingWriteBatcher(),
+                                 new ZMTP30Codec(session, false),
+                                 new ZMTPCreditHandler(window, 1024 * 1024),
+                                 highWaterMark);
+      }
+    });
+    final Channel channel = clientBootstrap.connect(serverChannel.getLocalAddress())
+        .awaitUninterruptibly().getChannel();
+
+    // Write as fast as possible, the writer blocks when the receiver has not granted credit
+    final ZMTPMessage message = ZMTPMessage.fromStringsUTF8(
+        false, "datadatadatadatadatadatadatadatadatadatadatadatadatadatadatadatadatadata");
+    int maxHeld = 0;
+    for (long i = 0; i < 2000000; i++) {
+      channel.write(message);
+      if (i % 1000 == 0) {
+        maxHeld = Math.max(maxHeld, highWaterMark.getQueuedMessages());
+      }
+    }
+    while (!received.isEmpty()) {
+      Thread.sleep(10);
+    }
+    meter.finish();
+    System.out.printf("max unreleased messages at receiver: %d, max held by sender: %d, " +
+                      "window: %d, blocked writes: %d%n",
+                      maxUnreleased.get(), maxHeld, window, highWaterMark.getBlockedWrites());
+
+    consumer.interrupt();
+    channel.close().awaitUninterruptibly();
+    serverChannel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Ignore("this is a simulation")
+  @Test
+  public void simulateBatchingPolicies() {
+    final List<BatcherSimulator.Policy> policies = asList(
+        new BatcherSimulator.Policy("default", 1000, 100, MICROSECONDS, 4096),
+        new BatcherSimulator.Policy("fast-tick", 100, 100, MICROSECONDS, 4096),
+        new BatcherSimulator.Policy("short-delay", 1000, 20, MICROSECONDS, 4096),
+        new BatcherSimulator.Policy("large-batch", 1000, 100, MICROSECONDS, 64 * 1024));
+
+    for (final int rate : new int[]{1000, 10000, 100000, 1000000}) {
+      final List<BatcherSimulator.Write> trace = BatcherSimulator.poissonTrace(
+          17, rate, 1000000, 100);
+      System.out.printf("poisson %,d msgs/s%n", rate);
+      for (final BatcherSimulator.Policy policy : policies) {
+        System.out.printf("  %-12s %s%n", policy, BatcherSimulator.simulate(policy, trace));
+      }
+    }
+
+    final List<BatcherSimulator.Write> bursts = BatcherSimulator.burstTrace(
+        100, 10000, 5, MILLISECONDS, 100);
+    System.out.println("bursts of 100 msgs every 5 ms");
+    for (final BatcherSimulator.Policy policy : policies) {
+      System.out.printf("  %-12s %s%n", policy, BatcherSimulator.simulate(policy, bursts));
+    }
+  }
+
+  /**
+   * Get the total number of bytes allocated on the heap by all live threads.
+   */
+  private static long allocatedBytes() {
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long sum = 0;
+    for (final long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (allocated > 0) {
+        sum += allocated;
+      }
+    }
+    return sum;
+  }
 }